@@ -1,34 +1,46 @@
 package za.dats.bukkit.memorystone;
 
-import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Comparator;
-import java.util.Date;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 import org.bukkit.Location;
 import org.bukkit.Material;
 import org.bukkit.block.Block;
 import org.bukkit.block.Sign;
-import org.bukkit.configuration.ConfigurationSection;
-import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.entity.HumanEntity;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
 //import org.bukkit.event.Event.Priority;
 import org.bukkit.event.block.Action;
+import org.bukkit.event.inventory.InventoryClickEvent;
+import org.bukkit.event.inventory.InventoryCloseEvent;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
+import org.bukkit.event.player.PlayerDropItemEvent;
 import org.bukkit.event.player.PlayerInteractEntityEvent;
 import org.bukkit.event.player.PlayerInteractEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
 //import org.bukkit.event.player.PlayerListener;
 import org.bukkit.event.player.PlayerMoveEvent;
+import org.bukkit.event.player.PlayerPickupItemEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.event.player.PlayerRespawnEvent;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.plugin.PluginManager;
 
@@ -39,35 +51,220 @@ import org.bukkit.plugin.PluginManager;
 //import org.getspout.spoutapi.keyboard.Keyboard;
 import za.dats.bukkit.memorystone.Config.MemoryEffect;
 import za.dats.bukkit.memorystone.economy.EconomyManager;
+import za.dats.bukkit.memorystone.storage.StorageBackend;
+import za.dats.bukkit.memorystone.util.PointGrid;
+import za.dats.bukkit.memorystone.util.TimingWheel;
 
 //public class CompassManager extends PlayerListener {
 public class CompassManager implements Listener {
-	private static class Teleport {
-		boolean started;
-		boolean cancelled;
-		int taskId = -1;
-		long lastTeleportTime;
-		long lastFizzleTime;
-		long lastEventTime;
-		Player teleportEntity;
+	/**
+	 * A player's memorizations as read from storage, to be put in place on the
+	 * main thread.
+	 */
+	static class PlayerMemory {
+		final String player;
+		// what had been forgotten when the read started
+		final long forgetSequence;
+		final long readAt = System.currentTimeMillis();
+		final Set<String> memorized = new TreeSet<String>();
+		String selected;
+
+		PlayerMemory(String player, long forgetSequence) {
+			this.player = player;
+			this.forgetSequence = forgetSequence;
+		}
+	}
+
+	private static class Forgotten {
+		final long sequence;
+		final long time = System.currentTimeMillis();
+		final String stoneName;
+
+		Forgotten(long sequence, String stoneName) {
+			this.sequence = sequence;
+			this.stoneName = stoneName;
+		}
+	}
+
+	/*
+	 * A player's destinations in the order they cycle through them, with each
+	 * stone's position by name, as of when and where they were worked out.
+	 *
+	 * When sorting by distance, the bound stones in the player's world are
+	 * listed a page at a time, nearest first, from the sign grid. Then come
+	 * the unbound ones and those in other worlds, by name. Cycling through the
+	 * closest few never sorts the rest.
+	 */
+	private static class Destinations {
+		final List<MemoryStone> stones;
+		final Map<String, Integer> positions;
+		final int size;
+		final long stonesVersion;
+		final boolean allMemorized;
+		final String world;
+		final double x;
+		final double y;
+		final double z;
+		private final MemoryStoneManager stoneManager;
+		private final Set<MemoryStone> nearby;
+		private final List<MemoryStone> rest;
+
+		Destinations(MemoryStoneManager stoneManager, Set<MemoryStone> stones, boolean sortByDistance, long stonesVersion,
+				boolean allMemorized, String world, Location location) {
+			this.stoneManager = stoneManager;
+			this.size = stones.size();
+			this.stones = new ArrayList<MemoryStone>(size);
+			this.positions = new HashMap<String, Integer>(size * 2);
+			this.stonesVersion = stonesVersion;
+			this.allMemorized = allMemorized;
+			this.world = world;
+			this.x = location.getX();
+			this.y = location.getY();
+			this.z = location.getZ();
+
+			nearby = new HashSet<MemoryStone>();
+			rest = new ArrayList<MemoryStone>();
+			if (!sortByDistance) {
+				rest.addAll(stones);
+				return;
+			}
+
+			List<MemoryStone> otherWorlds = new ArrayList<MemoryStone>();
+			for (MemoryStone stone : stones) {
+				if (stone.isBound() && world.equals(stone.getSignWorld().getName())) {
+					nearby.add(stone);
+				} else if (world.equals(stone.getStructure().getWorld().getName())) {
+					rest.add(stone);
+				} else {
+					otherWorlds.add(stone);
+				}
+			}
+			rest.addAll(otherWorlds);
+		}
+
+		MemoryStone get(int position) {
+			while (position >= stones.size()) {
+				nextPage();
+			}
+			return stones.get(position);
+		}
+
+		/**
+		 * @return The stone's position, or null if it isn't one of them.
+		 */
+		Integer positionOf(String name) {
+			Integer position = positions.get(name);
+			while (position == null && stones.size() < size) {
+				nextPage();
+				position = positions.get(name);
+			}
+			return position;
+		}
+
+		List<MemoryStone> getAll() {
+			while (stones.size() < size) {
+				nextPage();
+			}
+			return stones;
+		}
+
+		private void nextPage() {
+			if (nearby.isEmpty()) {
+				for (MemoryStone stone : rest) {
+					add(stone);
+				}
+				rest.clear();
+				return;
+			}
+
+			List<MemoryStone> page = stoneManager.getNearestSigns(world, x, y, z, DESTINATIONS_PAGE,
+					new PointGrid.Filter<MemoryStone>() {
+						public boolean accept(MemoryStone item) {
+							return nearby.contains(item);
+						}
+					});
+			if (page.isEmpty()) {
+				// not in the grid after all
+				page = new ArrayList<MemoryStone>(new TreeSet<MemoryStone>(nearby));
+			}
+			for (MemoryStone stone : page) {
+				nearby.remove(stone);
+				add(stone);
+			}
+		}
+
+		private void add(MemoryStone stone) {
+			positions.put(stone.getName(), stones.size());
+			stones.add(stone);
+		}
 	}
 
+	// How many of the nearest destinations are looked up at a time
+	private static final int DESTINATIONS_PAGE = 32;
+
+	// How far a player moves before their destinations are worked out again,
+	// the distance order and the stones within a distance limit can change.
+	private static final double DESTINATIONS_REFRESH_DISTANCE_SQUARED = 4 * 4;
+
+	// A prefetched read is only used if the player joins within this
+	private static final long PREFETCH_TIMEOUT = 60000;
+
 	final MemoryStonePlugin plugin;
 	private static final Logger log = Logger.getLogger("Minecraft");
 
+	// Only the players that are online (or left a short while ago) are loaded
 	private final Map<String, Set<MemoryStone>> memorized;
 	private final Map<String, String> selected;
-	private final Map<String, Teleport> teleporting;
-	private final String locationsFile = "locations.yml";
+	// Memorized stones in worlds that aren't loaded, by name
+	private final Map<String, Set<String>> unresolved;
+	/*
+	 * The loaded players that memorized (whether it is resolved or not) and
+	 * selected each stone, by stone name. Kept up to date with the maps above
+	 * through memorize(), addUnresolved(), select() and unloadPlayer().
+	 */
+	private final Map<String, Set<String>> memorizedBy;
+	private final Map<String, Set<String>> selectedBy;
+	private final Set<String> loaded;
+	private final Set<String> loading;
+	private final Map<String, Integer> unloadTasks;
+	private final Map<String, Destinations> destinations;
+	private long stonesVersion;
+	// Per world, bumped when a sign there is bound or unbound
+	private final Map<String, Long> signsVersions;
+	// Read on the login thread, before the player joins
+	private final ConcurrentMap<String, PlayerMemory> prefetched;
+	private final AtomicLong forgetSequence;
+	// Stones forgotten lately, to drop from reads that were underway
+	private final List<Forgotten> recentlyForgotten;
+	// The online players
+	private final Map<UUID, PlayerSession> sessions;
+	// Cooldowns (last teleport and fizzle times) still running when a player
+	// quit, so that coming back doesn't skip them
+	private final Map<UUID, long[]> cooldowns;
+	// The casts under way, run by a single task every tick
+	private final TimingWheel casts;
+	// Set when movement is sampled every tick instead of on move events
+	private MovementSampler sampler;
 	private final List<Material> skippedInteractionBlocks;
-	private final Map<String, Interference> interferences;
 
 	public CompassManager(MemoryStonePlugin plugin) {
 		this.plugin = plugin;
 		memorized = new HashMap<String, Set<MemoryStone>>();
 		selected = new HashMap<String, String>();
-		teleporting = new HashMap<String, Teleport>();
-		interferences = new HashMap<String, Interference>();
+		unresolved = new HashMap<String, Set<String>>();
+		memorizedBy = new HashMap<String, Set<String>>();
+		selectedBy = new HashMap<String, Set<String>>();
+		destinations = new HashMap<String, Destinations>();
+		signsVersions = new HashMap<String, Long>();
+		loaded = new HashSet<String>();
+		loading = new HashSet<String>();
+		unloadTasks = new HashMap<String, Integer>();
+		prefetched = new ConcurrentHashMap<String, PlayerMemory>();
+		forgetSequence = new AtomicLong();
+		recentlyForgotten = new ArrayList<Forgotten>();
+		sessions = new HashMap<UUID, PlayerSession>();
+		cooldowns = new HashMap<UUID, long[]>();
+		casts = new TimingWheel();
 
 		skippedInteractionBlocks = new ArrayList<Material>();
 		skippedInteractionBlocks.add(Material.BED_BLOCK);
@@ -86,37 +283,19 @@ public class CompassManager implements Listener {
 		skippedInteractionBlocks.add(Material.WORKBENCH);
 	}
 
+	/**
+	 * @return The stones the player can teleport to from where they are, in
+	 *         the order they cycle through them.
+	 */
 	public Set<MemoryStone> getPlayerLocations(final String world, final Player player) {
-		TreeSet<MemoryStone> result;
-		if (Config.isSortByDistance()) {
-			result = new TreeSet<MemoryStone>(new Comparator<MemoryStone>() {
-				public int compare(MemoryStone o1, MemoryStone o2) {
-					if (o1.equals(o2)) {
-						return 0;
-					}
-
-					if (o1.getStructure().getWorld().getName().equals(o2.getStructure().getWorld().getName())) {
-						double o1Distance = player.getLocation().distanceSquared(o1.getSign().getBlock().getLocation());
-						double o2Distance = player.getLocation().distanceSquared(o2.getSign().getBlock().getLocation());
-
-						if (o1Distance < o2Distance) {
-							return -1;
-						}
-						return 1;
-					}
-
-					if (world.equals(o1.getStructure().getWorld().getName())) {
-						return -1;
-					} else if (world.equals(o2.getStructure().getWorld().getName())) {
-						return 1;
-					}
+		Location location = player.getLocation();
+		Destinations all = new Destinations(plugin.getMemoryStoneManager(), collectPlayerLocations(world, player, location),
+				Config.isSortByDistance(), stonesVersion, player.hasPermission("memorystone.allmemorized"), world, location);
+		return new LinkedHashSet<MemoryStone>(all.getAll());
+	}
 
-					return o1.getName().compareToIgnoreCase(o2.getName());
-				}
-			});
-		} else {
-			result = new TreeSet<MemoryStone>();
-		}
+	private TreeSet<MemoryStone> collectPlayerLocations(String world, Player player, Location location) {
+		TreeSet<MemoryStone> result = new TreeSet<MemoryStone>();
 
 		String playerName = player.getName();
 		boolean hasPermission = player.hasPermission("memorystone.allmemorized");
@@ -124,22 +303,21 @@ public class CompassManager implements Listener {
 		if (hasPermission) {
 			Collection<? extends MemoryStone> localStones = plugin.getMemoryStoneManager().getLocalStones(world);
 			for (MemoryStone memoryStone : localStones) {
-				if (memoryStone.getSign() != null) {
+				if (memoryStone.isBound()) {
 					result.add(memoryStone);
 				}
 			}
 		} else {
 			Set<MemoryStone> set = memorized.get(playerName);
 			if (set == null) {
-				set = new TreeSet<MemoryStone>();
-				memorized.put(playerName, set);
+				set = Collections.emptySet();
 			}
 
 			for (MemoryStone memoryStone : set) {
 				if (memoryStone.isCrossWorld()) {
 					result.add(memoryStone);
 				} else if (world.equals(memoryStone.getStructure().getWorld().getName())) {
-					addIfWithinDistance(player, result, memoryStone);
+					addIfWithinDistance(location, result, memoryStone);
 				}
 			}
 		}
@@ -148,51 +326,222 @@ public class CompassManager implements Listener {
 			if (memoryStone.isCrossWorld()) {
 				result.add(memoryStone);
 			} else if (world.equals(memoryStone.getStructure().getWorld().getName())) {
-				addIfWithinDistance(player, result, memoryStone);
+				addIfWithinDistance(location, result, memoryStone);
 			}
 		}
 
 		return result;
 	}
 
-	private void addIfWithinDistance(final Player player, TreeSet<MemoryStone> result, MemoryStone memoryStone) {
+	/*
+	 * The player's destinations, only worked out again when stones or their
+	 * memorizations have changed, or they have moved or changed worlds since.
+	 */
+	private Destinations getDestinations(Player player) {
+		Location location = player.getLocation();
+		String world = location.getWorld().getName();
+		boolean allMemorized = player.hasPermission("memorystone.allmemorized");
+
+		Destinations cached = destinations.get(player.getName());
+		if (cached != null && cached.stonesVersion == stonesVersion && cached.allMemorized == allMemorized
+				&& cached.world.equals(world)) {
+			double dx = location.getX() - cached.x;
+			double dy = location.getY() - cached.y;
+			double dz = location.getZ() - cached.z;
+			if (dx * dx + dy * dy + dz * dz < DESTINATIONS_REFRESH_DISTANCE_SQUARED) {
+				return cached;
+			}
+		}
+
+		cached = new Destinations(plugin.getMemoryStoneManager(), collectPlayerLocations(world, player, location),
+				Config.isSortByDistance(), stonesVersion, allMemorized, world, location);
+		destinations.put(player.getName(), cached);
+		return cached;
+	}
+
+	/**
+	 * Stones were added, removed or bound, every player's destinations need
+	 * working out again.
+	 */
+	public void stonesChanged() {
+		stonesVersion++;
+	}
+
+	/**
+	 * A stone's sign was bound or unbound in the world. Besides every
+	 * player's destinations, only the stones near players in that world need
+	 * looking up again.
+	 */
+	public void signsChanged(String world) {
+		stonesChanged();
+		Long version = signsVersions.get(world);
+		signsVersions.put(world, version == null ? 1 : version + 1);
+	}
+
+	long getSignsVersion(String world) {
+		Long version = signsVersions.get(world);
+		return version == null ? 0 : version;
+	}
+
+	private void addIfWithinDistance(Location location, TreeSet<MemoryStone> result, MemoryStone memoryStone) {
 		if (memoryStone.getDistanceLimit() <= 0) {
 			result.add(memoryStone);
 		} else {
-			if (memoryStone.getSign() == null) {
+			if (!memoryStone.isBound()) {
 				return;
 			}
 
-			if (memoryStone.getSign().getBlock() == null) {
-				return;
-			}
-			double distance = player.getLocation().distanceSquared(memoryStone.getSign().getBlock().getLocation());
-			if (distance < memoryStone.getDistanceLimit()) {
+			double dx = location.getX() - memoryStone.getSignX();
+			double dy = location.getY() - memoryStone.getSignY();
+			double dz = location.getZ() - memoryStone.getSignZ();
+			if (dx * dx + dy * dy + dz * dz < memoryStone.getDistanceLimit()) {
 				result.add(memoryStone);
 			}
 		}
 	}
 
 	public void forgetStone(String name, boolean showMessage) throws IOException {
-		MemoryStone stone = plugin.getMemoryStoneManager().getNamedMemoryStone(name);
-		for (String player : selected.keySet()) {
-			if (name.equals(selected.get(player))) {
+		StorageBackend storage = plugin.getStorage();
+		Set<String> selecting = selectedBy.remove(name);
+		if (selecting != null) {
+			for (String player : selecting) {
 				selected.put(player, null);
+				storage.saveSelected(player, null);
 			}
 		}
 
-		for (String player : memorized.keySet()) {
-			Set<MemoryStone> list = memorized.get(player);
-			if (list != null && list.contains(stone)) {
-				list.remove(stone);
-				Player p = plugin.getServer().getPlayer(player);
+		Set<String> players = memorizedBy.remove(name);
+		if (players != null) {
+			MemoryStone stone = plugin.getMemoryStoneManager().getNamedMemoryStone(name);
+			if (stone == null) {
+				// The sets are ordered by name, anything with the name finds
+				// it.
+				stone = new MemoryStone();
+				stone.setName(name);
+			}
+
+			for (String player : players) {
+				Set<MemoryStone> list = memorized.get(player);
+				Set<String> names = unresolved.get(player);
+				boolean wasMemorized = list != null && list.remove(stone);
+				if (names != null && names.remove(name)) {
+					wasMemorized = true;
+					if (names.isEmpty()) {
+						unresolved.remove(player);
+					}
+				}
+				if (!wasMemorized) {
+					continue;
+				}
+				destinations.remove(player);
+
+				storage.deleteMemorization(player, name);
+				Player p = plugin.getServer().getPlayerExact(player);
 				if (p != null && showMessage) {
-					p.sendMessage(Config.getColorLang("destroyForgotten", "name", stone.getName()));
+					p.sendMessage(Config.getColorLang("destroyForgotten", "name", name));
 				}
 			}
 		}
 
-		saveLocations();
+		// and for the players that aren't loaded, or are being read. The
+		// backend doesn't go through them either: the database deletes the
+		// stone's rows, and the files drop it when they are read.
+		storage.forgetStone(name);
+		long now = System.currentTimeMillis();
+		Iterator<Forgotten> forgotten = recentlyForgotten.iterator();
+		while (forgotten.hasNext()) {
+			if (now - forgotten.next().time > PREFETCH_TIMEOUT) {
+				forgotten.remove();
+			}
+		}
+		recentlyForgotten.add(new Forgotten(forgetSequence.incrementAndGet(), name));
+	}
+
+	/**
+	 * The stone's world was unloaded: remember who memorized it by name, until
+	 * it is loaded again.
+	 */
+	public void stoneUnloaded(MemoryStone stone) {
+		Set<String> players = memorizedBy.get(stone.getName());
+		if (players == null) {
+			return;
+		}
+
+		for (String player : players) {
+			Set<MemoryStone> list = memorized.get(player);
+			if (list != null && list.remove(stone)) {
+				addUnresolved(player, stone.getName());
+			}
+		}
+	}
+
+	/**
+	 * A named stone was loaded, give it back to the players who memorized it.
+	 */
+	public void stoneLoaded(MemoryStone stone) {
+		Set<String> players = memorizedBy.get(stone.getName());
+		if (players == null) {
+			return;
+		}
+
+		for (String player : players) {
+			Set<String> names = unresolved.get(player);
+			if (names == null || !names.remove(stone.getName())) {
+				continue;
+			}
+			if (names.isEmpty()) {
+				unresolved.remove(player);
+			}
+
+			memorize(player, stone);
+		}
+	}
+
+	private void memorize(String player, MemoryStone stone) {
+		Set<MemoryStone> set = memorized.get(player);
+		if (set == null) {
+			set = new TreeSet<MemoryStone>();
+			memorized.put(player, set);
+		}
+		set.add(stone);
+		index(memorizedBy, stone.getName(), player);
+		destinations.remove(player);
+	}
+
+	private void select(String player, String stoneName) {
+		String previous = selected.put(player, stoneName);
+		if (previous != null && !previous.equals(stoneName)) {
+			unindex(selectedBy, previous, player);
+		}
+		if (stoneName != null) {
+			index(selectedBy, stoneName, player);
+		}
+	}
+
+	private static void index(Map<String, Set<String>> index, String stoneName, String player) {
+		Set<String> players = index.get(stoneName);
+		if (players == null) {
+			players = new HashSet<String>();
+			index.put(stoneName, players);
+		}
+		players.add(player);
+	}
+
+	private static void unindex(Map<String, Set<String>> index, String stoneName, String player) {
+		Set<String> players = index.get(stoneName);
+		if (players != null && players.remove(player) && players.isEmpty()) {
+			index.remove(stoneName);
+		}
+	}
+
+	private void addUnresolved(String player, String stoneName) {
+		Set<String> names = unresolved.get(player);
+		if (names == null) {
+			names = new TreeSet<String>();
+			unresolved.put(player, names);
+		}
+		names.add(stoneName);
+		index(memorizedBy, stoneName, player);
 	}
 
 	public void registerEvents() {
@@ -208,6 +557,22 @@ public class CompassManager implements Listener {
 
 		pm.registerEvents(this, plugin);
 
+		plugin.getServer().getScheduler().scheduleSyncRepeatingTask(plugin, new Runnable() {
+			public void run() {
+				casts.advance();
+			}
+		}, 1, 1);
+
+		if (Config.isMovementSampling()) {
+			sampler = new MovementSampler(this);
+			plugin.getServer().getScheduler().scheduleSyncRepeatingTask(plugin, sampler, 1, 1);
+		}
+
+		// Players who are online already (when the plugin is reloaded)
+		for (Player player : plugin.getServer().getOnlinePlayers()) {
+			startSession(player);
+		}
+
 		if (plugin.isSpoutEnabled() && Config.getTeleportKey().length() > 0) {
 			// final Keyboard teleportKey = Keyboard.valueOf("KEY_" +
 			// Config.getTeleportKey());
@@ -241,7 +606,6 @@ public class CompassManager implements Listener {
 			// Event.Priority.Normal, plugin);
 
 		}
-		loadLocations();
 	}
 
 	public boolean memorizeStone(PlayerInteractEvent event) throws IOException {
@@ -252,7 +616,7 @@ public class CompassManager implements Listener {
 
 	public boolean memorizeStone(Player player, MemoryStone stone) throws IOException {
 
-		if (player != null && stone != null && stone.getSign() != null) {
+		if (player != null && stone != null && stone.isBound()) {
 			if (stone.isGlobal()) {
 				if (Config.isStoneToStoneEnabled()) {
 					return false;
@@ -271,12 +635,7 @@ public class CompassManager implements Listener {
 			}
 
 			Set<MemoryStone> set = memorized.get(player.getName());
-			if (set == null) {
-				set = new TreeSet<MemoryStone>();
-				memorized.put(player.getName(), set);
-			}
-
-			if (set.contains(stone)) {
+			if (set != null && set.contains(stone)) {
 				if (Config.isStoneToStoneEnabled()) {
 					return false;
 				}
@@ -284,12 +643,12 @@ public class CompassManager implements Listener {
 				player.sendMessage(Config.getColorLang("alreadymemorized", "name", stone.getName()));
 				return true;
 			}
-			set.add(stone);
+			memorize(player.getName(), stone);
 			// selected.put(player.getName(), stone.getName());
 
 			player.sendMessage(Config.getColorLang("memorize", "name", stone.getName()));
 
-			saveLocations();
+			plugin.getStorage().saveMemorization(player.getName(), stone.getName());
 			return true;
 		}
 		return false;
@@ -308,133 +667,280 @@ public class CompassManager implements Listener {
 		return false;
 	}
 
-	public void loadLocations() {
-		File file = new File(this.plugin.getDataFolder(), this.locationsFile);
-		if (!file.exists()) {
+	/**
+	 * Read a player's memorizations from storage. This can be done off the
+	 * main thread.
+	 */
+	PlayerMemory readPlayer(String player) {
+		PlayerMemory memory = new PlayerMemory(player, forgetSequence.get());
+		try {
+			memory.selected = plugin.getStorage().loadPlayer(player, memory.memorized);
+		} catch (IOException e) {
+			log.severe("[MemoryStone] could not load the memorized stones of " + player + ": " + e.getMessage());
+		}
+		return memory;
+	}
+
+	/**
+	 * Put a player's memorizations in place, once the structures are loaded.
+	 * Anything the player memorized or selected while they were being read is
+	 * kept.
+	 */
+	void installPlayer(PlayerMemory memory) {
+		String player = memory.player;
+		if (!loading.remove(player) && plugin.getServer().getPlayerExact(player) == null) {
+			// unloaded again before the read finished
 			return;
 		}
-		// Configuration conf = new Configuration(file);
-		// conf.load();
 
-		YamlConfiguration conf = YamlConfiguration.loadConfiguration(file);
+		for (Forgotten forgotten : recentlyForgotten) {
+			if (forgotten.sequence > memory.forgetSequence) {
+				memory.memorized.remove(forgotten.stoneName);
+				if (forgotten.stoneName.equals(memory.selected)) {
+					memory.selected = null;
+				}
+			}
+		}
+
+		StorageBackend storage = plugin.getStorage();
+		Set<MemoryStone> stoneList = memorized.get(player);
+		if (stoneList != null) {
+			// save them again, they weren't saved while the player wasn't
+			// loaded
+			for (MemoryStone stone : stoneList) {
+				storage.saveMemorization(player, stone.getName());
+			}
+		}
 
-		// Map<String, Set<String>> memLoad = (Map<String, Set<String>>)
-		// conf.getProperty("memorized");
+		for (String stoneName : memory.memorized) {
+			MemoryStone stone = plugin.getMemoryStoneManager().getNamedMemoryStone(stoneName);
+			if (stone != null) {
+				memorize(player, stone);
+			} else {
+				// its world may not be loaded yet
+				addUnresolved(player, stoneName);
+			}
+		}
 
-		// log.info("P" + conf.getKeys(true).size());
+		if (selected.get(player) == null) {
+			select(player, memory.selected);
+		} else {
+			storage.saveSelected(player, selected.get(player));
+		}
+		loaded.add(player);
+	}
 
-		ConfigurationSection memLoad = conf.getConfigurationSection("memorized");
-		for (String player : memLoad.getKeys(true)) {
-			Set<String> stones = (Set<String>) memLoad.get(player);
-			Set<MemoryStone> stoneList = new TreeSet<MemoryStone>();
-			for (String stoneName : stones) {
-				// log.info(player + ":" + stoneName);
-				MemoryStone stone = plugin.getMemoryStoneManager().getNamedMemoryStone(stoneName);
-				if (stone != null) {
-					// log.info("Add Stone" + stone.getName());
-					stoneList.add(stone);
-				}
+	/*
+	 * Load the player's memorizations if they aren't loaded (or loading)
+	 * already, from what was prefetched if possible.
+	 */
+	private void loadPlayer(final String player) {
+		PlayerMemory memory = prefetched.remove(player);
+		if (loaded.contains(player) || !loading.add(player)) {
+			return;
+		}
+
+		if (memory != null && System.currentTimeMillis() - memory.readAt < PREFETCH_TIMEOUT) {
+			installPlayer(memory);
+			return;
+		}
+
+		plugin.getServer().getScheduler().runTaskAsynchronously(plugin, new Runnable() {
+			public void run() {
+				final PlayerMemory memory = readPlayer(player);
+				plugin.getServer().getScheduler().runTask(plugin, new Runnable() {
+					public void run() {
+						installPlayer(memory);
+					}
+				});
 			}
-			memorized.put(player, stoneList);
+		});
+	}
+
+	/*
+	 * Let go of a player's memorizations, a while after they left.
+	 */
+	private void unloadPlayer(String player) {
+		unloadTasks.remove(player);
+		if (plugin.getServer().getPlayerExact(player) != null) {
+			return;
+		}
+
+		// the storage takes its last snapshot first
+		plugin.getStorage().unloadPlayer(player);
+		loaded.remove(player);
+		loading.remove(player);
+		prefetched.remove(player);
+
+		Set<MemoryStone> stoneList = memorized.remove(player);
+		if (stoneList != null) {
+			for (MemoryStone stone : stoneList) {
+				unindex(memorizedBy, stone.getName(), player);
+			}
+		}
+		Set<String> names = unresolved.remove(player);
+		if (names != null) {
+			for (String stoneName : names) {
+				unindex(memorizedBy, stoneName, player);
+			}
+		}
+		select(player, null);
+		selected.remove(player);
+		destinations.remove(player);
+	}
+
+	private void cancelUnload(String player) {
+		Integer task = unloadTasks.remove(player);
+		if (task != null) {
+			plugin.getServer().getScheduler().cancelTask(task);
 		}
+	}
 
-		// Map<String, Set<String>> memLoad = (Map<String, Set<String>>)
-		// conf.get("memorized");
-		// for (String player : memLoad.keySet()) {
-		// Set<String> stones = memLoad.get(player);
-		// Set<MemoryStone> stoneList = new TreeSet<MemoryStone>();
-		// for (String stoneName : stones) {
-		// MemoryStone stone =
-		// plugin.getMemoryStoneManager().getNamedMemoryStone(stoneName);
-		// if (stone != null) {
-		// stoneList.add(stone);
-		// }
-		// }
-		// memorized.put(player, stoneList);
-		// }
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onAsyncPlayerPreLogin(AsyncPlayerPreLoginEvent event) {
+		if (event.getLoginResult() != AsyncPlayerPreLoginEvent.Result.ALLOWED) {
+			return;
+		}
 
-		ConfigurationSection selLoad = conf.getConfigurationSection("selected");
-		for (String player : selLoad.getKeys(true)) {
-			// log.info(player + "Selected = " + selLoad.getString(player));
-			selected.put(player, selLoad.getString(player));
+		long now = System.currentTimeMillis();
+		Iterator<PlayerMemory> stale = prefetched.values().iterator();
+		while (stale.hasNext()) {
+			if (now - stale.next().readAt > PREFETCH_TIMEOUT) {
+				stale.remove();
+			}
 		}
 
-		// Map<String, String> selLoad = (Map<String, String>)
-		// conf.getProperty("selected");
-		// Map<String, String> selLoad = (Map<String, String>)
-		// conf.get("selected");
-		// for (String player : selLoad.keySet()) {
-		// selected.put(player, selLoad.get(player));
-		// }
+		// Bukkit waits for this before letting the player in
+		prefetched.put(event.getName(), readPlayer(event.getName()));
+	}
 
+	@EventHandler(priority = EventPriority.LOWEST)
+	public void onPlayerJoin(PlayerJoinEvent event) {
+		String player = event.getPlayer().getName();
+		cancelUnload(player);
+		loadPlayer(player);
+		startSession(event.getPlayer());
 	}
 
-	public void saveLocations() throws IOException {
-		File file = new File(this.plugin.getDataFolder(), this.locationsFile);
-		// Configuration conf = new Configuration(file);
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onPlayerQuit(PlayerQuitEvent event) {
+		final String player = event.getPlayer().getName();
+		destinations.remove(player);
+		endSession(event.getPlayer());
+		cancelUnload(player);
+		int task = plugin.getServer().getScheduler().scheduleSyncDelayedTask(plugin, new Runnable() {
+			public void run() {
+				unloadPlayer(player);
+			}
+		}, Config.getPlayerUnloadDelayTicks());
+		if (task != -1) {
+			unloadTasks.put(player, task);
+		}
+	}
 
-		YamlConfiguration conf = YamlConfiguration.loadConfiguration(file);
-		Map<String, Set<String>> memorizedNames = new HashMap<String, Set<String>>();
-		for (String playerName : memorized.keySet()) {
-			Set<MemoryStone> stoneList = memorized.get(playerName);
+	/**
+	 * Copy a player's memorized stones (by name, including the ones in worlds
+	 * that aren't loaded).
+	 *
+	 * @return The names, or null if the player's memorizations aren't loaded.
+	 */
+	public Set<String> getMemorized(String player) {
+		if (!loaded.contains(player)) {
+			return null;
+		}
 
-			Set<String> stoneNameList = new TreeSet<String>();
+		Set<String> stoneNameList = new TreeSet<String>();
+		Set<MemoryStone> stoneList = memorized.get(player);
+		if (stoneList != null) {
 			for (MemoryStone memoryStone : stoneList) {
 				stoneNameList.add(memoryStone.getName());
 			}
+		}
+		if (unresolved.containsKey(player)) {
+			stoneNameList.addAll(unresolved.get(player));
+		}
+		return stoneNameList;
+	}
+
+	public String getSelected(String player) {
+		return selected.get(player);
+	}
 
-			memorizedNames.put(playerName, stoneNameList);
+	/**
+	 * @return The player's session, or null if they aren't online.
+	 */
+	public PlayerSession getSession(Player player) {
+		PlayerSession session = sessions.get(player.getUniqueId());
+		if (session == null && player.isOnline()) {
+			// an event that came before the join
+			session = startSession(player);
 		}
-		// conf.setProperty("memorized", memorizedNames);
-		// conf.setProperty("selected", selected);
-		conf.set("memorized", memorizedNames);
-		conf.set("selected", selected);
+		return session;
+	}
 
-		// conf.save();
-		conf.save(file);
+	private PlayerSession startSession(Player player) {
+		PlayerSession session = sessions.get(player.getUniqueId());
+		if (session != null) {
+			return session;
+		}
 
+		session = new PlayerSession(player);
+		long[] cooldown = cooldowns.remove(player.getUniqueId());
+		if (cooldown != null) {
+			session.lastTeleportTime = cooldown[0];
+			session.lastFizzleTime = cooldown[1];
+		}
+		sessions.put(player.getUniqueId(), session);
+
+		if (sampler != null) {
+			sampler.add(session);
+		}
+		return session;
 	}
 
-	public Teleport getTeleport(Player player) {
-		Teleport result = teleporting.get(player.getName());
-		if (result == null) {
-			result = new Teleport();
-			teleporting.put(player.getName(), result);
+	private void endSession(Player player) {
+		PlayerSession session = sessions.remove(player.getUniqueId());
+		if (session == null) {
+			return;
 		}
 
-		return result;
+		if (sampler != null) {
+			sampler.remove(session);
+		}
+
+		if (session.cast != null) {
+			// The cast (by or on them) can't finish without them
+			casts.cancel(session.cast);
+			session.cast.end();
+		}
+
+		long now = System.nanoTime();
+		Iterator<long[]> expired = cooldowns.values().iterator();
+		while (expired.hasNext()) {
+			long[] cooldown = expired.next();
+			if (PlayerSession.millisSince(cooldown[0], now) >= Config.getCooldownTime() * 1000L
+					&& PlayerSession.millisSince(cooldown[1], now) >= Config.getFizzleCooldownTime() * 1000L) {
+				expired.remove();
+			}
+		}
+		if (session.isCoolingDown(now)) {
+			cooldowns.put(player.getUniqueId(), new long[] { session.lastTeleportTime, session.lastFizzleTime });
+		}
 	}
 
+	/**
+	 * @return Where the player arrives teleporting to the stone, or null if it
+	 *         has no sign (anymore).
+	 */
 	public Location getDestinationLocation(MemoryStone stone, Player player) {
-		Block sign = stone.getSign().getBlock();
-
-		org.bukkit.material.Sign aSign = (org.bukkit.material.Sign) stone.getSign().getData();
-		Block infront = sign.getRelative(aSign.getFacing());
-
-		Location result = infront.getLocation();
-		result.setX(result.getX() + 0.5);
-		result.setZ(result.getZ() + 0.5);
-
-		result.setPitch(player.getLocation().getPitch());
-
-		byte signData = sign.getData();
-		if (sign.getType() == Material.SIGN_POST) {
-			result.setYaw(signData < 0x8 ? signData * 22.5f + 180 : signData * 22.5f - 180);
-		} else if (sign.getType() == Material.WALL_SIGN) {
-			if (signData == 0x2) {// East
-				result.setYaw(180);
-			} else if (signData == 0x3) {// West
-				result.setYaw(0);
-			} else if (signData == 0x4) {// North
-				result.setYaw(90);
-			} else {// South
-				result.setYaw(270);
-			}
-		} else {
-			result.setYaw(player.getLocation().getYaw());
+		MemoryStone.Arrival arrival = stone.getArrival();
+		if (arrival == null) {
+			return null;
 		}
 
-		return result;
+		Location from = player.getLocation();
+		return new Location(stone.getSignWorld(), arrival.x, arrival.y, arrival.z, arrival.facing ? arrival.yaw : from.getYaw(),
+				from.getPitch());
 	}
 
 	public void startTeleport(final MemoryStone stone, final Player caster, ItemStack item, int maxUses, int itemIndex, Player other) {
@@ -446,24 +952,41 @@ public class CompassManager implements Listener {
 		}
 
 		final String name = stone.getName();
-		final Sign sign = (Sign) stone.getSign();
-		if (sign == null) {
+		// The stone may not have been loaded since startup, make sure it's
+		// still there.
+		if (!plugin.getStructureManager().ensureVerified(stone.getStructure())) {
 			caster.sendMessage(Config.getColorLang("notfound", "name", name));
 			return;
 		}
 
-		Teleport teleport = getTeleport(caster);
+		if (stone.getArrival() == null) {
+			caster.sendMessage(Config.getColorLang("notfound", "name", name));
+			return;
+		}
+
+		final PlayerSession teleport = getSession(caster);
+		final PlayerSession otherTeleport = other.equals(caster) ? teleport : getSession(other);
+		if (teleport == null || otherTeleport == null || teleport.isCasting()) {
+			return;
+		}
+		if (otherTeleport.isCasting()) {
+			// one cast at a time, or the other one would be left running
+			caster.sendMessage(Config.getColorLang("otherbusy", "name", other.getName()));
+			return;
+		}
 
 		if (!caster.hasPermission("memorystone.usewithoutcooldown")) {
-			long now = new Date().getTime();
-			if (now - teleport.lastTeleportTime < Config.getCooldownTime() * 1000) {
-				long left = Config.getCooldownTime() - ((now - teleport.lastTeleportTime) / 1000);
+			long now = System.nanoTime();
+			long sinceTeleport = PlayerSession.millisSince(teleport.lastTeleportTime, now);
+			if (sinceTeleport < Config.getCooldownTime() * 1000L) {
+				long left = Config.getCooldownTime() - (sinceTeleport / 1000);
 				caster.sendMessage(Config.getColorLang("cooldown", "left", "" + left));
 				return;
 			}
 
-			if (now - teleport.lastFizzleTime < Config.getFizzleCooldownTime() * 1000) {
-				long left = Config.getFizzleCooldownTime() - ((now - teleport.lastFizzleTime) / 1000);
+			long sinceFizzle = PlayerSession.millisSince(teleport.lastFizzleTime, now);
+			if (sinceFizzle < Config.getFizzleCooldownTime() * 1000L) {
+				long left = Config.getFizzleCooldownTime() - (sinceFizzle / 1000);
 				caster.sendMessage(Config.getColorLang("cooldown", "left", "" + left));
 				return;
 			}
@@ -500,6 +1023,7 @@ public class CompassManager implements Listener {
 					item.setAmount(item.getAmount() - 1);
 				}
 				caster.sendMessage(Config.getColorLang("consumed", "material", item.getType().toString().toLowerCase()));
+				compassChanged(caster);
 			} else {
 				caster.sendMessage(Config.getColorLang("chargesleft", "numcharges", "" + item.getDurability(), "material", item.getType()
 						.toString().toLowerCase()));
@@ -511,68 +1035,86 @@ public class CompassManager implements Listener {
 			waitTime = 1;
 		}
 
-		int task = plugin.getServer().getScheduler().scheduleSyncDelayedTask(plugin, new Runnable() {
-			public void run() {
-				Teleport teleport = getTeleport(caster);
-				teleport.taskId = -1;
-				teleport.started = false;
-				if (teleport.cancelled) {
-					return;
-				}
+		Cast cast = new Cast(teleport, otherTeleport, stone);
+		teleport.cast = cast;
+		otherTeleport.cast = cast;
+		casts.schedule(cast, waitTime);
 
-				if (!teleport.teleportEntity.equals(caster)) {
-					Teleport other = getTeleport((Player) teleport.teleportEntity);
-					other.taskId = -1;
-					other.started = false;
-					if (other.cancelled) {
-						return;
-					}
+		if (sampler != null) {
+			sampler.castStarted(teleport);
+			if (otherTeleport != teleport) {
+				sampler.castStarted(otherTeleport);
+			}
+		}
+	}
 
-					other.lastTeleportTime = new Date().getTime();
-				}
+	public void cancelTeleport(Player player) {
+		cancelTeleport(getSession(player));
+	}
 
-				teleport.lastTeleportTime = new Date().getTime();
+	void cancelTeleport(PlayerSession teleport) {
+		if (teleport != null && teleport.cast != null) {
+			teleport.player.sendMessage(Config.getColorLang("cancelled"));
+			casts.cancel(teleport.cast);
+			teleport.cast.end();
+			teleport.lastFizzleTime = System.nanoTime();
+		}
+	}
+
+	/*
+	 * A cast under way, run from the cast wheel when the casting time is up.
+	 */
+	class Cast extends TimingWheel.Timer {
+		final PlayerSession caster;
+		final PlayerSession target;
+		final MemoryStone stone;
+
+		Cast(PlayerSession caster, PlayerSession target, MemoryStone stone) {
+			this.caster = caster;
+			this.target = target;
+			this.stone = stone;
+		}
+
+		void end() {
+			if (caster.cast == this) {
+				caster.cast = null;
+			}
+			if (target.cast == this) {
+				target.cast = null;
+			}
+		}
+
+		public void expire() {
+			end();
+			long now = System.nanoTime();
+			caster.lastTeleportTime = now;
+			target.lastTeleportTime = now;
+
+			// Don't let one cast keep the others due this tick from running
+			try {
+				Player teleportEntity = target.player;
+				Location destination = getDestinationLocation(stone, caster.player);
+				if (destination == null) {
+					caster.player.sendMessage(Config.getColorLang("notfound", "name", stone.getName()));
+					return;
+				}
 
-				Location destination = getDestinationLocation(stone, caster);
 				if (Config.isEffectEnabled(MemoryEffect.LIGHTNING_ON_TELEPORT_SOURCE)) {
-					teleport.teleportEntity.getWorld().strikeLightningEffect(teleport.teleportEntity.getLocation());
+					teleportEntity.getWorld().strikeLightningEffect(teleportEntity.getLocation());
 				}
 
 				if (Config.isEffectEnabled(MemoryEffect.LIGHTNING_ON_TELEPORT_DEST)) {
-					teleport.teleportEntity.getWorld().strikeLightningEffect(destination);
+					teleportEntity.getWorld().strikeLightningEffect(destination);
 				}
 
 				if (Config.isPointCompassOnly()) {
-					teleport.teleportEntity.setCompassTarget(destination);
+					teleportEntity.setCompassTarget(destination);
 				} else {
-					teleport.teleportEntity.teleport(destination);
+					teleportEntity.teleport(destination);
 				}
-
+			} catch (RuntimeException e) {
+				log.warning("[MemoryStone] Teleport to " + stone.getName() + " failed: " + e);
 			}
-		}, waitTime);
-
-		teleport.cancelled = false;
-		teleport.taskId = task;
-		teleport.started = true;
-		teleport.teleportEntity = other;
-
-		if (!teleport.teleportEntity.equals(caster)) {
-			Teleport otherTeleport = getTeleport((Player) teleport.teleportEntity);
-			otherTeleport.cancelled = false;
-			otherTeleport.taskId = task;
-			otherTeleport.started = true;
-			otherTeleport.teleportEntity = other;
-		}
-	}
-
-	public void cancelTeleport(Player player) {
-		Teleport teleport = getTeleport(player);
-		if (teleport.started && teleport.taskId > -1) {
-			player.sendMessage(Config.getColorLang("cancelled"));
-			teleport.cancelled = true;
-			plugin.getServer().getScheduler().cancelTask(teleport.taskId);
-			teleport.started = false;
-			teleport.lastFizzleTime = new Date().getTime();
 		}
 	}
 
@@ -596,9 +1138,9 @@ public class CompassManager implements Listener {
 			return;
 		}
 
-		Teleport teleport = getTeleport(event.getPlayer());
-		long now = new Date().getTime();
-		if (now - teleport.lastEventTime < 100) {
+		PlayerSession teleport = getSession(event.getPlayer());
+		long now = System.nanoTime();
+		if (PlayerSession.millisSince(teleport.lastEventTime, now) < 100) {
 			return;
 		}
 		teleport.lastEventTime = now;
@@ -638,15 +1180,9 @@ public class CompassManager implements Listener {
 	}
 
 	private boolean isInNoTeleportZone(Player player) {
-		for (MemoryStone stone : plugin.getMemoryStoneManager().getNoTeleportStones()) {
-			if (!stone.getStructure().getRootBlock().getWorld().getName().equals(player.getWorld().getName())) {
-				continue;
-			}
-			double distance = player.getLocation().distanceSquared(stone.getStructure().getRootBlock().getLocation());
-			if (distance < stone.getDistanceLimit()) {
-				player.sendMessage(Config.getColorLang("noteleportzone"));
-				return true;
-			}
+		if (plugin.getMemoryStoneManager().getNoTeleportStone(player.getLocation()) != null) {
+			player.sendMessage(Config.getColorLang("noteleportzone"));
+			return true;
 		}
 
 		return false;
@@ -676,7 +1212,7 @@ public class CompassManager implements Listener {
 	public void fireTeleportFromBlock(Block clickedBlock, Player player) throws IOException {
 		MemoryStone clickedStone = null;
 		if (Config.isStoneToStoneEnabled() && player.hasPermission("memorystone.usestonetostone") && (clickedBlock != null)
-				&& (clickedBlock.getState() instanceof Sign)) {
+				&& plugin.getStructureManager().isChunkOccupied(clickedBlock) && (clickedBlock.getState() instanceof Sign)) {
 			Sign state = (Sign) clickedBlock.getState();
 			clickedStone = plugin.getMemoryStoneManager().getMemoryStructureForSign(state);
 		}
@@ -760,16 +1296,17 @@ public class CompassManager implements Listener {
 			return;
 		}
 
-		Teleport teleport = getTeleport(player);
-		long now = new Date().getTime();
-		if (now - teleport.lastEventTime < 100) {
+		PlayerSession teleport = getSession(player);
+		long now = System.nanoTime();
+		if (PlayerSession.millisSince(teleport.lastEventTime, now) < 100) {
 			return;
 		}
 		teleport.lastEventTime = now;
 
 		if (event.getAction().equals(Action.LEFT_CLICK_BLOCK)) {
-			if (event.getClickedBlock().getState() instanceof Sign) {
-				if (teleport.started) {
+			Block clickedBlock = event.getClickedBlock();
+			if (plugin.getStructureManager().isChunkOccupied(clickedBlock) && clickedBlock.getState() instanceof Sign) {
+				if (teleport.isCasting()) {
 					return;
 				}
 
@@ -809,20 +1346,21 @@ public class CompassManager implements Listener {
 		// super.onPlayerInteract(event);
 	}
 
-	private void cycleTeleport(final PlayerInteractEvent event, Player player, Teleport teleport) {
+	private void cycleTeleport(final PlayerInteractEvent event, Player player, PlayerSession teleport) {
 		// Make interaction with interactable blocks cleaner
 		if (event.getClickedBlock() != null && skippedInteractionBlocks.contains(event.getClickedBlock().getType())) {
 			return;
 		}
 
-		if (teleport.started) {
+		if (teleport.isCasting()) {
 			return;
 		}
 
 		MemoryStone clickedStone = null;
 		if (event.getPlayer().getItemInHand().getType() != Config.getTeleportItem()) {
-			if (Config.isStoneToStoneEnabled() && (event.getClickedBlock() != null) && (event.getClickedBlock().getState() instanceof Sign)
-					&& player.hasPermission("memorystone.usestonetostone")) {
+			if (Config.isStoneToStoneEnabled() && (event.getClickedBlock() != null)
+					&& plugin.getStructureManager().isChunkOccupied(event.getClickedBlock())
+					&& (event.getClickedBlock().getState() instanceof Sign) && player.hasPermission("memorystone.usestonetostone")) {
 				Sign state = (Sign) event.getClickedBlock().getState();
 				clickedStone = plugin.getMemoryStoneManager().getMemoryStructureForSign(state);
 				if (clickedStone == null) {
@@ -833,50 +1371,33 @@ public class CompassManager implements Listener {
 			}
 		}
 
-		Set<MemoryStone> memory = getPlayerLocations(player.getWorld().getName(), player);
-		if (memory == null || memory.size() == 0) {
+		Destinations memory = getDestinations(player);
+		int size = memory.size;
+		if (size == 0 || (clickedStone != null && size == 1 && memory.get(0).equals(clickedStone))) {
 			return;
 		}
 
-		if (clickedStone != null) {
-			memory.remove(clickedStone);
-			if (memory.size() == 0) {
-				return;
-			}
-		}
-
+		// The stone after the selected one, or the first one if there isn't
+		// one selected (or it's the stone that was clicked).
 		String selectedName = selected.get(player.getName());
-		if (selectedName == null) {
-			selectedName = memory.iterator().next().getName();
-		} else {
-			boolean next = false;
-			boolean found = false;
-			for (MemoryStone currentStone : memory) {
-				String name = currentStone.getName();
-				if (next) {
-					selectedName = name;
-					found = true;
-					break;
-				}
-				if (name.equals(selectedName)) {
-					next = true;
-				}
-			}
+		Integer position = null;
+		if (selectedName != null && (clickedStone == null || !selectedName.equals(clickedStone.getName()))) {
+			position = memory.positionOf(selectedName);
+		}
 
-			// wrap around
-			if (!found) {
-				selectedName = memory.iterator().next().getName();
-			}
+		int next = position == null ? 0 : (position + 1) % size;
+		if (clickedStone != null && memory.get(next).equals(clickedStone)) {
+			next = (next + 1) % size;
 		}
+		MemoryStone nextStone = memory.get(next);
+		selectedName = nextStone.getName();
 
 		boolean messageSent = false;
 		if (!player.hasPermission("memorystone.usefree")) {
 			EconomyManager economyManager = MemoryStonePlugin.getInstance().getEconomyManager();
 			if (economyManager.isEconomyEnabled()) {
-				MemoryStone stone = MemoryStonePlugin.getInstance().getMemoryStoneManager().getNamedMemoryStone(selectedName);
-
 				player.sendMessage(Config.getColorLang("selectwithcost", "name", selectedName, "cost",
-						economyManager.getFormattedCost(stone.getTeleportCost())));
+						economyManager.getFormattedCost(nextStone.getTeleportCost())));
 				messageSent = true;
 			}
 		}
@@ -885,26 +1406,15 @@ public class CompassManager implements Listener {
 			player.sendMessage(Config.getColorLang("select", "name", selectedName));
 		}
 
-		selected.put(player.getName(), selectedName);
+		select(player.getName(), selectedName);
+		plugin.getStorage().saveSelected(player.getName(), selectedName);
 		event.setCancelled(true);
 	}
 
 	private boolean withinDistanceOfAnyStone(Player player, int minProximityToStoneForTeleport) {
-		minProximityToStoneForTeleport = minProximityToStoneForTeleport * minProximityToStoneForTeleport;
-		for (MemoryStone stone : plugin.getMemoryStoneManager().getStones()) {
-			if (stone.getSign() == null) {
-				continue;
-			}
-
-			if (!stone.getSign().getWorld().getName().equals(player.getWorld().getName())) {
-				continue;
-			}
-
-			if (player.getLocation().distanceSquared(stone.getSign().getBlock().getLocation()) < minProximityToStoneForTeleport) {
-				return true;
-			}
-		}
-		return false;
+		Location location = player.getLocation();
+		return plugin.getMemoryStoneManager().isSignWithin(location.getWorld().getName(), location.getX(), location.getY(),
+				location.getZ(), minProximityToStoneForTeleport);
 	}
 
 	private void tryTeleport(Player p, ItemStack item, int maxUses, int itemIndex, String name) throws IOException {
@@ -926,12 +1436,20 @@ public class CompassManager implements Listener {
 
 	@EventHandler
 	public void onPlayerMove(PlayerMoveEvent event) throws IOException {
-		Teleport teleport = getTeleport(event.getPlayer());
-		if (teleport.started) {
+		if (sampler != null) {
+			return;
+		}
+
+		PlayerSession session = getSession(event.getPlayer());
+		if (session == null) {
+			return;
+		}
+
+		if (session.isCasting()) {
 			if ((event.getFrom().getBlockX() != event.getTo().getBlockX()) || (event.getFrom().getBlockY() != event.getTo().getBlockY())
 					|| (event.getFrom().getBlockZ() != event.getTo().getBlockZ())) {
 
-				cancelTeleport(event.getPlayer());
+				cancelTeleport(session);
 			}
 		}
 
@@ -939,16 +1457,50 @@ public class CompassManager implements Listener {
 			return;
 		}
 
-		Player player = event.getPlayer();
-		Interference interference = interferences.get(player.getName());
-		if (interference == null) {
-			interference = new Interference();
-			interferences.put(player.getName(), interference);
+		updateInterference(session, event.getTo());
+	}
+
+	void updateInterference(PlayerSession session, Location to) throws IOException {
+		if (!session.interference.isTooClose(to)) {
+			session.interference.update(session.player, to);
 		}
+	}
 
-		if (!interference.isTooClose(event.getTo())) {
-			interference.update(player, event);
+	/*
+	 * Whether a player has a compass is only looked at again when their
+	 * inventory could have changed (or every few seconds, for the changes
+	 * that don't come with an event).
+	 */
+	private void compassChanged(HumanEntity entity) {
+		PlayerSession session = sessions.get(entity.getUniqueId());
+		if (session != null) {
+			session.interference.compassChanged();
 		}
 	}
 
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onInventoryClick(InventoryClickEvent event) {
+		compassChanged(event.getWhoClicked());
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onInventoryClose(InventoryCloseEvent event) {
+		compassChanged(event.getPlayer());
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onPlayerPickupItem(PlayerPickupItemEvent event) {
+		compassChanged(event.getPlayer());
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onPlayerDropItem(PlayerDropItemEvent event) {
+		compassChanged(event.getPlayer());
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onPlayerRespawn(PlayerRespawnEvent event) {
+		compassChanged(event.getPlayer());
+	}
+
 }
@@ -61,6 +61,17 @@ public class Config {
 		defaults.put("sortByDistance", true);
 		defaults.put("minProximityToStoneForTeleport", 0);
 		defaults.put("automaticMemorizationDistance", 0);
+		defaults.put("asyncStructureVerification", false);
+		defaults.put("movementSampling.enabled", false);
+		defaults.put("movementSampling.intervalTicks", 10);
+		defaults.put("movementSampling.playersPerTick", 50);
+		defaults.put("storage.backend", "file");
+		defaults.put("storage.url", "");
+		defaults.put("storage.format", "yaml");
+		defaults.put("storage.journalSyncTicks", 20);
+		defaults.put("storage.saveDelayTicks", 40);
+		defaults.put("storage.playerUnloadDelayTicks", 6000);
+		defaults.put("storage.journalCompactRecords", 1000);
 
 		defaults.put("stonetostone.enabled", "true");
 		defaults.put("stonetostone.item", "glowstone_dust");
@@ -91,6 +102,7 @@ public class Config {
 		defaults.put("lang.consumed", "You have worn your <material> out!");
 		defaults.put("lang.teleportingother", "Teleporting <name> to <destination>");
 		defaults.put("lang.teleportedbyother", "<name> is teleporting you to <destination>");
+		defaults.put("lang.otherbusy", "<name> is already being teleported");
 		defaults.put("lang.teleporting", "Teleporting to <destination>");
 		defaults.put("lang.noteleportzone", "You are in a no teleport zone. Cannot teleport out.");
 		defaults.put("lang.teleportitemnotfound", "You need to have a <material> to teleport");
@@ -252,6 +264,74 @@ public class Config {
 		return temp;
 	}
 
+	public static boolean isAsyncStructureVerification() {
+		return conf.getBoolean("asyncStructureVerification", false);
+	}
+
+	/**
+	 * @return Whether casting and compass interference look at where players
+	 *         are every tick, instead of on every move event.
+	 */
+	public static boolean isMovementSampling() {
+		return conf.getBoolean("movementSampling.enabled", false);
+	}
+
+	/**
+	 * @return The longest a player goes without their compass interference
+	 *         being updated, when sampling movement.
+	 */
+	public static int getMovementSamplingIntervalTicks() {
+		return Math.max(1, conf.getInt("movementSampling.intervalTicks", 10));
+	}
+
+	public static int getMovementSamplingPlayersPerTick() {
+		return Math.max(1, conf.getInt("movementSampling.playersPerTick", 50));
+	}
+
+	public static int getJournalSyncTicks() {
+		return Math.max(1, conf.getInt("storage.journalSyncTicks", 20));
+	}
+
+	/**
+	 * @return Whether structures are stored in structures.dat instead of
+	 *         structures.yml.
+	 */
+	public static boolean isBinaryStorage() {
+		return "binary".equalsIgnoreCase(conf.getString("storage.format", "yaml"));
+	}
+
+	/**
+	 * @return Whether structures and memorizations are stored in a database
+	 *         (storage.url) instead of files.
+	 */
+	public static boolean isSqlStorage() {
+		return "sqlite".equalsIgnoreCase(conf.getString("storage.backend", "file"));
+	}
+
+	/**
+	 * @return The JDBC url of the database, or an empty string for
+	 *         memorystone.db in the plugin folder.
+	 */
+	public static String getStorageUrl() {
+		return conf.getString("storage.url", "");
+	}
+
+	public static int getSaveDelayTicks() {
+		return Math.max(1, conf.getInt("storage.saveDelayTicks", 40));
+	}
+
+	/**
+	 * @return How long a player's memorizations stay loaded after they log
+	 *         out, in case they come straight back.
+	 */
+	public static int getPlayerUnloadDelayTicks() {
+		return Math.max(1, conf.getInt("storage.playerUnloadDelayTicks", 6000));
+	}
+
+	public static int getJournalCompactRecords() {
+		return conf.getInt("storage.journalCompactRecords", 1000);
+	}
+
 	public static boolean isIgnoreStructure() {
 		return conf.getBoolean("ignoreStructure", true);
 	}
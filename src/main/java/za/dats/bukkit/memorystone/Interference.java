@@ -1,13 +1,22 @@
 package za.dats.bukkit.memorystone;
 
 import java.io.IOException;
+import java.util.List;
 
 import org.bukkit.Location;
 import org.bukkit.Material;
 import org.bukkit.entity.Player;
-import org.bukkit.event.player.PlayerMoveEvent;
 
 public class Interference {
+	// The stones near a player are looked up again when they move into another
+	// cube of this size, or signs in their world are bound or unbound.
+	private static final int CELL_SHIFT = 4;
+	// From the middle of a cell to its corners, rounded up
+	private static final double CELL_REACH = 14;
+	// How often to look in the inventory for a compass, when no inventory
+	// event has said it changed
+	private static final long COMPASS_RECHECK = 5000;
+
 	boolean active;
 	Location oldLocation; // Where did the compass point to before interference
 	MemoryStone stone; // Which stone are we currently pointing to?
@@ -16,43 +25,61 @@ public class Interference {
 
 	// every move.
 
+	// The bound stones within reach of anywhere in the cell
+	private List<MemoryStone> nearby;
+	private String nearbyWorld;
+	private int cellX;
+	private int cellY;
+	private int cellZ;
+	private int nearbyRange;
+	private long signsVersion;
+
+	private boolean hasCompass;
+	private long compassChecked;
+
 	public boolean isTooClose(Location to) {
 		return false;
 	}
 
-	public void update(Player player, PlayerMoveEvent event) throws IOException {
+	/**
+	 * The player's inventory may have changed, look for a compass again.
+	 */
+	public void compassChanged() {
+		compassChecked = 0;
+	}
+
+	public void update(Player player, Location to) throws IOException {
 
 		// First check that we aren't spamming this - so check every 2 blocks
 		// worth of movement
 		// if lastposition isnt null and we havn't changed worlds and we have
 		// moved at least 2 blocks, 2^2 = 4
-		if (lastPosition != null && event.getTo().getWorld().equals(lastPosition.getWorld())
-				&& event.getTo().distanceSquared(lastPosition) < 4) {
+		if (lastPosition != null && to.getWorld().equals(lastPosition.getWorld()) && to.distanceSquared(lastPosition) < 4) {
 			return;
 		}
-		lastPosition = event.getTo();
+		lastPosition = to;
 
 		int memorizationrange = Config.getAutomaticMemorizationDistanceSquared();
 		int interferencerange = Config.getCompassToUnmemorizedStoneDistanceSquared();
+		CompassManager compassManager = MemoryStonePlugin.getInstance().getCompassManager();
 
 		MemoryStone closestStone = null;
 		MemoryStone closestMemStone = null;
 		double closestDistance = 0;
 		double closestMemDistance = 0;
-		for (MemoryStone stone : MemoryStonePlugin.getInstance().getMemoryStoneManager().getStones()) {
-			if (stone.getSign() == null) {
+		for (MemoryStone stone : getNearby(compassManager, Math.max(memorizationrange, interferencerange))) {
+			if (!stone.isBound()) {
 				continue;
 			}
 
-			if (!stone.getSign().getWorld().getName().equals(player.getWorld().getName())) {
+			if (compassManager.isMemorized(player, stone)) {
 				continue;
 			}
 
-			if (MemoryStonePlugin.getInstance().getCompassManager().isMemorized(player, stone)) {
-				continue;
-			}
-
-			double currentDistance = lastPosition.distanceSquared(stone.getSign().getBlock().getLocation());
+			double dx = lastPosition.getX() - stone.getSignX();
+			double dy = lastPosition.getY() - stone.getSignY();
+			double dz = lastPosition.getZ() - stone.getSignZ();
+			double currentDistance = dx * dx + dy * dy + dz * dz;
 			if (currentDistance < interferencerange) {
 				if ((closestStone == null) || (closestDistance > currentDistance)) {
 					closestStone = stone;
@@ -68,22 +95,17 @@ public class Interference {
 		}
 
 		if (closestMemStone != null) {
-			// has stone been memorized?
-			if (!MemoryStonePlugin.getInstance().getCompassManager().isMemorized(player, closestMemStone)) {
-
-				// check to see if the stone is free
-				if (closestMemStone.getMemorizeCost() == 0 || player.hasPermission("memorystone.usefree")) {
-					// if stone is free memorize the stone and give the player a
-					// message
-					player.sendMessage(Config.getColorLang("insidememorizationdistance", "name", closestMemStone.getName()));
-					MemoryStonePlugin.getInstance().getCompassManager().memorizeStone(player, closestMemStone);
-				}
+			// check to see if the stone is free
+			if (closestMemStone.getMemorizeCost() == 0 || player.hasPermission("memorystone.usefree")) {
+				// if stone is free memorize the stone and give the player a
+				// message
+				player.sendMessage(Config.getColorLang("insidememorizationdistance", "name", closestMemStone.getName()));
+				compassManager.memorizeStone(player, closestMemStone);
 			}
 		}
 
 		// Check that the player actually has a compass..
-		int index = player.getInventory().first(Material.COMPASS);
-		if (index == -1) {
+		if (!hasCompass(player)) {
 			// No compass.. nothing to see here, move on.
 			return;
 		}
@@ -97,8 +119,11 @@ public class Interference {
 				oldLocation = player.getCompassTarget();
 			}
 
-			stone = closestStone;
-			player.setCompassTarget(stone.getSign().getBlock().getLocation());
+			// Only tell the client when it points somewhere else
+			if (closestStone != stone) {
+				stone = closestStone;
+				player.setCompassTarget(stone.getSignLocation());
+			}
 
 			if (!active) {
 				// Interference message was not sent yet - send it
@@ -118,4 +143,40 @@ public class Interference {
 
 	}
 
-}
\ No newline at end of file
+	/*
+	 * The stones that could be in range from anywhere in the player's cell,
+	 * only looked up again when they leave it or signs in its world change.
+	 */
+	private List<MemoryStone> getNearby(CompassManager compassManager, int rangeSquared) {
+		String world = lastPosition.getWorld().getName();
+		int x = lastPosition.getBlockX() >> CELL_SHIFT;
+		int y = lastPosition.getBlockY() >> CELL_SHIFT;
+		int z = lastPosition.getBlockZ() >> CELL_SHIFT;
+		if (nearby != null && x == cellX && y == cellY && z == cellZ && world.equals(nearbyWorld) && rangeSquared == nearbyRange
+				&& signsVersion == compassManager.getSignsVersion(world)) {
+			return nearby;
+		}
+
+		cellX = x;
+		cellY = y;
+		cellZ = z;
+		nearbyWorld = world;
+		nearbyRange = rangeSquared;
+		signsVersion = compassManager.getSignsVersion(world);
+
+		double half = (1 << CELL_SHIFT) / 2.0;
+		nearby = MemoryStonePlugin.getInstance().getMemoryStoneManager().getSignsWithin(world, (x << CELL_SHIFT) + half,
+				(y << CELL_SHIFT) + half, (z << CELL_SHIFT) + half, Math.sqrt(rangeSquared) + CELL_REACH);
+		return nearby;
+	}
+
+	private boolean hasCompass(Player player) {
+		long now = System.currentTimeMillis();
+		if (now - compassChecked > COMPASS_RECHECK) {
+			hasCompass = player.getInventory().first(Material.COMPASS) != -1;
+			compassChecked = now;
+		}
+		return hasCompass;
+	}
+
+}
@@ -1,5 +1,10 @@
 package za.dats.bukkit.memorystone;
 
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
 import org.bukkit.block.Sign;
 
 import za.dats.bukkit.memorystone.util.structure.Structure;
@@ -9,14 +14,79 @@ public class MemoryStone implements Comparable<MemoryStone> {
 		MEMORYSTONE, NOTELEPORT
 	}
 
+	/**
+	 * Where players teleporting to the stone arrive: the middle of the block
+	 * in front of the sign, facing the way the sign faces. It doesn't change
+	 * once it has been worked out.
+	 */
+	public static class Arrival {
+		public final double x;
+		public final double y;
+		public final double z;
+		public final float yaw;
+		// Whether the sign gives a yaw, otherwise players keep their own
+		public final boolean facing;
+
+		Arrival(double x, double y, double z, float yaw, boolean facing) {
+			this.x = x;
+			this.y = y;
+			this.z = z;
+			this.yaw = yaw;
+			this.facing = facing;
+		}
+	}
+
+	/**
+	 * Told when a stone's sign is bound and unbound, and asked to load the
+	 * sign when it is first needed.
+	 */
+	public interface SignListener {
+		/**
+		 * The stone has been bound to the sign at getSignX(), getSignY() and
+		 * getSignZ() in getSignWorld(), which may not be loaded yet.
+		 */
+		public void signBound(MemoryStone stone);
+
+		/**
+		 * The stone is being unbound, its sign coordinates are still set.
+		 */
+		public void signUnbound(MemoryStone stone);
+
+		/**
+		 * Load the bound sign from the world, and setSign() it (or null if it
+		 * isn't there anymore).
+		 */
+		public void resolveSign(MemoryStone stone);
+	}
+
+	private final SignListener signListener;
 	private Structure structure;
 	private Sign sign;
+	// Where the sign is, known without loading its chunk
+	private boolean bound;
+	private World signWorld;
+	private int signX;
+	private int signY;
+	private int signZ;
+	// Worked out when the sign is loaded, cleared when it is unbound
+	private Arrival arrival;
 	private String name;
 	private double distanceLimit;
 	private StoneType type = StoneType.MEMORYSTONE;
 	private double teleportCost;
 	private double memorizeCost;
 
+	/**
+	 * A stone that is never bound, only good for looking stones up by name.
+	 */
+	public MemoryStone() {
+		this(null);
+	}
+
+	public MemoryStone(SignListener signListener) {
+		this.signListener = signListener;
+	}
+
 	public Structure getStructure() {
 		return structure;
 	}
@@ -44,17 +114,133 @@ public class MemoryStone implements Comparable<MemoryStone> {
 		}
 	}
 
+	/**
+	 * Get the bound sign, loading it from the world if it hasn't been yet. Use
+	 * isBound() and the sign coordinates if you don't need the sign itself.
+	 * 
+	 * @return The sign, or null if the stone isn't bound (anymore).
+	 */
 	public Sign getSign() {
+		if (sign == null && bound && signListener != null) {
+			signListener.resolveSign(this);
+		}
 		return sign;
 	}
 
 	public void setSign(Sign sign) {
 		if (sign != null) {
 			name = sign.getLine(1);
+			bind(sign.getWorld(), sign.getX(), sign.getY(), sign.getZ());
+			arrival = arrivalAt(sign);
+		} else {
+			unbind();
 		}
 		this.sign = sign;
 	}
 
+	/**
+	 * Get where players teleporting to the stone arrive, loading the sign if
+	 * it hasn't been yet.
+	 *
+	 * @return The arrival, or null if the stone isn't bound (anymore).
+	 */
+	public Arrival getArrival() {
+		if (arrival == null && bound) {
+			getSign();
+		}
+		return arrival;
+	}
+
+	private static Arrival arrivalAt(Sign sign) {
+		BlockFace front;
+		try {
+			front = ((org.bukkit.material.Sign) sign.getData()).getFacing();
+		} catch (ClassCastException e) {
+			// not a sign after all
+			return null;
+		}
+
+		double x = sign.getX() + front.getModX() + 0.5;
+		double y = sign.getY() + front.getModY();
+		double z = sign.getZ() + front.getModZ() + 0.5;
+
+		byte signData = sign.getRawData();
+		if (sign.getType() == Material.SIGN_POST) {
+			return new Arrival(x, y, z, signData < 0x8 ? signData * 22.5f + 180 : signData * 22.5f - 180, true);
+		} else if (sign.getType() == Material.WALL_SIGN) {
+			if (signData == 0x2) {// East
+				return new Arrival(x, y, z, 180, true);
+			} else if (signData == 0x3) {// West
+				return new Arrival(x, y, z, 0, true);
+			} else if (signData == 0x4) {// North
+				return new Arrival(x, y, z, 90, true);
+			} else {// South
+				return new Arrival(x, y, z, 270, true);
+			}
+		}
+		return new Arrival(x, y, z, 0, false);
+	}
+
+	/**
+	 * Bind the stone to the sign at these coordinates, without loading it.
+	 */
+	public void setSignLocation(World world, int x, int y, int z) {
+		this.sign = null;
+		bind(world, x, y, z);
+	}
+
+	private void bind(World world, int x, int y, int z) {
+		unbind();
+		this.bound = true;
+		this.signWorld = world;
+		this.signX = x;
+		this.signY = y;
+		this.signZ = z;
+		if (signListener != null) {
+			signListener.signBound(this);
+		}
+	}
+
+	private void unbind() {
+		if (bound && signListener != null) {
+			signListener.signUnbound(this);
+		}
+		this.bound = false;
+		this.signWorld = null;
+		this.arrival = null;
+	}
+
+	/**
+	 * @return Whether the stone has a sign (even if it hasn't been loaded yet).
+	 */
+	public boolean isBound() {
+		return bound;
+	}
+
+	public World getSignWorld() {
+		return signWorld;
+	}
+
+	public int getSignX() {
+		return signX;
+	}
+
+	public int getSignY() {
+		return signY;
+	}
+
+	public int getSignZ() {
+		return signZ;
+	}
+
+	public Location getSignLocation() {
+		return new Location(signWorld, signX, signY, signZ);
+	}
+
+	public boolean isSignAt(Block block) {
+		return bound && block.getX() == signX && block.getY() == signY && block.getZ() == signZ && block.getWorld().equals(signWorld);
+	}
+
 	public String getName() {
 		return name;
 	}
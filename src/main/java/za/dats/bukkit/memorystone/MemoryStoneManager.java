@@ -3,7 +3,9 @@ package za.dats.bukkit.memorystone;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -11,6 +13,7 @@ import java.util.TreeSet;
 
 import org.bukkit.Location;
 import org.bukkit.Material;
+import org.bukkit.World;
 import org.bukkit.block.Block;
 import org.bukkit.block.BlockFace;
 import org.bukkit.block.BlockState;
@@ -19,29 +22,36 @@ import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.entity.Player;
 import org.bukkit.event.Event;
 import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
 import org.bukkit.event.block.BlockBreakEvent;
 //import org.bukkit.event.block.BlockListener;
 import org.bukkit.event.block.SignChangeEvent;
+import org.bukkit.event.entity.EntityExplodeEvent;
 import org.bukkit.material.Directional;
 import org.bukkit.material.MaterialData;
 import org.bukkit.plugin.PluginManager;
 //import org.bukkit.util.config.ConfigurationNode;
 import za.dats.bukkit.memorystone.MemoryStone.StoneType;
 import za.dats.bukkit.memorystone.economy.EconomyManager;
+import za.dats.bukkit.memorystone.util.PointGrid;
+import za.dats.bukkit.memorystone.util.Records;
 import za.dats.bukkit.memorystone.util.StructureListener;
+import za.dats.bukkit.memorystone.util.ZoneGrid;
 import za.dats.bukkit.memorystone.util.structure.Rotator;
 import za.dats.bukkit.memorystone.util.structure.Structure;
 import za.dats.bukkit.memorystone.util.structure.StructureType;
 
 //public class MemoryStoneManager extends BlockListener implements StructureListener {
-public class MemoryStoneManager implements Listener, StructureListener {
+public class MemoryStoneManager implements Listener, StructureListener, MemoryStone.SignListener {
 	private final MemoryStonePlugin memoryStonePlugin;
 	private HashMap<Structure, MemoryStone> structureMap = new HashMap<Structure, MemoryStone>();
 	private HashMap<String, MemoryStone> namedMap = new HashMap<String, MemoryStone>();
 	private HashMap<String, Set<MemoryStone>> worldStones = new HashMap<String, Set<MemoryStone>>();
 	private List<MemoryStone> globalStones = new ArrayList<MemoryStone>();
 	private List<MemoryStone> noTeleportStones = new ArrayList<MemoryStone>();
+	private HashMap<String, ZoneGrid<MemoryStone>> noTeleportZones = new HashMap<String, ZoneGrid<MemoryStone>>();
+	private HashMap<String, PointGrid<MemoryStone>> signGrids = new HashMap<String, PointGrid<MemoryStone>>();
 
 	public MemoryStoneManager(MemoryStonePlugin memoryStonePlugin) {
 		this.memoryStonePlugin = memoryStonePlugin;
@@ -58,13 +68,13 @@ public class MemoryStoneManager implements Listener, StructureListener {
 	}
 
 	public void structurePlaced(Player player, Structure structure) {
-		MemoryStone stone = new MemoryStone();
+		MemoryStone stone = new MemoryStone(this);
 		stone.setStructure(structure);
 
 		structureMap.put(structure, stone);
 
 		if (stone.getType().equals(StoneType.NOTELEPORT)) {
-			noTeleportStones.add(stone);
+			addNoTeleportStone(stone);
 		}
 		player.sendMessage(Utility.color(Config.getColorLang("createConfirm", "name", structure.getStructureType().getName())));
 	}
@@ -72,7 +82,7 @@ public class MemoryStoneManager implements Listener, StructureListener {
 	public void structureDestroyed(Player player, Structure structure) {
 		MemoryStone stone = structureMap.get(structure);
 		if (stone.getType().equals(StoneType.NOTELEPORT)) {
-			noTeleportStones.remove(stone);
+			removeNoTeleportStone(stone);
 		}
 
 		if (stone.getName() != null) {
@@ -87,12 +97,11 @@ public class MemoryStoneManager implements Listener, StructureListener {
 			namedMap.remove(stone.getName());
 		}
 
-		Sign sign = stone.getSign();
-		if (sign != null) {
-			BlockState state = new Location(sign.getWorld(), sign.getX(), sign.getY(), sign.getZ()).getBlock().getState();
+		if (stone.isBound()) {
+			BlockState state = stone.getSignLocation().getBlock().getState();
 
 			if (state instanceof Sign) {
-				Sign newSign = (Sign) new Location(sign.getWorld(), sign.getX(), sign.getY(), sign.getZ()).getBlock().getState();
+				Sign newSign = (Sign) state;
 				newSign.setLine(0, Config.getColorLang("signboard"));
 				newSign.setLine(1, Config.getColorLang("broken"));
 				newSign.update(true);
@@ -102,22 +111,46 @@ public class MemoryStoneManager implements Listener, StructureListener {
 		}
 
 		structureMap.remove(structure);
-		player.sendMessage(Utility.color(Config.getColorLang("destroyed")));
+		if (player != null) {
+			player.sendMessage(Utility.color(Config.getColorLang("destroyed")));
+		}
+	}
+
+	public void structureUnloaded(Structure structure) {
+		MemoryStone stone = structureMap.remove(structure);
+		if (stone == null) {
+			return;
+		}
+
+		if (stone.getType().equals(StoneType.NOTELEPORT)) {
+			removeNoTeleportStone(stone);
+		}
+
+		if (stone.getName() != null) {
+			memoryStonePlugin.getCompassManager().stoneUnloaded(stone);
+			globalStones.remove(stone);
+			removeWorldStone(stone);
+			namedMap.remove(stone.getName());
+		}
+
+		// The sign stays as it is, the stone is bound to it again when the
+		// world is loaded.
+		stone.setSign(null);
 	}
 
 	// public void structureLoaded(Structure structure, ConfigurationNode node)
 	// {
-	public void structureLoaded(Structure structure, BkOldConfigurationNode node) {
-		MemoryStone stone = new MemoryStone();
+	public void structureLoaded(Structure structure, Map<String, Object> node) {
+		MemoryStone stone = new MemoryStone(this);
 		stone.setStructure(structure);
 
 		if (stone.getType().equals(StoneType.NOTELEPORT)) {
-			noTeleportStones.add(stone);
+			addNoTeleportStone(stone);
 		}
 
 		structureMap.put(structure, stone);
 
-		stone.setName(node.getString("name", ""));
+		stone.setName(Records.getString(node, "name", ""));
 		if (stone.getName() != null && stone.getName().length() > 0) {
 			namedMap.put(stone.getName(), stone);
 			if (stone.isGlobal()) {
@@ -125,50 +158,73 @@ public class MemoryStoneManager implements Listener, StructureListener {
 			}
 
 			addWorldStone(stone);
+			memoryStonePlugin.getCompassManager().stoneLoaded(stone);
 		}
 
 		// if (node.getProperty("teleportCost") != null) {
-		if (node.getProperty("teleportCost") != null) {
+		if (node.get("teleportCost") != null) {
 			try {
-				stone.setTeleportCost(Double.parseDouble(node.getString("teleportCost")));
+				stone.setTeleportCost(Double.parseDouble(node.get("teleportCost").toString()));
 			} catch (NumberFormatException e) {
 			}
 		}
 
 		// if (node.getProperty("memorizeCost") != null) {
-		if (node.getProperty("memorizeCost") != null) {
+		if (node.get("memorizeCost") != null) {
 			try {
-				stone.setMemorizeCost(Double.parseDouble(node.getString("memorizeCost")));
+				stone.setMemorizeCost(Double.parseDouble(node.get("memorizeCost").toString()));
 			} catch (NumberFormatException e) {
 			}
 		}
 
 		// if (node.getProperty("signx") != null) {
-		if (node.getProperty("signx") != null) {
-			try {
-				Sign newSign = (Sign) new Location(structure.getWorld(), node.getInt("signx", 0), node.getInt("signy", 0), node.getInt(
-						"signz", 0)).getBlock().getState();
-
-				// update price, if needed
-				EconomyManager economyManager = memoryStonePlugin.getEconomyManager();
-				if (economyManager.isEconomyEnabled()) {
-					newSign.setLine(2, economyManager.getFormattedCost(stone.getMemorizeCost()));
-					newSign.setLine(3, economyManager.getFormattedCost(stone.getTeleportCost()));
-				} else {
-					newSign.setLine(2, "");
-					newSign.setLine(3, "");
-				}
-				stone.setSign(newSign);
+		if (node.get("signx") != null) {
+			// The sign itself is only loaded when it is needed, so that we
+			// don't load every stone's chunk at startup.
+			stone.setSignLocation(structure.getWorld(), Records.getInt(node, "signx", 0), Records.getInt(node, "signy", 0),
+					Records.getInt(node, "signz", 0));
+		}
+	}
+
+	/**
+	 * Load the sign a stone was bound to from the world. If it isn't there
+	 * anymore, the stone is unbound and forgotten.
+	 */
+	public void resolveSign(MemoryStone stone) {
+		if (!stone.isBound()) {
+			return;
+		}
+
+		try {
+			Sign newSign = (Sign) stone.getSignLocation().getBlock().getState();
+
+			// update price, if needed
+			EconomyManager economyManager = memoryStonePlugin.getEconomyManager();
+			if (economyManager.isEconomyEnabled()) {
+				newSign.setLine(2, economyManager.getFormattedCost(stone.getMemorizeCost()));
+				newSign.setLine(3, economyManager.getFormattedCost(stone.getTeleportCost()));
+			} else {
+				newSign.setLine(2, "");
+				newSign.setLine(3, "");
+			}
+			stone.setSign(newSign);
 
-			} catch (Exception e) {
+		} catch (Exception e) {
+			String name = stone.getName();
+			stone.setSign(null);
+			if (name != null && name.length() > 0) {
+				namedMap.remove(name);
+				globalStones.remove(stone);
+				removeWorldStone(stone);
 				try {
-					memoryStonePlugin.getCompassManager().forgetStone(stone.getName(), false);
+					memoryStonePlugin.getCompassManager().forgetStone(name, false);
 				} catch (IOException e1) {
 					// TODO Auto-generated catch block
 					e1.printStackTrace();
 				}
-				stone.setName("");
 			}
+			stone.setName("");
+			memoryStonePlugin.getStructureManager().structureUpdated(stone.getStructure());
 		}
 	}
 
@@ -181,6 +237,7 @@ public class MemoryStoneManager implements Listener, StructureListener {
 		}
 
 		set.add(stone);
+		memoryStonePlugin.getCompassManager().stonesChanged();
 	}
 
 	private void removeWorldStone(MemoryStone stone) {
@@ -191,17 +248,17 @@ public class MemoryStoneManager implements Listener, StructureListener {
 		}
 
 		set.remove(stone);
+		memoryStonePlugin.getCompassManager().stonesChanged();
 	}
 
 	public void structureSaving(Structure structure, Map<String, Object> yamlMap) {
 		MemoryStone memoryStone = structureMap.get(structure);
 
 		yamlMap.put("name", memoryStone.getName());
-		if (memoryStone.getSign() != null) {
-			Sign sign = memoryStone.getSign();
-			yamlMap.put("signx", sign.getX());
-			yamlMap.put("signy", sign.getY());
-			yamlMap.put("signz", sign.getZ());
+		if (memoryStone.isBound()) {
+			yamlMap.put("signx", memoryStone.getSignX());
+			yamlMap.put("signy", memoryStone.getSignY());
+			yamlMap.put("signz", memoryStone.getSignZ());
 			yamlMap.put("teleportCost", memoryStone.getRawTeleportCost());
 			yamlMap.put("memorizeCost", memoryStone.getRawMemorizetCost());
 		}
@@ -349,21 +406,12 @@ public class MemoryStoneManager implements Listener, StructureListener {
 	}
 
 	public MemoryStone getMemoryStoneAtBlock(Block behind) {
-		Set<Structure> structuresFromBlock = memoryStonePlugin.getStructureManager().getStructuresFromBlock(behind);
-		if (structuresFromBlock == null || structuresFromBlock.size() != 1) {
+		Structure structure = memoryStonePlugin.getStructureManager().getStructureAt(behind);
+		if (structure == null) {
 			return null;
 		}
 
-		for (Structure structure : structuresFromBlock) {
-			if (!structureMap.containsKey(structure)) {
-				break;
-			}
-
-			MemoryStone result = structureMap.get(structure);
-			return result;
-		}
-
-		return null;
+		return structureMap.get(structure);
 	}
 
 	public MemoryStone getMemoryStructureBehind(Sign sign) {
@@ -375,12 +423,9 @@ public class MemoryStoneManager implements Listener, StructureListener {
 	}
 
 	public MemoryStone getMemoryStructureForSign(Sign sign) {
+		Block signBlock = sign.getBlock();
 		for (MemoryStone stone : namedMap.values()) {
-			if (stone.getSign() == null) {
-				continue; // Next to impossible.. anyway. moving along
-			}
-
-			if (sign.getBlock().equals(stone.getSign().getBlock())) {
+			if (stone.isSignAt(signBlock)) {
 				return stone;
 			}
 		}
@@ -394,6 +439,10 @@ public class MemoryStoneManager implements Listener, StructureListener {
 
 	@EventHandler
 	public void onBlockBreak(BlockBreakEvent event) throws IOException {
+		if (!memoryStonePlugin.getStructureManager().isChunkOccupied(event.getBlock())) {
+			return;
+		}
+
 		if (event.getBlock().getState() instanceof Sign) {
 			final Sign state = (Sign) event.getBlock().getState();
 			final MemoryStone stone = getMemoryStructureForSign(state);
@@ -418,8 +467,34 @@ public class MemoryStoneManager implements Listener, StructureListener {
 				globalStones.remove(stone.getName());
 				removeWorldStone(stone);
 				stone.setSign(null);
-				memoryStonePlugin.getStructureManager().saveStructures();
+				memoryStonePlugin.getStructureManager().structureUpdated(stone.getStructure());
+
+			}
+		}
+	}
+
+	/**
+	 * Explosions leave the signs of bound stones alone, like the structure
+	 * blocks. No BlockBreakEvent comes for blocks that are blown up, so the
+	 * stone would otherwise stay bound to a sign that is gone.
+	 */
+	@EventHandler(priority = EventPriority.HIGH, ignoreCancelled = true)
+	public void onEntityExplode(EntityExplodeEvent event) {
+		List<Block> blocks = event.blockList();
+		if (blocks.isEmpty()) {
+			return;
+		}
 
+		World world = blocks.get(0).getWorld();
+		PointGrid<MemoryStone> grid = signGrids.get(world.getName());
+		if (grid == null || grid.isEmpty()) {
+			return;
+		}
+
+		for (Iterator<Block> it = blocks.iterator(); it.hasNext();) {
+			Block block = it.next();
+			if (grid.anyWithin(block.getX(), block.getY(), block.getZ(), 0.5)) {
+				it.remove();
 			}
 		}
 	}
@@ -478,7 +553,7 @@ public class MemoryStoneManager implements Listener, StructureListener {
 				return;
 			}
 
-			if (stone.getSign() != null) {
+			if (stone.isBound()) {
 				event.setLine(0, Config.getColorLang("signboard"));
 				event.setLine(1, Config.getColorLang("broken"));
 				return;
@@ -532,12 +607,7 @@ public class MemoryStoneManager implements Listener, StructureListener {
 					updateSign(state);
 					Sign newSign = (Sign) new Location(state.getWorld(), state.getX(), state.getY(), state.getZ()).getBlock().getState();
 					finalStone.setSign(newSign);
-					try {
-						memoryStonePlugin.getStructureManager().saveStructures();
-					} catch (IOException e) {
-						// TODO Auto-generated catch block
-						e.printStackTrace();
-					}
+					memoryStonePlugin.getStructureManager().structureUpdated(finalStone.getStructure());
 
 				}
 			}, 2);
@@ -583,6 +653,135 @@ public class MemoryStoneManager implements Listener, StructureListener {
 		return noTeleportStones;
 	}
 
+	/**
+	 * @return The NOTELEPORT stone whose zone the location is in, or null if
+	 *         it isn't in one.
+	 */
+	public MemoryStone getNoTeleportStone(Location location) {
+		ZoneGrid<MemoryStone> grid = noTeleportZones.get(location.getWorld().getName());
+		if (grid == null) {
+			return null;
+		}
+
+		MemoryStone stone = findZone(grid.getCell(location.getX(), location.getZ()), location);
+		if (stone == null) {
+			stone = findZone(grid.getLarge(), location);
+		}
+		return stone;
+	}
+
+	private MemoryStone findZone(List<MemoryStone> stones, Location location) {
+		for (MemoryStone stone : stones) {
+			Structure structure = stone.getStructure();
+			double dx = location.getX() - structure.getRootX();
+			double dy = location.getY() - structure.getRootY();
+			double dz = location.getZ() - structure.getRootZ();
+			if (dx * dx + dy * dy + dz * dz < stone.getDistanceLimit()) {
+				return stone;
+			}
+		}
+		return null;
+	}
+
+	// ---------- Bound signs ------------------------------------
+	/*
+	 * The structure manager counts bound signs per chunk, so that block events
+	 * elsewhere can be ignored quickly, and the signs are kept in a grid for
+	 * distance lookups.
+	 */
+	public void signBound(MemoryStone stone) {
+		String worldName = stone.getSignWorld().getName();
+		memoryStonePlugin.getStructureManager().addPresence(worldName, stone.getSignX(), stone.getSignZ());
+		PointGrid<MemoryStone> grid = signGrids.get(worldName);
+		if (grid == null) {
+			grid = new PointGrid<MemoryStone>();
+			signGrids.put(worldName, grid);
+		}
+		grid.add(stone, stone.getSignX(), stone.getSignY(), stone.getSignZ());
+		memoryStonePlugin.getCompassManager().signsChanged(worldName);
+	}
+
+	public void signUnbound(MemoryStone stone) {
+		String worldName = stone.getSignWorld().getName();
+		memoryStonePlugin.getStructureManager().removePresence(worldName, stone.getSignX(), stone.getSignZ());
+		PointGrid<MemoryStone> grid = signGrids.get(worldName);
+		if (grid == null) {
+			return;
+		}
+
+		grid.remove(stone, stone.getSignX(), stone.getSignY(), stone.getSignZ());
+		if (grid.isEmpty()) {
+			signGrids.remove(worldName);
+		}
+		memoryStonePlugin.getCompassManager().signsChanged(worldName);
+	}
+
+	/**
+	 * @return Whether a stone's sign is closer than the radius to the spot.
+	 */
+	public boolean isSignWithin(String world, double x, double y, double z, double radius) {
+		PointGrid<MemoryStone> grid = signGrids.get(world);
+		return grid != null && grid.anyWithin(x, y, z, radius);
+	}
+
+	/**
+	 * @return The stones with signs closer than the radius to the spot.
+	 */
+	public List<MemoryStone> getSignsWithin(String world, double x, double y, double z, double radius) {
+		PointGrid<MemoryStone> grid = signGrids.get(world);
+		if (grid == null) {
+			return Collections.emptyList();
+		}
+		return grid.within(x, y, z, radius);
+	}
+
+	/**
+	 * @return The stones with the signs nearest to the spot (that the filter
+	 *         accepts), nearest first.
+	 */
+	public List<MemoryStone> getNearestSigns(String world, double x, double y, double z, int count,
+			PointGrid.Filter<MemoryStone> filter) {
+		PointGrid<MemoryStone> grid = signGrids.get(world);
+		if (grid == null) {
+			return Collections.emptyList();
+		}
+		return grid.nearest(x, y, z, count, filter);
+	}
+
+	private void addNoTeleportStone(MemoryStone stone) {
+		noTeleportStones.add(stone);
+
+		// Without a distance limit the zone is empty
+		if (stone.getDistanceLimit() <= 0) {
+			return;
+		}
+
+		Structure structure = stone.getStructure();
+		String worldName = structure.getWorld().getName();
+		ZoneGrid<MemoryStone> grid = noTeleportZones.get(worldName);
+		if (grid == null) {
+			grid = new ZoneGrid<MemoryStone>();
+			noTeleportZones.put(worldName, grid);
+		}
+		grid.add(stone, structure.getRootX(), structure.getRootZ(), Math.sqrt(stone.getDistanceLimit()));
+	}
+
+	private void removeNoTeleportStone(MemoryStone stone) {
+		noTeleportStones.remove(stone);
+
+		Structure structure = stone.getStructure();
+		String worldName = structure.getWorld().getName();
+		ZoneGrid<MemoryStone> grid = noTeleportZones.get(worldName);
+		if (grid == null || stone.getDistanceLimit() <= 0) {
+			return;
+		}
+
+		grid.remove(stone, structure.getRootX(), structure.getRootZ(), Math.sqrt(stone.getDistanceLimit()));
+		if (grid.isEmpty()) {
+			noTeleportZones.remove(worldName);
+		}
+	}
+
 	public Collection<MemoryStone> getStones() {
 		return namedMap.values();
 	}
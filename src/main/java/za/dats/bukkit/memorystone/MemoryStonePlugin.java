@@ -1,20 +1,38 @@
 package za.dats.bukkit.memorystone;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
 
+import org.bukkit.World;
+import org.bukkit.entity.Player;
 import org.bukkit.plugin.PluginDescriptionFile;
 import org.bukkit.plugin.PluginManager;
 import org.bukkit.plugin.java.JavaPlugin;
 import org.mcstats.Metrics;
 
 import za.dats.bukkit.memorystone.economy.EconomyManager;
+import za.dats.bukkit.memorystone.storage.FileStorage;
+import za.dats.bukkit.memorystone.storage.SqlStorage;
+import za.dats.bukkit.memorystone.storage.StorageBackend;
+import za.dats.bukkit.memorystone.storage.StorageSource;
 //import za.dats.bukkit.memorystone.ui.SpoutLocationPopupManager;
+import za.dats.bukkit.memorystone.util.BinaryStructureFile;
+import za.dats.bukkit.memorystone.util.PersistenceService;
+import za.dats.bukkit.memorystone.util.StartupPipeline;
 import za.dats.bukkit.memorystone.util.StructureManager;
+import za.dats.bukkit.memorystone.util.structure.StructureType;
 
 public class MemoryStonePlugin extends JavaPlugin {
 	private PluginDescriptionFile pdf;
 	private PluginManager pm;
-	private StructureManager structureManager = new StructureManager(this, "[MemoryStone] ");
+	private PersistenceService persistence = new PersistenceService(this, "[MemoryStone] ");
+	private StorageBackend storage;
+	private StructureManager structureManager;
 	private MemoryStoneManager memoryStoneManager = new MemoryStoneManager(this);
 	private CompassManager compassManager = new CompassManager(this);
 	// private SpoutLocationPopupManager spoutLocationPopupManager;
@@ -22,6 +40,9 @@ public class MemoryStonePlugin extends JavaPlugin {
 	private static MemoryStonePlugin instance;
 
 	public void onDisable() {
+		structureManager.saveStructures();
+		persistence.shutdown();
+		storage.close();
 	}
 
 	public void info(String log) {
@@ -34,12 +55,13 @@ public class MemoryStonePlugin extends JavaPlugin {
 
 	public void onEnable() {
 		instance = this;
-		try {
-			Config.init(this);
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
+		StartupPipeline startup = new StartupPipeline("[MemoryStone] ", 3);
+		startup.run(new StartupPipeline.Phase<Void>("config") {
+			public Void run() throws IOException {
+				Config.init(MemoryStonePlugin.this);
+				return null;
+			}
+		});
 		
 		//Try loading metrics
 		try {
@@ -54,7 +76,25 @@ public class MemoryStonePlugin extends JavaPlugin {
 
 		info(pdf.getName() + " version " + pdf.getVersion() + " is enabled!");
 
-		economyManager.loadEconomy();
+		startup.run(new StartupPipeline.Phase<Void>("economy") {
+			public Void run() {
+				economyManager.loadEconomy();
+				return null;
+			}
+		});
+
+		storage = startup.run(new StartupPipeline.Phase<StorageBackend>("open storage") {
+			public StorageBackend run() {
+				return openStorage();
+			}
+		});
+		structureManager = new StructureManager(this, storage, "[MemoryStone] ");
+		int syncTicks = Config.getJournalSyncTicks();
+		getServer().getScheduler().runTaskTimer(this, new Runnable() {
+			public void run() {
+				storage.sync();
+			}
+		}, syncTicks, syncTicks);
 
 		structureManager.addStructureListener(memoryStoneManager);
 		structureManager.registerEvents();
@@ -62,12 +102,162 @@ public class MemoryStonePlugin extends JavaPlugin {
 		memoryStoneManager.registerEvents();
 		compassManager.registerEvents();
 
+		load(startup);
+		startup.finish();
+
 		if (isSpoutEnabled()) {
 			// spoutLocationPopupManager = new SpoutLocationPopupManager(this);
 			// spoutLocationPopupManager.registerEvents();
 		}
 	}
 
+	/*
+	 * Read the structure types and the memorized stones side by side. Once the
+	 * types are set, read the structures of the loaded worlds, building each
+	 * one as it is read. Then add the structures and look up the memorized
+	 * stones on the main thread. Nothing else uses the storage until the reads
+	 * are done, as the main thread waits for them here.
+	 */
+	private void load(StartupPipeline startup) {
+		final List<World> worlds = getServer().getWorlds();
+
+		Future<List<StructureType>> typesRead = startup.submit(new StartupPipeline.Phase<List<StructureType>>(
+				"read structure types") {
+			public List<StructureType> run() {
+				return structureManager.readStructureTypesOrDefault();
+			}
+
+			public int count(List<StructureType> result) {
+				return result.size();
+			}
+		});
+
+		// only the players online (after a reload) have their memorizations
+		// loaded
+		final List<String> playerNames = new ArrayList<String>();
+		for (Player player : getServer().getOnlinePlayers()) {
+			playerNames.add(player.getName());
+		}
+		Future<List<CompassManager.PlayerMemory>> playersRead = startup.submit(new StartupPipeline.Phase<List<CompassManager.PlayerMemory>>(
+				"read memorized stones") {
+			public List<CompassManager.PlayerMemory> run() {
+				List<CompassManager.PlayerMemory> result = new ArrayList<CompassManager.PlayerMemory>();
+				for (String playerName : playerNames) {
+					result.add(compassManager.readPlayer(playerName));
+				}
+				return result;
+			}
+
+			public int count(List<CompassManager.PlayerMemory> result) {
+				return result.size();
+			}
+		});
+
+		List<StructureType> read = startup.join(typesRead);
+		final List<StructureType> types = read != null ? read : new ArrayList<StructureType>();
+		startup.run(new StartupPipeline.Phase<Void>("set structure types") {
+			public Void run() {
+				structureManager.setStructureTypes(types);
+				return null;
+			}
+		});
+
+		// Structures are built as they are read, from the types
+		Future<Map<String, StructureManager.WorldRecords>> structuresRead = startup
+				.submit(new StartupPipeline.Phase<Map<String, StructureManager.WorldRecords>>("read and build structures") {
+					public Map<String, StructureManager.WorldRecords> run() {
+						Map<String, StructureManager.WorldRecords> result = new HashMap<String, StructureManager.WorldRecords>();
+						for (World world : worlds) {
+							result.put(world.getName(), structureManager.readWorld(world));
+						}
+						return result;
+					}
+
+					public int count(Map<String, StructureManager.WorldRecords> result) {
+						int count = 0;
+						for (StructureManager.WorldRecords records : result.values()) {
+							count += records.size();
+						}
+						return count;
+					}
+				});
+
+		final Map<String, StructureManager.WorldRecords> saved = startup.join(structuresRead);
+		startup.run(new StartupPipeline.Phase<Integer>("add structures and bind signs") {
+			public Integer run() {
+				for (World world : worlds) {
+					StructureManager.WorldRecords records = saved != null ? saved.get(world.getName()) : null;
+					if (records != null) {
+						structureManager.loadWorld(world, records);
+					} else {
+						structureManager.loadWorld(world);
+					}
+				}
+				return structureManager.getStructureCount();
+			}
+
+			public int count(Integer result) {
+				return result;
+			}
+		});
+
+		final List<CompassManager.PlayerMemory> players = startup.join(playersRead);
+		startup.run(new StartupPipeline.Phase<Integer>("resolve memorized stones") {
+			public Integer run() {
+				if (players == null) {
+					return 0;
+				}
+
+				for (CompassManager.PlayerMemory memory : players) {
+					compassManager.installPlayer(memory);
+				}
+				return players.size();
+			}
+
+			public int count(Integer result) {
+				return result;
+			}
+		});
+	}
+
+	/*
+	 * The configured storage backend, or the files if the database can't be
+	 * opened.
+	 */
+	private StorageBackend openStorage() {
+		StorageSource source = new StorageSource() {
+			public void getStructures(String worldName, List<Map<String, Object>> records, List<BinaryStructureFile.Blocks> blocks) {
+				structureManager.getStructureRecords(worldName, records, blocks);
+			}
+
+			public Set<String> getMemorized(String player) {
+				return compassManager.getMemorized(player);
+			}
+
+			public String getSelected(String player) {
+				return compassManager.getSelected(player);
+			}
+		};
+
+		if (Config.isSqlStorage()) {
+			StorageBackend database = new SqlStorage(this, persistence, "[MemoryStone] ");
+			try {
+				database.open(source);
+				return database;
+			} catch (IOException e) {
+				warn("could not open the database, using the files instead: " + e.getMessage());
+			}
+		}
+
+		StorageBackend files = new FileStorage(this, persistence, "[MemoryStone] ");
+		try {
+			files.open(source);
+		} catch (IOException e) {
+			warn(e.getMessage());
+		}
+		return files;
+	}
+
 	public boolean isSpoutEnabled() {
 		if (pm.isPluginEnabled("Spout")) {
 			return true;
@@ -95,6 +285,14 @@ public class MemoryStonePlugin extends JavaPlugin {
 		return instance;
 	}
 
+	public PersistenceService getPersistence() {
+		return persistence;
+	}
+
+	public StorageBackend getStorage() {
+		return storage;
+	}
+
 	public EconomyManager getEconomyManager() {
 		return economyManager;
 	}
@@ -0,0 +1,181 @@
+package za.dats.bukkit.memorystone;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+
+/**
+ * Looks at where players are from a task that runs every tick, instead of on
+ * every PlayerMoveEvent (movementSampling.enabled).
+ *
+ * Casting players are looked at every tick, and their cast is cancelled as
+ * soon as they leave the block they started it in. Compass interference is
+ * updated for at most movementSampling.playersPerTick players a tick, each one
+ * again when they could have moved 2 blocks at the speed they went since the
+ * last time, and at least every movementSampling.intervalTicks.
+ *
+ * @author cmdrdats
+ */
+public class MovementSampler implements Runnable {
+	private static final Logger log = Logger.getLogger("Minecraft");
+	// How far a player moves between interference updates, as before
+	private static final double SAMPLE_DISTANCE = 2;
+
+	private static class Sample implements Comparable<Sample> {
+		final PlayerSession session;
+		long due;
+		long sampledAt;
+		World world;
+		double x;
+		double y;
+		double z;
+		boolean removed;
+
+		Sample(PlayerSession session, long due) {
+			this.session = session;
+			this.due = due;
+		}
+
+		public int compareTo(Sample o) {
+			return due < o.due ? -1 : (due == o.due ? 0 : 1);
+		}
+	}
+
+	private static class Cast {
+		final PlayerSession session;
+		final World world;
+		final int x;
+		final int y;
+		final int z;
+
+		Cast(PlayerSession session, Location location) {
+			this.session = session;
+			this.world = location.getWorld();
+			this.x = location.getBlockX();
+			this.y = location.getBlockY();
+			this.z = location.getBlockZ();
+		}
+	}
+
+	private final CompassManager compassManager;
+	private final PriorityQueue<Sample> queue = new PriorityQueue<Sample>();
+	private final Map<UUID, Sample> samples = new HashMap<UUID, Sample>();
+	private final List<Cast> casts = new ArrayList<Cast>();
+	private long tick;
+
+	public MovementSampler(CompassManager compassManager) {
+		this.compassManager = compassManager;
+	}
+
+	public void add(PlayerSession session) {
+		remove(session);
+		Sample sample = new Sample(session, tick + 1);
+		samples.put(session.player.getUniqueId(), sample);
+		queue.add(sample);
+	}
+
+	public void remove(PlayerSession session) {
+		Sample sample = samples.remove(session.player.getUniqueId());
+		if (sample != null) {
+			// left in the queue, it's dropped when it comes up
+			sample.removed = true;
+		}
+
+		Iterator<Cast> it = casts.iterator();
+		while (it.hasNext()) {
+			if (it.next().session == session) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * The player started casting (or being teleported) where they are now.
+	 */
+	public void castStarted(PlayerSession session) {
+		casts.add(new Cast(session, session.player.getLocation()));
+	}
+
+	public void run() {
+		tick++;
+		checkCasts();
+
+		if (Config.getCompassToUnmemorizedStoneDistanceSquared() == 0) {
+			return;
+		}
+
+		int budget = Config.getMovementSamplingPlayersPerTick();
+		while (budget > 0 && !queue.isEmpty() && queue.peek().due <= tick) {
+			Sample sample = queue.poll();
+			if (sample.removed) {
+				continue;
+			}
+
+			try {
+				sample(sample);
+			} catch (IOException e) {
+				log.warning("[MemoryStone] Could not update compass interference for " + sample.session.player.getName() + ": " + e);
+			}
+			queue.add(sample);
+			budget--;
+		}
+	}
+
+	private void checkCasts() {
+		if (casts.isEmpty()) {
+			return;
+		}
+
+		Iterator<Cast> it = casts.iterator();
+		while (it.hasNext()) {
+			Cast cast = it.next();
+			if (!cast.session.isCasting()) {
+				it.remove();
+				continue;
+			}
+
+			Location location = cast.session.player.getLocation();
+			if (location.getWorld() != cast.world || location.getBlockX() != cast.x || location.getBlockY() != cast.y
+					|| location.getBlockZ() != cast.z) {
+				it.remove();
+				compassManager.cancelTeleport(cast.session);
+			}
+		}
+	}
+
+	private void sample(Sample sample) throws IOException {
+		Location location = sample.session.player.getLocation();
+		int interval = Config.getMovementSamplingIntervalTicks();
+
+		long next = interval;
+		if (sample.world == null || location.getWorld() != sample.world) {
+			next = 1;
+		} else {
+			double dx = location.getX() - sample.x;
+			double dy = location.getY() - sample.y;
+			double dz = location.getZ() - sample.z;
+			double speed = Math.sqrt(dx * dx + dy * dy + dz * dz) / Math.max(1, tick - sample.sampledAt);
+			if (speed > 0) {
+				next = Math.max(1, Math.min(interval, (long) (SAMPLE_DISTANCE / speed)));
+			}
+		}
+
+		sample.world = location.getWorld();
+		sample.x = location.getX();
+		sample.y = location.getY();
+		sample.z = location.getZ();
+		sample.sampledAt = tick;
+		sample.due = tick + next;
+
+		compassManager.updateInterference(sample.session, location);
+	}
+}
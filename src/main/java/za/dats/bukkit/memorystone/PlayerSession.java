@@ -0,0 +1,60 @@
+package za.dats.bukkit.memorystone;
+
+import org.bukkit.entity.Player;
+
+/**
+ * What the plugin keeps about an online player while they're online: their
+ * cast, cooldowns and compass interference. Made when they join, and let go
+ * when they quit.
+ *
+ * Memorized and selected stones aren't kept here, they are loaded and saved
+ * by player name, and stay loaded for a while after the player quits.
+ *
+ * @author cmdrdats
+ */
+public class PlayerSession {
+	final Player player;
+
+	// Casting, by or on the player
+	CompassManager.Cast cast;
+
+	// Cooldowns, from System.nanoTime(), or NEVER
+	static final long NEVER = Long.MIN_VALUE;
+	long lastTeleportTime = NEVER;
+	long lastFizzleTime = NEVER;
+	long lastEventTime = NEVER;
+
+	final Interference interference = new Interference();
+
+	PlayerSession(Player player) {
+		this.player = player;
+	}
+
+	public Player getPlayer() {
+		return player;
+	}
+
+	public boolean isCasting() {
+		return cast != null;
+	}
+
+	/**
+	 * @return The milliseconds from the time to now (both from
+	 *         System.nanoTime()), or Long.MAX_VALUE if the time is NEVER.
+	 */
+	static long millisSince(long time, long now) {
+		if (time == NEVER) {
+			return Long.MAX_VALUE;
+		}
+		return (now - time) / 1000000L;
+	}
+
+	/**
+	 * @return Whether a cooldown is still running, so the session's times
+	 *         need keeping after the player quits.
+	 */
+	boolean isCoolingDown(long now) {
+		return millisSince(lastTeleportTime, now) < Config.getCooldownTime() * 1000L
+				|| millisSince(lastFizzleTime, now) < Config.getFizzleCooldownTime() * 1000L;
+	}
+}
@@ -1,7 +1,5 @@
 package za.dats.bukkit.memorystone.economy;
 
-import java.util.Map;
-
 import net.milkbowl.vault.economy.Economy;
 import net.milkbowl.vault.economy.EconomyResponse;
 import net.milkbowl.vault.economy.EconomyResponse.ResponseType;
@@ -41,16 +39,7 @@ public class EconomyManager {
 	}
 
 	private double getBuildCost(StructureType structureType) {
-		Map<String, String> meta = structureType.getMetadata();
-		double result = 0;
-		if (meta.containsKey("buildcost")) {
-			try {
-				result += Double.parseDouble(meta.get("buildcost"));
-			} catch (NumberFormatException e) {
-			}
-		}
-
-		return result;
+		return structureType.getBuildCost();
 	}
 
 	public boolean payTeleportCost(Player player, MemoryStone stone) {
@@ -0,0 +1,799 @@
+package za.dats.bukkit.memorystone.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.plugin.java.JavaPlugin;
+
+import za.dats.bukkit.memorystone.Config;
+import za.dats.bukkit.memorystone.util.BinaryStructureFile;
+import za.dats.bukkit.memorystone.util.FileUtil;
+import za.dats.bukkit.memorystone.util.PersistenceService;
+import za.dats.bukkit.memorystone.util.StructureJournal;
+import za.dats.bukkit.memorystone.util.StructureManager;
+import za.dats.bukkit.memorystone.util.YamlStreamReader;
+
+/**
+ * The files in the plugin folder (storage.backend: file).
+ *
+ * Structures are kept per world, in structures/[world].yml (or .dat, see
+ * storage.format) with a journal of the changes since it was written.
+ * Memorizations are kept per player, in players/[player].yml, which is only
+ * rewritten (within the save window) when that player's memorizations change.
+ * Destroyed stones are listed in forgotten.yml, and dropped from a player's
+ * file when it is read, instead of going through every player's file.
+ *
+ * @author cmdrdats
+ */
+public class FileStorage implements StorageBackend {
+	private static final Logger log = Logger.getLogger("Minecraft");
+
+	private final JavaPlugin plugin;
+	private final PersistenceService persistence;
+	private final String logPrefix;
+
+	private final String shards_foldername = "structures";
+	private final String players_foldername = "players";
+	private final String forgotten_filename = "forgotten.yml";
+	// Everything was in these before structures were saved per world
+	private final String legacy_structures_filename = "structures.yml";
+	private final String legacy_binary_filename = "structures.dat";
+	private final String legacy_journal_filename = "structures.journal";
+	private final String legacy_locations_filename = "locations.yml";
+
+	private final Map<String, StructureShard> shards = new HashMap<String, StructureShard>();
+	// The stores of unloaded worlds, whose last writes a reload waits for
+	private final ConcurrentMap<String, PersistenceService.Store> unloading = new ConcurrentHashMap<String, PersistenceService.Store>();
+	private StorageSource source;
+
+	// Main thread only
+	private final Set<String> dirtyPlayers = new LinkedHashSet<String>();
+	/*
+	 * Snapshots of players that haven't been written yet, so that a player who
+	 * comes straight back gets what they left with.
+	 */
+	private final ConcurrentMap<String, PlayerFile> unwritten = new ConcurrentHashMap<String, PlayerFile>();
+	/*
+	 * The stones that were forgotten, by name, with the forget sequence they
+	 * were forgotten at. A player's file has the sequence it was written at,
+	 * the stones forgotten after that are dropped when it is read. A stone
+	 * that is made again with the same name stays in here, the files written
+	 * since then keep it.
+	 */
+	private final ConcurrentMap<String, Long> forgotten = new ConcurrentHashMap<String, Long>();
+	// Main thread only
+	private long forgetSequence;
+	// The sequence forgotten.yml was last written at, by the writer thread
+	private volatile long forgottenWritten;
+
+	private final PersistenceService.Store playersStore = new PersistenceService.Store() {
+		public PersistenceService.Snapshot snapshot() {
+			return snapshotPlayers();
+		}
+	};
+
+	public FileStorage(JavaPlugin plugin, PersistenceService persistence, String logPrefix) {
+		this.plugin = plugin;
+		this.persistence = persistence;
+		this.logPrefix = logPrefix;
+	}
+
+	public void open(StorageSource source) {
+		this.source = source;
+		migrateLegacyStructures();
+		migrateLegacyLocations();
+		readForgotten();
+	}
+
+	private File getShardsFolder() {
+		return new File(this.plugin.getDataFolder(), this.shards_foldername);
+	}
+
+	// ---------- Structures -------------------------------------
+	public void loadStructures(String worldName, RecordHandler handler) {
+		// the world may have been unloaded with its last snapshot still being
+		// written, and its rotated journal still to be discarded
+		PersistenceService.Store previous = unloading.remove(worldName);
+		if (previous != null) {
+			persistence.await(previous);
+		}
+
+		final StructureShard shard = new StructureShard(getShardsFolder(), worldName, logPrefix);
+		shard.store = new PersistenceService.Store() {
+			public PersistenceService.Snapshot snapshot() {
+				return snapshotShard(shard);
+			}
+		};
+		this.shards.put(worldName, shard);
+
+		if (readStructures(shard, handler) > 0) {
+			shard.compactNeeded = true;
+		}
+	}
+
+	/**
+	 * Read a world's structures without taking charge of its files, to move
+	 * them to another backend.
+	 */
+	void importStructures(String worldName, RecordHandler handler) {
+		readStructures(new StructureShard(getShardsFolder(), worldName, logPrefix), handler);
+	}
+
+	/*
+	 * The snapshot, with the journal's changes on top of it. The journal is
+	 * read first, so that the snapshot's records can be handed over as they
+	 * are read, except the ones the journal changed. Those are handed over
+	 * afterwards as the journal left them, without their saved blocks.
+	 * 
+	 * @return The number of changes replayed from the journal.
+	 */
+	private int readStructures(StructureShard shard, final RecordHandler handler) {
+		final Map<String, Map<String, Object>> changes = new LinkedHashMap<String, Map<String, Object>>();
+		int replayed = 0;
+		try {
+			replayed = shard.journal.readChanges(changes);
+		} catch (IOException e) {
+			log.warning(logPrefix + "could not read the structure journal of " + shard.worldName + ": " + e.getMessage());
+		}
+
+		if (replayed > 0) {
+			log.info(logPrefix + "Replayed " + replayed + " journalled change(s) in " + shard.worldName);
+		}
+
+		readSnapshot(shard, new RecordHandler() {
+			public void record(String key, Map<String, Object> record, BinaryStructureFile.Blocks blocks) {
+				if (!changes.containsKey(key)) {
+					handler.record(key, record, blocks);
+				}
+			}
+		});
+
+		for (Map.Entry<String, Map<String, Object>> change : changes.entrySet()) {
+			if (change.getValue() != null) {
+				handler.record(change.getKey(), change.getValue(), null);
+			}
+		}
+		return replayed;
+	}
+
+	public void saveStructure(String worldName, String key, Map<String, Object> record, BinaryStructureFile.Blocks blocks) {
+		journal(worldName, StructureJournal.UPDATE, key, record);
+	}
+
+	public void deleteStructure(String worldName, String key) {
+		journal(worldName, StructureJournal.REMOVE, key, null);
+	}
+
+	private void journal(String worldName, byte op, String key, Map<String, Object> record) {
+		StructureShard shard = this.shards.get(worldName);
+		if (shard == null) {
+			return;
+		}
+
+		try {
+			shard.journal.append(op, key, record);
+			shard.unforced = true;
+		} catch (IOException e) {
+			log.warning(logPrefix + "could not write to the structure journal of " + worldName + ", saving everything instead: "
+					+ e.getMessage());
+			shard.compactNeeded = true;
+		}
+	}
+
+	/**
+	 * Write new snapshots of every world's structures (within the save window)
+	 * and empty their journals. Changes are journalled as they happen, so this
+	 * only needs to run now and then.
+	 */
+	public void saveStructures() {
+		for (StructureShard shard : this.shards.values()) {
+			persistence.markDirty(shard.store);
+		}
+	}
+
+	public void unloadWorld(String worldName) {
+		StructureShard shard = this.shards.get(worldName);
+		if (shard == null) {
+			return;
+		}
+
+		// The last snapshot, then nothing
+		PersistenceService.Snapshot snapshot = snapshotShard(shard);
+		this.shards.remove(worldName);
+		if (snapshot != null) {
+			persistence.execute(shard.store, snapshot);
+		}
+		final StructureShard unloaded = shard;
+		persistence.execute(shard.store, new PersistenceService.Snapshot() {
+			public void write() throws IOException {
+				unloaded.journal.close();
+			}
+		});
+		unloading.put(worldName, shard.store);
+		persistence.release(shard.store);
+	}
+
+	/*
+	 * Runs every few ticks: make the journals durable (in the background), and
+	 * replace them with new snapshots once they have grown.
+	 */
+	public void sync() {
+		int compactRecords = Config.getJournalCompactRecords();
+		for (StructureShard shard : this.shards.values()) {
+			if (shard.compactNeeded || shard.journal.getRecordCount() >= compactRecords) {
+				shard.compactNeeded = false;
+				persistence.markDirty(shard.store);
+			}
+
+			if (!shard.unforced) {
+				continue;
+			}
+
+			try {
+				shard.journal.flush();
+				shard.unforced = false;
+				persistence.execute(shard.store, shard.forceJournal);
+			} catch (IOException e) {
+				log.warning(logPrefix + "could not write to the structure journal of " + shard.worldName + ", saving everything instead: "
+						+ e.getMessage());
+				shard.compactNeeded = true;
+			}
+		}
+	}
+
+	/**
+	 * Close the journals (after the last snapshots have been written).
+	 */
+	public void close() {
+		for (StructureShard shard : this.shards.values()) {
+			try {
+				shard.journal.close();
+			} catch (IOException e) {
+				log.warning(logPrefix + "could not close the structure journal of " + shard.worldName + ": " + e.getMessage());
+			}
+		}
+	}
+
+	/*
+	 * Read the shard's snapshot in the configured format. Switching
+	 * storage.format converts the other format's snapshot.
+	 */
+	private void readSnapshot(StructureShard shard, RecordHandler handler) {
+		boolean binary = Config.isBinaryStorage();
+		File snapshotFile = binary ? shard.binaryFile : shard.yamlFile;
+		File otherFile = binary ? shard.yamlFile : shard.binaryFile;
+		if (!snapshotFile.isFile() && otherFile.isFile()) {
+			log.info(logPrefix + "Converting " + otherFile.getName() + " to " + snapshotFile.getName());
+			snapshotFile = otherFile;
+			shard.compactNeeded = true;
+		}
+
+		if (!snapshotFile.isFile()) {
+			return;
+		}
+
+		if (snapshotFile == shard.binaryFile) {
+			readBinarySnapshot(snapshotFile, handler);
+		} else {
+			readYamlSnapshot(snapshotFile, handler);
+		}
+	}
+
+	private void readBinarySnapshot(File binaryFile, RecordHandler handler) {
+		try {
+			BinaryStructureFile.read(binaryFile, handler);
+		} catch (IOException e) {
+			log.severe(logPrefix + "could not read " + binaryFile.getName() + ", keeping it as .damaged: " + e.getMessage());
+			try {
+				FileUtil.replace(binaryFile, new File(binaryFile.getPath() + ".damaged"));
+			} catch (IOException e1) {
+				log.severe(logPrefix + e1.getMessage());
+			}
+		}
+	}
+
+	private void readYamlSnapshot(File structuresFile, final RecordHandler handler) {
+		try {
+			YamlStreamReader.read(structuresFile, "structures", new YamlStreamReader.Handler() {
+				@SuppressWarnings("unchecked")
+				public void entry(String key, Object value) {
+					if (value instanceof Map) {
+						Map<String, Object> record = (Map<String, Object>) value;
+						handler.record(StructureManager.recordKey(record), record, null);
+					}
+				}
+			});
+		} catch (IOException e) {
+			// keep what was read before the error, and the file itself next
+			// to the one the next save writes.
+			log.severe(logPrefix + "could not read " + structuresFile.getName() + ", keeping it as .damaged: " + e.getMessage());
+			try {
+				FileUtil.replace(structuresFile, new File(structuresFile.getPath() + ".damaged"));
+			} catch (IOException e1) {
+				log.severe(logPrefix + e1.getMessage());
+			}
+		}
+	}
+
+	/*
+	 * Split the single structures file (and journal) of older versions into
+	 * one per world. The shards are written as YAML, they are converted when
+	 * they are loaded if need be.
+	 */
+	private void migrateLegacyStructures() {
+		File dataFolder = this.plugin.getDataFolder();
+		File legacyYaml = new File(dataFolder, this.legacy_structures_filename);
+		File legacyBinary = new File(dataFolder, this.legacy_binary_filename);
+		File legacyJournal = new File(dataFolder, this.legacy_journal_filename);
+		File legacyRotated = new File(dataFolder, this.legacy_journal_filename + ".old");
+		if (!legacyYaml.isFile() && !legacyBinary.isFile() && !legacyJournal.isFile() && !legacyRotated.isFile()) {
+			return;
+		}
+
+		final Map<String, Map<String, Object>> records = new LinkedHashMap<String, Map<String, Object>>();
+		RecordHandler collect = new RecordHandler() {
+			public void record(String key, Map<String, Object> record, BinaryStructureFile.Blocks blocks) {
+				records.put(key, record);
+			}
+		};
+		if (legacyBinary.isFile() && (Config.isBinaryStorage() || !legacyYaml.isFile())) {
+			readBinarySnapshot(legacyBinary, collect);
+		} else if (legacyYaml.isFile()) {
+			readYamlSnapshot(legacyYaml, collect);
+		}
+
+		try {
+			new StructureJournal(legacyJournal, logPrefix).replay(records);
+		} catch (IOException e) {
+			log.warning(logPrefix + "could not read " + legacyJournal.getName() + ": " + e.getMessage());
+		}
+
+		Map<String, List<Map<String, Object>>> byWorld = new LinkedHashMap<String, List<Map<String, Object>>>();
+		for (Map<String, Object> record : records.values()) {
+			String worldName = String.valueOf(record.get("world"));
+			List<Map<String, Object>> worldRecords = byWorld.get(worldName);
+			if (worldRecords == null) {
+				worldRecords = new ArrayList<Map<String, Object>>();
+				byWorld.put(worldName, worldRecords);
+			}
+			worldRecords.add(record);
+		}
+
+		try {
+			for (Map.Entry<String, List<Map<String, Object>>> world : byWorld.entrySet()) {
+				YamlConfiguration conf = new YamlConfiguration();
+				conf.set("structures", world.getValue());
+				File shardFile = new File(getShardsFolder(), world.getKey() + ".yml");
+				FileUtil.writeAtomically(shardFile, conf.saveToString().getBytes("UTF-8"));
+			}
+
+			for (File legacy : new File[] { legacyYaml, legacyBinary, legacyJournal, legacyRotated }) {
+				if (legacy.isFile()) {
+					FileUtil.replace(legacy, new File(legacy.getPath() + ".migrated"));
+				}
+			}
+		} catch (IOException e) {
+			log.severe(logPrefix + "could not split " + legacyYaml.getName() + " into worlds: " + e.getMessage());
+			return;
+		}
+
+		log.info(logPrefix + "Moved " + records.size() + " structure(s) into " + byWorld.size() + " world file(s) in "
+				+ this.shards_foldername + "/");
+	}
+
+	private PersistenceService.Snapshot snapshotShard(final StructureShard shard) {
+		if (this.shards.get(shard.worldName) != shard) {
+			// unloaded, it was saved then
+			return null;
+		}
+
+		final boolean binary = Config.isBinaryStorage();
+		final File structuresfile = binary ? shard.binaryFile : shard.yamlFile;
+		final File otherfile = binary ? shard.yamlFile : shard.binaryFile;
+
+		final List<Map<String, Object>> records = new ArrayList<Map<String, Object>>();
+		final List<BinaryStructureFile.Blocks> blocks = new ArrayList<BinaryStructureFile.Blocks>();
+		source.getStructures(shard.worldName, records, blocks);
+
+		int rotation;
+		try {
+			shard.journal.flush();
+			rotation = shard.journal.rotate();
+		} catch (IOException e) {
+			log.warning(logPrefix + "could not rotate the structure journal of " + shard.worldName + ": " + e.getMessage());
+			rotation = -1;
+		}
+
+		final int finalRotation = rotation;
+		return new PersistenceService.Snapshot() {
+			public void write() throws IOException {
+				byte[] data;
+				if (binary) {
+					data = BinaryStructureFile.write(records, blocks);
+				} else {
+					YamlConfiguration conf = new YamlConfiguration();
+					conf.set("structures", records);
+					data = conf.saveToString().getBytes("UTF-8");
+				}
+				FileUtil.writeAtomically(structuresfile, data);
+
+				// After switching formats, the other format's snapshot is out
+				// of date: keep it as a backup only.
+				if (otherfile.isFile()) {
+					FileUtil.replace(otherfile, new File(otherfile.getPath() + ".bak"));
+				}
+
+				shard.journal.discardRotated(finalRotation);
+				log.info(logPrefix + "Saved " + records.size() + " structures in " + shard.worldName);
+			}
+		};
+	}
+
+	// ---------- Memorizations ----------------------------------
+	/*
+	 * A player's memorizations, as they are in (or are going into) their file.
+	 */
+	private static final class PlayerFile {
+		final Set<String> memorized;
+		final String selected;
+		// The forget sequence the stones were up to date with
+		final long forgetSequence;
+
+		PlayerFile(Set<String> memorized, String selected, long forgetSequence) {
+			this.memorized = memorized;
+			this.selected = selected;
+			this.forgetSequence = forgetSequence;
+		}
+
+		boolean isEmpty() {
+			return memorized.isEmpty() && selected == null;
+		}
+
+		/*
+		 * @return This, if the stone isn't in it.
+		 */
+		PlayerFile without(String stoneName) {
+			if (!memorized.contains(stoneName) && !stoneName.equals(selected)) {
+				return this;
+			}
+
+			Set<String> remaining = new TreeSet<String>(memorized);
+			remaining.remove(stoneName);
+			return new PlayerFile(remaining, stoneName.equals(selected) ? null : selected, forgetSequence);
+		}
+	}
+
+	/*
+	 * Drop the stones that were forgotten after the player's file was written.
+	 */
+	private PlayerFile withoutForgotten(PlayerFile saved) {
+		PlayerFile result = saved;
+		for (String stoneName : saved.memorized) {
+			Long sequence = forgotten.get(stoneName);
+			if (sequence != null && sequence > saved.forgetSequence) {
+				result = result.without(stoneName);
+			}
+		}
+		if (saved.selected != null) {
+			Long sequence = forgotten.get(saved.selected);
+			if (sequence != null && sequence > saved.forgetSequence) {
+				result = result.without(saved.selected);
+			}
+		}
+		return result;
+	}
+
+	private File getPlayersFolder() {
+		return new File(this.plugin.getDataFolder(), this.players_foldername);
+	}
+
+	private File getPlayerFile(String player) {
+		return new File(getPlayersFolder(), player + ".yml");
+	}
+
+	public String loadPlayer(String player, Set<String> memorized) throws IOException {
+		PlayerFile saved = unwritten.get(player);
+		if (saved == null) {
+			File file = getPlayerFile(player);
+			try {
+				saved = readPlayer(file);
+			} catch (IOException e) {
+				log.severe(logPrefix + "could not read " + file.getName() + ", keeping it as .damaged: " + e.getMessage());
+				FileUtil.replace(file, new File(file.getPath() + ".damaged"));
+				return null;
+			}
+		}
+		saved = withoutForgotten(saved);
+
+		memorized.addAll(saved.memorized);
+		return saved.selected;
+	}
+
+	private static PlayerFile readPlayer(File file) throws IOException {
+		final Set<String> memorized = new TreeSet<String>();
+		final String[] selected = new String[1];
+		final long[] forgetSequence = new long[1];
+
+		Map<String, YamlStreamReader.Handler> handlers = new HashMap<String, YamlStreamReader.Handler>();
+		handlers.put("memorized", new YamlStreamReader.Handler() {
+			public void entry(String key, Object stoneName) {
+				if (stoneName != null) {
+					memorized.add(String.valueOf(stoneName));
+				}
+			}
+		});
+		handlers.put("selected", new YamlStreamReader.Handler() {
+			public void entry(String key, Object stoneName) {
+				if (stoneName != null) {
+					selected[0] = String.valueOf(stoneName);
+				}
+			}
+		});
+		handlers.put("forgetSequence", new YamlStreamReader.Handler() {
+			public void entry(String key, Object sequence) {
+				if (sequence instanceof Number) {
+					forgetSequence[0] = ((Number) sequence).longValue();
+				}
+			}
+		});
+		YamlStreamReader.read(file, handlers);
+
+		return new PlayerFile(memorized, selected[0], forgetSequence[0]);
+	}
+
+	private static void writePlayer(File file, PlayerFile saved) throws IOException {
+		if (saved.isEmpty()) {
+			if (file.exists() && !file.delete()) {
+				throw new IOException("could not delete " + file.getName());
+			}
+			return;
+		}
+
+		YamlConfiguration conf = new YamlConfiguration();
+		conf.set("memorized", new ArrayList<String>(saved.memorized));
+		if (saved.selected != null) {
+			conf.set("selected", saved.selected);
+		}
+		conf.set("forgetSequence", saved.forgetSequence);
+		FileUtil.writeAtomically(file, conf.saveToString().getBytes("UTF-8"));
+	}
+
+	/**
+	 * Read every player's file, to move them to another backend.
+	 */
+	void importMemorizations(Map<String, Set<String>> memorized, Map<String, String> selected) {
+		readForgotten();
+		File[] files = getPlayersFolder().listFiles();
+		if (files == null) {
+			return;
+		}
+
+		for (File file : files) {
+			String name = file.getName();
+			if (!name.endsWith(".yml")) {
+				continue;
+			}
+
+			try {
+				PlayerFile saved = withoutForgotten(readPlayer(file));
+				String player = name.substring(0, name.length() - ".yml".length());
+				memorized.put(player, saved.memorized);
+				if (saved.selected != null) {
+					selected.put(player, saved.selected);
+				}
+			} catch (IOException e) {
+				log.severe(logPrefix + "could not read " + name + ": " + e.getMessage());
+			}
+		}
+	}
+
+	public void saveMemorization(String player, String stoneName) {
+		playerChanged(player);
+	}
+
+	public void deleteMemorization(String player, String stoneName) {
+		playerChanged(player);
+	}
+
+	public void saveSelected(String player, String stoneName) {
+		playerChanged(player);
+	}
+
+	private void playerChanged(String player) {
+		dirtyPlayers.add(player);
+		persistence.markDirty(playersStore);
+	}
+
+	/**
+	 * Take the player's last snapshot while their memorizations are still
+	 * loaded. It is written with the next save.
+	 */
+	public void unloadPlayer(String player) {
+		if (dirtyPlayers.remove(player)) {
+			snapshotPlayer(player);
+			persistence.markDirty(playersStore);
+		}
+	}
+
+	/**
+	 * Forget the stone in the snapshots that are still to be written, and add
+	 * it to forgotten.yml (with the next save), for the files that have it to
+	 * drop it when they are read. No player's file is read or written for
+	 * this.
+	 */
+	public void forgetStone(String stoneName) {
+		forgetSequence++;
+		forgotten.put(stoneName, forgetSequence);
+
+		for (Map.Entry<String, PlayerFile> entry : unwritten.entrySet()) {
+			PlayerFile without = entry.getValue().without(stoneName);
+			if (without != entry.getValue()) {
+				// if it was written in the meantime, the stone is dropped when
+				// the file is read
+				unwritten.replace(entry.getKey(), entry.getValue(), without);
+			}
+		}
+		persistence.markDirty(playersStore);
+	}
+
+	/*
+	 * By name, as a list: stone names may have dots in them.
+	 */
+	private List<Map<String, Object>> snapshotForgotten() {
+		List<Map<String, Object>> entries = new ArrayList<Map<String, Object>>();
+		for (Map.Entry<String, Long> stone : new TreeMap<String, Long>(forgotten).entrySet()) {
+			Map<String, Object> entry = new LinkedHashMap<String, Object>();
+			entry.put("name", stone.getKey());
+			entry.put("sequence", stone.getValue());
+			entries.add(entry);
+		}
+		return entries;
+	}
+
+	private void readForgotten() {
+		File file = new File(this.plugin.getDataFolder(), this.forgotten_filename);
+		try {
+			YamlStreamReader.read(file, "forgotten", new YamlStreamReader.Handler() {
+				public void entry(String key, Object value) {
+					if (!(value instanceof Map)) {
+						return;
+					}
+
+					Map<?, ?> entry = (Map<?, ?>) value;
+					Object stoneName = entry.get("name");
+					Object sequence = entry.get("sequence");
+					if (stoneName != null && sequence instanceof Number) {
+						long forgottenAt = ((Number) sequence).longValue();
+						forgotten.put(String.valueOf(stoneName), forgottenAt);
+						forgetSequence = Math.max(forgetSequence, forgottenAt);
+					}
+				}
+			});
+		} catch (IOException e) {
+			// Without it, files could keep stones that were destroyed, but
+			// nothing is lost by going on.
+			log.severe(logPrefix + "could not read " + file.getName() + ": " + e.getMessage());
+		}
+		forgottenWritten = forgetSequence;
+	}
+
+	private void snapshotPlayer(String player) {
+		Set<String> memorized = source.getMemorized(player);
+		if (memorized != null) {
+			unwritten.put(player, new PlayerFile(memorized, source.getSelected(player), forgetSequence));
+		}
+	}
+
+	/*
+	 * Only the players whose memorizations changed are written, along with the
+	 * ones that failed to be written before.
+	 */
+	private PersistenceService.Snapshot snapshotPlayers() {
+		Iterator<String> players = dirtyPlayers.iterator();
+		while (players.hasNext()) {
+			String player = players.next();
+			// it stays dirty until the player's memorizations are loaded
+			if (source.getMemorized(player) != null) {
+				snapshotPlayer(player);
+				players.remove();
+			}
+		}
+
+		final List<Map<String, Object>> forgottenBatch = forgottenWritten < forgetSequence ? snapshotForgotten() : null;
+		if (unwritten.isEmpty() && forgottenBatch == null) {
+			return null;
+		}
+		final Map<String, PlayerFile> batch = new HashMap<String, PlayerFile>(unwritten);
+		final long sequence = forgetSequence;
+
+		return new PersistenceService.Snapshot() {
+			public void write() throws IOException {
+				// Before the files that are up to date with it
+				if (forgottenBatch != null) {
+					YamlConfiguration conf = new YamlConfiguration();
+					conf.set("forgotten", forgottenBatch);
+					FileUtil.writeAtomically(new File(plugin.getDataFolder(), forgotten_filename), conf.saveToString().getBytes("UTF-8"));
+					forgottenWritten = sequence;
+				}
+
+				IOException failed = null;
+				for (Map.Entry<String, PlayerFile> entry : batch.entrySet()) {
+					try {
+						writePlayer(getPlayerFile(entry.getKey()), entry.getValue());
+						unwritten.remove(entry.getKey(), entry.getValue());
+					} catch (IOException e) {
+						failed = e;
+					}
+				}
+
+				if (failed != null) {
+					throw failed;
+				}
+			}
+		};
+	}
+
+	/*
+	 * Split the memorizations of older versions (all in locations.yml) into a
+	 * file per player.
+	 */
+	private void migrateLegacyLocations() {
+		File file = new File(this.plugin.getDataFolder(), this.legacy_locations_filename);
+		if (!file.isFile()) {
+			return;
+		}
+
+		final Map<String, Set<String>> memorized = new HashMap<String, Set<String>>();
+		final Map<String, String> selected = new HashMap<String, String>();
+		Map<String, YamlStreamReader.Handler> handlers = new HashMap<String, YamlStreamReader.Handler>();
+		handlers.put("memorized", new YamlStreamReader.Handler() {
+			public void entry(String player, Object stones) {
+				if (stones instanceof Collection) {
+					Set<String> stoneNames = new TreeSet<String>();
+					for (Object stoneName : (Collection<?>) stones) {
+						stoneNames.add(String.valueOf(stoneName));
+					}
+					memorized.put(player, stoneNames);
+				}
+			}
+		});
+		handlers.put("selected", new YamlStreamReader.Handler() {
+			public void entry(String player, Object stoneName) {
+				if (stoneName != null) {
+					selected.put(player, String.valueOf(stoneName));
+				}
+			}
+		});
+
+		try {
+			YamlStreamReader.read(file, handlers);
+
+			Set<String> players = new TreeSet<String>(memorized.keySet());
+			players.addAll(selected.keySet());
+			for (String player : players) {
+				Set<String> stones = memorized.get(player);
+				writePlayer(getPlayerFile(player), new PlayerFile(stones != null ? stones : new TreeSet<String>(), selected.get(player), 0));
+			}
+
+			FileUtil.replace(file, new File(file.getPath() + ".migrated"));
+			log.info(logPrefix + "Split " + file.getName() + " into " + players.size() + " player file(s)");
+		} catch (IOException e) {
+			log.severe(logPrefix + "could not split " + file.getName() + " into player files: " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,744 @@
+package za.dats.bukkit.memorystone.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import org.bukkit.plugin.java.JavaPlugin;
+
+import za.dats.bukkit.memorystone.Config;
+import za.dats.bukkit.memorystone.util.BinaryStructureFile;
+import za.dats.bukkit.memorystone.util.PersistenceService;
+import za.dats.bukkit.memorystone.util.StructureJournal;
+import za.dats.bukkit.memorystone.util.StructureManager;
+
+/**
+ * An embedded SQLite database (storage.backend: sqlite), memorystone.db in the
+ * plugin folder unless storage.url says otherwise. The driver comes with
+ * CraftBukkit.
+ *
+ * Every change is one row: structures are keyed by world and root, with the
+ * stone name in an indexed column, and memorizations are a row per player and
+ * stone. Changes are queued as they happen, and written in one transaction
+ * every few ticks on the persistence thread.
+ *
+ * The first time a world is loaded (or the database is opened, for the
+ * memorizations), whatever is in the files is imported. The files are left
+ * alone.
+ *
+ * @author cmdrdats
+ */
+public class SqlStorage implements StorageBackend {
+	private static final Logger log = Logger.getLogger("Minecraft");
+
+	private static final int STRUCTURE = 1;
+	private static final int MEMORIZED = 2;
+	private static final int SELECTED = 3;
+	private static final int FORGET = 4;
+
+	private static final String[] SCHEMA = {
+			"CREATE TABLE IF NOT EXISTS structures (world VARCHAR(64) NOT NULL, x INTEGER NOT NULL, y INTEGER NOT NULL, "
+					+ "z INTEGER NOT NULL, type VARCHAR(64) NOT NULL, variant INTEGER NOT NULL, owner VARCHAR(32), "
+					+ "name VARCHAR(64), fingerprint BIGINT, blocks BLOB, fields BLOB, PRIMARY KEY (world, x, y, z))",
+			"CREATE INDEX IF NOT EXISTS structures_name ON structures (name)",
+			"CREATE TABLE IF NOT EXISTS memorized (player VARCHAR(32) NOT NULL, stone VARCHAR(64) NOT NULL, "
+					+ "PRIMARY KEY (player, stone))",
+			"CREATE INDEX IF NOT EXISTS memorized_stone ON memorized (stone)",
+			"CREATE TABLE IF NOT EXISTS selected (player VARCHAR(32) NOT NULL PRIMARY KEY, stone VARCHAR(64) NOT NULL)",
+			"CREATE TABLE IF NOT EXISTS imported (what VARCHAR(80) NOT NULL PRIMARY KEY)" };
+
+	/*
+	 * A change to one row.
+	 */
+	private static final class Change {
+		final int kind;
+		final boolean delete;
+		String world;
+		String key;
+		Map<String, Object> record;
+		BinaryStructureFile.Blocks blocks;
+		String player;
+		String stone;
+
+		Change(int kind, boolean delete) {
+			this.kind = kind;
+			this.delete = delete;
+		}
+	}
+
+	private final JavaPlugin plugin;
+	private final PersistenceService persistence;
+	private final String logPrefix;
+	private final FileStorage files;
+	private Connection connection;
+
+	/*
+	 * The changes that haven't been handed to the persistence thread yet, by
+	 * row. Only the last change of a row matters. Guarded by itself, because
+	 * failed batches come back from the persistence thread.
+	 */
+	private final Map<String, Change> pending = new LinkedHashMap<String, Change>();
+	/*
+	 * The batches handed to the persistence thread that haven't been written
+	 * yet, oldest first. Guarded by pending.
+	 */
+	private final List<Map<String, Change>> inFlight = new ArrayList<Map<String, Change>>();
+
+	private final PersistenceService.Store store = new PersistenceService.Store() {
+		public PersistenceService.Snapshot snapshot() {
+			return takeBatch();
+		}
+	};
+
+	public SqlStorage(JavaPlugin plugin, PersistenceService persistence, String logPrefix) {
+		this.plugin = plugin;
+		this.persistence = persistence;
+		this.logPrefix = logPrefix;
+		this.files = new FileStorage(plugin, persistence, logPrefix);
+	}
+
+	public void open(StorageSource source) throws IOException {
+		// older files are split up first, in case they need importing
+		files.open(source);
+
+		String url = Config.getStorageUrl();
+		if (url == null || url.length() == 0) {
+			plugin.getDataFolder().mkdirs();
+			url = "jdbc:sqlite:" + new File(plugin.getDataFolder(), "memorystone.db").getPath();
+		}
+
+		try {
+			Class.forName("org.sqlite.JDBC");
+		} catch (ClassNotFoundException e) {
+			throw new IOException("the SQLite driver is not available");
+		}
+
+		synchronized (this) {
+			try {
+				connection = DriverManager.getConnection(url);
+				Statement statement = connection.createStatement();
+				try {
+					for (String sql : SCHEMA) {
+						statement.executeUpdate(sql);
+					}
+				} finally {
+					statement.close();
+				}
+				if (!isImported("locations")) {
+					importMemorizations();
+				}
+			} catch (SQLException e) {
+				throw new IOException("could not open " + url + ": " + e.getMessage());
+			}
+		}
+
+		log.info(logPrefix + "Storing structures and memorizations in " + url);
+	}
+
+	// ---------- Structures -------------------------------------
+	public void loadStructures(String worldName, RecordHandler handler) throws IOException {
+		// the world may have been unloaded with changes still being written
+		persistence.await(store);
+
+		// and some may not have been written at all yet: they replace the
+		// rows. Nothing changes the world's structures while it is loaded.
+		Map<String, Change> unwritten = new LinkedHashMap<String, Change>();
+		synchronized (pending) {
+			for (Change change : pending.values()) {
+				if (change.kind == STRUCTURE && change.world.equals(worldName)) {
+					unwritten.put(change.key, change);
+				}
+			}
+		}
+
+		synchronized (this) {
+			try {
+				importStructures(worldName);
+				readStructures(worldName, unwritten.keySet(), handler);
+			} catch (SQLException e) {
+				throw new IOException(e.getMessage());
+			}
+		}
+
+		for (Change change : unwritten.values()) {
+			if (!change.delete) {
+				handler.record(change.key, change.record, change.blocks);
+			}
+		}
+	}
+
+	/*
+	 * Hand over the world's rows, except the skipped keys.
+	 */
+	private void readStructures(String worldName, Set<String> skipped, RecordHandler handler) throws SQLException, IOException {
+		PreparedStatement select = connection
+				.prepareStatement("SELECT x, y, z, type, variant, owner, name, fingerprint, blocks, fields FROM structures WHERE world = ?");
+		try {
+			select.setString(1, worldName);
+			ResultSet rows = select.executeQuery();
+			while (rows.next()) {
+				Map<String, Object> record = new LinkedHashMap<String, Object>();
+				int x = rows.getInt(1);
+				int y = rows.getInt(2);
+				int z = rows.getInt(3);
+				record.put("world", worldName);
+				record.put("x", x);
+				record.put("y", y);
+				record.put("z", z);
+				record.put("type", rows.getString(4));
+				record.put("variant", rows.getInt(5));
+				String owner = rows.getString(6);
+				if (owner != null) {
+					record.put("owner", owner);
+				}
+				String name = rows.getString(7);
+				if (name != null) {
+					record.put("name", name);
+				}
+				readFields(rows.getBytes(10), record);
+
+				String key = StructureManager.recordKey(worldName, x, y, z);
+				if (skipped.contains(key)) {
+					continue;
+				}
+
+				byte[] packed = rows.getBytes(9);
+				handler.record(key, record, packed != null ? new BinaryStructureFile.Blocks(rows.getLong(8), unpackBlocks(packed)) : null);
+			}
+			rows.close();
+		} finally {
+			select.close();
+		}
+	}
+
+	/*
+	 * Bring in a world's structure files, the first time the world is loaded.
+	 */
+	private void importStructures(final String worldName) throws SQLException, IOException {
+		if (isImported("world:" + worldName)) {
+			return;
+		}
+
+		final List<Change> changes = new ArrayList<Change>();
+		files.importStructures(worldName, new RecordHandler() {
+			public void record(String key, Map<String, Object> record, BinaryStructureFile.Blocks blocks) {
+				Change change = new Change(STRUCTURE, false);
+				change.world = worldName;
+				change.key = key;
+				change.record = record;
+				change.blocks = blocks;
+				changes.add(change);
+			}
+		});
+		write(changes, "world:" + worldName);
+
+		if (!changes.isEmpty()) {
+			log.info(logPrefix + "Imported " + changes.size() + " structure(s) in " + worldName + " into the database");
+		}
+	}
+
+	public void saveStructure(String worldName, String key, Map<String, Object> record, BinaryStructureFile.Blocks blocks) {
+		Change change = new Change(STRUCTURE, false);
+		change.world = worldName;
+		change.key = key;
+		change.record = record;
+		change.blocks = blocks;
+		queue("s:" + key, change);
+	}
+
+	public void deleteStructure(String worldName, String key) {
+		Change change = new Change(STRUCTURE, true);
+		change.world = worldName;
+		change.key = key;
+		queue("s:" + key, change);
+	}
+
+	/**
+	 * Rows are written as they change, this only hurries them along.
+	 */
+	public void saveStructures() {
+		sync();
+	}
+
+	public void unloadWorld(String worldName) {
+		sync();
+	}
+
+	// ---------- Memorizations ----------------------------------
+	public String loadPlayer(String player, Set<String> memorized) throws IOException {
+		String selected = null;
+		List<Change> unwritten = new ArrayList<Change>();
+		synchronized (this) {
+			try {
+				PreparedStatement select = connection.prepareStatement("SELECT stone FROM memorized WHERE player = ?");
+				try {
+					select.setString(1, player);
+					ResultSet rows = select.executeQuery();
+					while (rows.next()) {
+						memorized.add(rows.getString(1));
+					}
+					rows.close();
+				} finally {
+					select.close();
+				}
+
+				select = connection.prepareStatement("SELECT stone FROM selected WHERE player = ?");
+				try {
+					select.setString(1, player);
+					ResultSet rows = select.executeQuery();
+					if (rows.next()) {
+						selected = rows.getString(1);
+					}
+					rows.close();
+				} finally {
+					select.close();
+				}
+			} catch (SQLException e) {
+				throw new IOException(e.getMessage());
+			}
+
+			// The changes that aren't in the database yet, in order. Batches
+			// are only written while holding this, so none can be lost in
+			// between.
+			synchronized (pending) {
+				for (Map<String, Change> batch : inFlight) {
+					unwritten.addAll(batch.values());
+				}
+				unwritten.addAll(pending.values());
+			}
+		}
+
+		for (Change change : unwritten) {
+			if (change.kind == FORGET) {
+				memorized.remove(change.stone);
+				if (change.stone.equals(selected)) {
+					selected = null;
+				}
+			} else if (!player.equals(change.player)) {
+				continue;
+			} else if (change.kind == MEMORIZED) {
+				if (change.delete) {
+					memorized.remove(change.stone);
+				} else {
+					memorized.add(change.stone);
+				}
+			} else if (change.kind == SELECTED) {
+				selected = change.delete ? null : change.stone;
+			}
+		}
+		return selected;
+	}
+
+	private void importMemorizations() throws SQLException, IOException {
+		Map<String, Set<String>> memorized = new HashMap<String, Set<String>>();
+		Map<String, String> selected = new HashMap<String, String>();
+		files.importMemorizations(memorized, selected);
+
+		List<Change> changes = new ArrayList<Change>();
+		for (Map.Entry<String, Set<String>> entry : memorized.entrySet()) {
+			for (String stone : entry.getValue()) {
+				Change change = new Change(MEMORIZED, false);
+				change.player = entry.getKey();
+				change.stone = stone;
+				changes.add(change);
+			}
+		}
+		for (Map.Entry<String, String> entry : selected.entrySet()) {
+			Change change = new Change(SELECTED, entry.getValue() == null);
+			change.player = entry.getKey();
+			change.stone = entry.getValue();
+			changes.add(change);
+		}
+		write(changes, "locations");
+
+		if (!memorized.isEmpty()) {
+			log.info(logPrefix + "Imported the memorized stones of " + memorized.size() + " player(s) into the database");
+		}
+	}
+
+	public void saveMemorization(String player, String stoneName) {
+		Change change = new Change(MEMORIZED, false);
+		change.player = player;
+		change.stone = stoneName;
+		queue("m:" + player + ":" + stoneName, change);
+	}
+
+	public void deleteMemorization(String player, String stoneName) {
+		Change change = new Change(MEMORIZED, true);
+		change.player = player;
+		change.stone = stoneName;
+		queue("m:" + player + ":" + stoneName, change);
+	}
+
+	public void saveSelected(String player, String stoneName) {
+		Change change = new Change(SELECTED, stoneName == null);
+		change.player = player;
+		change.stone = stoneName;
+		queue("p:" + player, change);
+	}
+
+	/**
+	 * Rows are written as they change, there is nothing left to do.
+	 */
+	public void unloadPlayer(String player) {
+	}
+
+	public void forgetStone(String stoneName) {
+		synchronized (pending) {
+			dropStone(stoneName);
+
+			Change forget = new Change(FORGET, true);
+			forget.stone = stoneName;
+			queue("f:" + stoneName, forget);
+		}
+	}
+
+	/*
+	 * The stone's rows are about to be deleted, drop the queued changes to
+	 * them. A player who had it selected gets unselected instead. Hold pending.
+	 */
+	private void dropStone(String stoneName) {
+		List<String> unselected = new ArrayList<String>();
+		Iterator<Change> changes = pending.values().iterator();
+		while (changes.hasNext()) {
+			Change change = changes.next();
+			if ((change.kind == MEMORIZED || change.kind == SELECTED) && stoneName.equals(change.stone)) {
+				changes.remove();
+				if (change.kind == SELECTED) {
+					unselected.add(change.player);
+				}
+			}
+		}
+
+		for (String player : unselected) {
+			Change unselect = new Change(SELECTED, true);
+			unselect.player = player;
+			pending.put("p:" + player, unselect);
+		}
+	}
+
+	// ---------- Writing ----------------------------------------
+	private void queue(String row, Change change) {
+		synchronized (pending) {
+			// the row moves to the end, after whatever it depends on
+			pending.remove(row);
+			pending.put(row, change);
+		}
+	}
+
+	public void sync() {
+		PersistenceService.Snapshot batch = takeBatch();
+		if (batch != null) {
+			persistence.execute(store, batch);
+		}
+	}
+
+	private PersistenceService.Snapshot takeBatch() {
+		final Map<String, Change> batch;
+		synchronized (pending) {
+			if (pending.isEmpty()) {
+				return null;
+			}
+			batch = new LinkedHashMap<String, Change>(pending);
+			pending.clear();
+			inFlight.add(batch);
+		}
+
+		return new PersistenceService.Snapshot() {
+			public void write() throws IOException {
+				try {
+					synchronized (SqlStorage.this) {
+						try {
+							SqlStorage.this.write(batch.values(), null);
+						} finally {
+							synchronized (pending) {
+								inFlight.remove(batch);
+							}
+						}
+					}
+				} catch (SQLException e) {
+					// Put them back, unless the rows have changed again since
+					synchronized (pending) {
+						Map<String, Change> newer = new LinkedHashMap<String, Change>(pending);
+						pending.clear();
+						pending.putAll(batch);
+						for (Change change : newer.values()) {
+							if (change.kind == FORGET) {
+								dropStone(change.stone);
+							}
+						}
+						pending.putAll(newer);
+					}
+					throw new IOException("could not write " + batch.size() + " change(s) to the database: " + e.getMessage());
+				}
+			}
+		};
+	}
+
+	/*
+	 * Write the changes in one transaction, and mark what was imported with
+	 * them.
+	 */
+	private void write(Iterable<Change> changes, String imported) throws SQLException, IOException {
+		PreparedStatement upsertStructure = null;
+		PreparedStatement deleteStructure = null;
+		PreparedStatement insertMemorized = null;
+		PreparedStatement deleteMemorized = null;
+		PreparedStatement upsertSelected = null;
+		PreparedStatement deleteSelected = null;
+		PreparedStatement forgetMemorized = null;
+		PreparedStatement forgetSelected = null;
+
+		connection.setAutoCommit(false);
+		try {
+			upsertStructure = connection.prepareStatement("INSERT OR REPLACE INTO structures "
+					+ "(world, x, y, z, type, variant, owner, name, fingerprint, blocks, fields) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+			deleteStructure = connection.prepareStatement("DELETE FROM structures WHERE world = ? AND x = ? AND y = ? AND z = ?");
+			insertMemorized = connection.prepareStatement("INSERT OR IGNORE INTO memorized (player, stone) VALUES (?, ?)");
+			deleteMemorized = connection.prepareStatement("DELETE FROM memorized WHERE player = ? AND stone = ?");
+			upsertSelected = connection.prepareStatement("INSERT OR REPLACE INTO selected (player, stone) VALUES (?, ?)");
+			deleteSelected = connection.prepareStatement("DELETE FROM selected WHERE player = ?");
+			forgetMemorized = connection.prepareStatement("DELETE FROM memorized WHERE stone = ?");
+			forgetSelected = connection.prepareStatement("DELETE FROM selected WHERE stone = ?");
+
+			for (Change change : changes) {
+				switch (change.kind) {
+				case STRUCTURE:
+					if (change.delete) {
+						bindKey(deleteStructure, change.world, change.key);
+						deleteStructure.addBatch();
+					} else {
+						bindStructure(upsertStructure, change.world, change.key, change.record, change.blocks);
+						upsertStructure.addBatch();
+					}
+					break;
+				case MEMORIZED:
+					PreparedStatement memorized = change.delete ? deleteMemorized : insertMemorized;
+					memorized.setString(1, change.player);
+					memorized.setString(2, change.stone);
+					memorized.addBatch();
+					break;
+				case SELECTED:
+					if (change.delete) {
+						deleteSelected.setString(1, change.player);
+						deleteSelected.addBatch();
+					} else {
+						upsertSelected.setString(1, change.player);
+						upsertSelected.setString(2, change.stone);
+						upsertSelected.addBatch();
+					}
+					break;
+				case FORGET:
+					forgetMemorized.setString(1, change.stone);
+					forgetMemorized.addBatch();
+					forgetSelected.setString(1, change.stone);
+					forgetSelected.addBatch();
+					break;
+				}
+			}
+
+			// Forgotten stones go first, the changes to their rows that are
+			// left were queued after them. Otherwise each row has only one
+			// change, so the order of the batches doesn't matter.
+			forgetMemorized.executeBatch();
+			forgetSelected.executeBatch();
+			upsertStructure.executeBatch();
+			deleteStructure.executeBatch();
+			insertMemorized.executeBatch();
+			deleteMemorized.executeBatch();
+			upsertSelected.executeBatch();
+			deleteSelected.executeBatch();
+
+			if (imported != null) {
+				PreparedStatement mark = connection.prepareStatement("INSERT OR REPLACE INTO imported (what) VALUES (?)");
+				try {
+					mark.setString(1, imported);
+					mark.executeUpdate();
+				} finally {
+					mark.close();
+				}
+			}
+
+			connection.commit();
+		} catch (SQLException e) {
+			connection.rollback();
+			throw e;
+		} finally {
+			close(upsertStructure);
+			close(deleteStructure);
+			close(insertMemorized);
+			close(deleteMemorized);
+			close(upsertSelected);
+			close(deleteSelected);
+			close(forgetMemorized);
+			close(forgetSelected);
+			connection.setAutoCommit(true);
+		}
+	}
+
+	private boolean isImported(String what) throws SQLException {
+		PreparedStatement select = connection.prepareStatement("SELECT 1 FROM imported WHERE what = ?");
+		try {
+			select.setString(1, what);
+			ResultSet rows = select.executeQuery();
+			boolean found = rows.next();
+			rows.close();
+			return found;
+		} finally {
+			select.close();
+		}
+	}
+
+	private static void close(Statement statement) {
+		if (statement == null) {
+			return;
+		}
+
+		try {
+			statement.close();
+		} catch (SQLException e) {
+		}
+	}
+
+	/**
+	 * Write what is left, after the persistence thread has stopped.
+	 */
+	public void close() {
+		PersistenceService.Snapshot batch = takeBatch();
+		try {
+			if (batch != null) {
+				batch.write();
+			}
+		} catch (IOException e) {
+			log.severe(logPrefix + e.getMessage());
+		}
+
+		synchronized (this) {
+			if (connection == null) {
+				return;
+			}
+
+			try {
+				connection.close();
+			} catch (SQLException e) {
+				log.warning(logPrefix + "could not close the database: " + e.getMessage());
+			}
+			connection = null;
+		}
+	}
+
+	// ---------- Rows -------------------------------------------
+	private static void bindKey(PreparedStatement statement, String worldName, String key) throws SQLException {
+		// world:x:y:z, the world name may have colons in it
+		int zAt = key.lastIndexOf(':');
+		int yAt = key.lastIndexOf(':', zAt - 1);
+		int xAt = key.lastIndexOf(':', yAt - 1);
+		statement.setString(1, worldName);
+		statement.setInt(2, Integer.parseInt(key.substring(xAt + 1, yAt)));
+		statement.setInt(3, Integer.parseInt(key.substring(yAt + 1, zAt)));
+		statement.setInt(4, Integer.parseInt(key.substring(zAt + 1)));
+	}
+
+	private static void bindStructure(PreparedStatement statement, String worldName, String key, Map<String, Object> record,
+			BinaryStructureFile.Blocks blocks) throws SQLException, IOException {
+		bindKey(statement, worldName, key);
+		statement.setString(5, String.valueOf(record.get("type")));
+		Object variant = record.get("variant");
+		statement.setInt(6, variant instanceof Number ? ((Number) variant).intValue() : 0);
+		setString(statement, 7, record.get("owner"));
+		setString(statement, 8, record.get("name"));
+		if (blocks != null) {
+			statement.setLong(9, blocks.getFingerprint());
+			statement.setBytes(10, packBlocks(blocks.getPacked()));
+		} else {
+			statement.setNull(9, Types.BIGINT);
+			statement.setNull(10, Types.BLOB);
+		}
+		statement.setBytes(11, writeFields(record));
+	}
+
+	private static void setString(PreparedStatement statement, int index, Object value) throws SQLException {
+		if (value == null) {
+			statement.setNull(index, Types.VARCHAR);
+		} else {
+			statement.setString(index, value.toString());
+		}
+	}
+
+	private static boolean isColumn(String field) {
+		return field.equals("world") || field.equals("x") || field.equals("y") || field.equals("z") || field.equals("type")
+				|| field.equals("variant") || field.equals("owner") || field.equals("name");
+	}
+
+	/*
+	 * The rest of the record's fields, typed as in the structure journal.
+	 */
+	private static byte[] writeFields(Map<String, Object> record) throws IOException {
+		List<String> fields = new ArrayList<String>();
+		for (String field : record.keySet()) {
+			if (!isColumn(field)) {
+				fields.add(field);
+			}
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeShort(fields.size());
+		for (String field : fields) {
+			out.writeUTF(field);
+			StructureJournal.writeValue(out, record.get(field));
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private static void readFields(byte[] data, Map<String, Object> record) throws IOException {
+		if (data == null) {
+			return;
+		}
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		int count = in.readShort();
+		for (int i = 0; i < count; i++) {
+			String field = in.readUTF();
+			record.put(field, StructureJournal.readValue(in));
+		}
+	}
+
+	private static byte[] packBlocks(long[] packed) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(packed.length * 8);
+		DataOutputStream out = new DataOutputStream(bytes);
+		for (long block : packed) {
+			out.writeLong(block);
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private static long[] unpackBlocks(byte[] data) throws IOException {
+		long[] packed = new long[data.length / 8];
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		for (int i = 0; i < packed.length; i++) {
+			packed[i] = in.readLong();
+		}
+		return packed;
+	}
+}
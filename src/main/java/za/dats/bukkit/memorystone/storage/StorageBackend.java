@@ -0,0 +1,127 @@
+package za.dats.bukkit.memorystone.storage;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+
+import za.dats.bukkit.memorystone.util.BinaryStructureFile;
+
+/**
+ * Where structures and memorizations are kept (storage.backend).
+ * 
+ * Structures are records as they would be in a structures file: world, x, y,
+ * z, type, variant, rotation, owner and whatever the structure listeners add
+ * to them (a stone's name, sign and costs). Records are keyed by
+ * StructureManager.recordKey(). Memorizations are the stones each player has
+ * memorized, and the stone each player has selected, by stone name.
+ * 
+ * Changes are handed over one row at a time as they happen. A backend may
+ * batch them up, but has to make them durable in the background (sync() is
+ * called every few ticks), and everything has to be on disk once close()
+ * returns. All methods are called on the main thread, except loadPlayer() (and
+ * loadStructures() while the plugin is being enabled, when the main thread
+ * waits for it).
+ * 
+ * A player's memorizations are only loaded while they are online, and for a
+ * while after they leave.
+ * 
+ * @author cmdrdats
+ */
+public interface StorageBackend {
+	/**
+	 * Gets a world's saved structures one at a time, as they are read.
+	 */
+	public interface RecordHandler {
+		/**
+		 * @param record
+		 *            The whole record.
+		 * @param blocks
+		 *            The structure's saved blocks, or null. These are only used
+		 *            while their fingerprint matches.
+		 */
+		public void record(String key, Map<String, Object> record, BinaryStructureFile.Blocks blocks);
+	}
+
+	/**
+	 * Get ready to load and save, when the plugin is enabled.
+	 * 
+	 * @param source
+	 *            The loaded data, for backends that save all of it at once.
+	 */
+	public void open(StorageSource source) throws IOException;
+
+	/**
+	 * Read a world's structures, handing each one over as it is read. Each
+	 * key is handed over once, with the record as it was last saved.
+	 */
+	public void loadStructures(String worldName, RecordHandler handler) throws IOException;
+
+	/**
+	 * A structure was added or changed.
+	 * 
+	 * @param record
+	 *            The whole record.
+	 * @param blocks
+	 *            The structure's blocks.
+	 */
+	public void saveStructure(String worldName, String key, Map<String, Object> record, BinaryStructureFile.Blocks blocks);
+
+	public void deleteStructure(String worldName, String key);
+
+	/**
+	 * Save everything about the loaded worlds' structures within the save
+	 * window, if that means anything to the backend.
+	 */
+	public void saveStructures();
+
+	/**
+	 * A world was unloaded, its structures won't change until it is loaded
+	 * again.
+	 */
+	public void unloadWorld(String worldName);
+
+	/**
+	 * Read a player's memorizations, when they log in. This is called off the
+	 * main thread, and may be called while the backend is saving.
+	 * 
+	 * @param memorized
+	 *            Filled with the names of the stones the player memorized.
+	 * @return The name of the stone the player selected, or null.
+	 */
+	public String loadPlayer(String player, Set<String> memorized) throws IOException;
+
+	/**
+	 * The player's memorizations are about to be let go of, a while after they
+	 * logged out. They are still there to be saved one last time.
+	 */
+	public void unloadPlayer(String player);
+
+	public void saveMemorization(String player, String stoneName);
+
+	public void deleteMemorization(String player, String stoneName);
+
+	/**
+	 * @param stoneName
+	 *            The selected stone, or null if the player has none selected.
+	 */
+	public void saveSelected(String player, String stoneName);
+
+	/**
+	 * A stone was destroyed: forget it for every player, whether their
+	 * memorizations are loaded or not. This is called on the main thread, and
+	 * shouldn't have to go through every player that was ever saved.
+	 */
+	public void forgetStone(String stoneName);
+
+	/**
+	 * Called every few ticks (storage.journalSyncTicks): make the changes so
+	 * far durable, in the background.
+	 */
+	public void sync();
+
+	/**
+	 * Write whatever is left and let go of the files, when the plugin is
+	 * disabled (after the PersistenceService has been shut down).
+	 */
+	public void close();
+}
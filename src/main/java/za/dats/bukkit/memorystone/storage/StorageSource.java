@@ -0,0 +1,34 @@
+package za.dats.bukkit.memorystone.storage;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import za.dats.bukkit.memorystone.util.BinaryStructureFile;
+
+/**
+ * The loaded data, for storage backends that save more than a row at a time.
+ * 
+ * @author cmdrdats
+ */
+public interface StorageSource {
+	/**
+	 * Copy the records of a world's structures, with their blocks in the same
+	 * order. Main thread only.
+	 */
+	public void getStructures(String worldName, List<Map<String, Object>> records, List<BinaryStructureFile.Blocks> blocks);
+
+	/**
+	 * Copy the names of the stones a player memorized, including the ones in
+	 * worlds that aren't loaded. Main thread only.
+	 * 
+	 * @return The names, or null if the player's memorizations aren't loaded.
+	 */
+	public Set<String> getMemorized(String player);
+
+	/**
+	 * @return The name of the stone the player selected, or null. Main thread
+	 *         only.
+	 */
+	public String getSelected(String player);
+}
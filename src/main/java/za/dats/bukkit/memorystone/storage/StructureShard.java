@@ -0,0 +1,39 @@
+package za.dats.bukkit.memorystone.storage;
+
+import java.io.File;
+import java.io.IOException;
+
+import za.dats.bukkit.memorystone.util.PersistenceService;
+import za.dats.bukkit.memorystone.util.StructureJournal;
+
+/**
+ * The saved structures of one world: its snapshot (structures/[world].yml or
+ * structures/[world].dat) and its journal. Each shard is loaded with its world,
+ * and saved on its own.
+ *
+ * @author cmdrdats
+ */
+class StructureShard {
+	final String worldName;
+	final File yamlFile;
+	final File binaryFile;
+	final StructureJournal journal;
+
+	boolean compactNeeded;
+	boolean unforced;
+
+	PersistenceService.Store store;
+
+	final PersistenceService.Snapshot forceJournal = new PersistenceService.Snapshot() {
+		public void write() throws IOException {
+			journal.force();
+		}
+	};
+
+	StructureShard(File folder, String worldName, String logPrefix) {
+		this.worldName = worldName;
+		this.yamlFile = new File(folder, worldName + ".yml");
+		this.binaryFile = new File(folder, worldName + ".dat");
+		this.journal = new StructureJournal(new File(folder, worldName + ".journal"), logPrefix);
+	}
+}
@@ -0,0 +1,234 @@
+package za.dats.bukkit.memorystone.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import za.dats.bukkit.memorystone.storage.StorageBackend;
+
+/**
+ * The binary alternative to structures.yml (storage.format: binary).
+ *
+ * The file is a header (magic, version, payload length and a CRC32 of the
+ * payload) and the payload: a table of every string used (worlds, types,
+ * owners and field names), followed by the structures. Each structure is its
+ * world, type, owner, orientation, root coordinates, the packed coordinates of
+ * its blocks (with a fingerprint of the pattern they were made from, so they
+ * can be used without walking the pattern again), and the rest of its fields.
+ *
+ * The whole file is read in one go.
+ *
+ * @author cmdrdats
+ */
+public class BinaryStructureFile {
+	private static final int MAGIC = 0x4D535342; // MSSB
+	private static final short VERSION = 1;
+
+	/**
+	 * The blocks a structure was saved with.
+	 */
+	public static final class Blocks {
+		private final long fingerprint;
+		private final long[] packed;
+
+		public Blocks(long fingerprint, long[] packed) {
+			this.fingerprint = fingerprint;
+			this.packed = packed;
+		}
+
+		/**
+		 * @return The fingerprint of the pattern the blocks were made from.
+		 */
+		public long getFingerprint() {
+			return fingerprint;
+		}
+
+		/**
+		 * @return The block coordinates, packed by StructureManager.packBlock.
+		 */
+		public long[] getPacked() {
+			return packed;
+		}
+	}
+
+	private BinaryStructureFile() {
+	}
+
+	/**
+	 * @param records
+	 *            The structures, as for structures.yml (world, x, y, z, type,
+	 *            variant, rotation, owner and whatever the listeners added).
+	 * @param blocks
+	 *            The blocks of each structure, in the same order.
+	 */
+	public static byte[] write(List<Map<String, Object>> records, List<Blocks> blocks) throws IOException {
+		Map<String, Integer> strings = new LinkedHashMap<String, Integer>();
+		ByteArrayOutputStream body = new ByteArrayOutputStream(64 + records.size() * 128);
+		DataOutputStream out = new DataOutputStream(body);
+
+		out.writeInt(records.size());
+		for (int i = 0; i < records.size(); i++) {
+			Map<String, Object> record = records.get(i);
+			Blocks recordBlocks = blocks.get(i);
+
+			out.writeInt(intern(strings, (String) record.get("world")));
+			out.writeInt(intern(strings, (String) record.get("type")));
+			out.writeInt(intern(strings, (String) record.get("owner")));
+			out.writeInt(getInt(record, "variant"));
+			out.writeInt(getInt(record, "x"));
+			out.writeInt(getInt(record, "y"));
+			out.writeInt(getInt(record, "z"));
+
+			out.writeLong(recordBlocks.fingerprint);
+			out.writeInt(recordBlocks.packed.length);
+			for (long block : recordBlocks.packed) {
+				out.writeLong(block);
+			}
+
+			List<String> fields = new ArrayList<String>();
+			for (String field : record.keySet()) {
+				if (!isColumn(field)) {
+					fields.add(field);
+				}
+			}
+			out.writeShort(fields.size());
+			for (String field : fields) {
+				out.writeInt(intern(strings, field));
+				StructureJournal.writeValue(out, record.get(field));
+			}
+		}
+		out.flush();
+
+		ByteArrayOutputStream payload = new ByteArrayOutputStream(body.size() + strings.size() * 16);
+		DataOutputStream payloadOut = new DataOutputStream(payload);
+		payloadOut.writeInt(strings.size());
+		for (String string : strings.keySet()) {
+			payloadOut.writeUTF(string);
+		}
+		body.writeTo(payloadOut);
+		payloadOut.flush();
+		byte[] data = payload.toByteArray();
+
+		CRC32 crc = new CRC32();
+		crc.update(data);
+
+		ByteArrayOutputStream file = new ByteArrayOutputStream(data.length + 14);
+		DataOutputStream fileOut = new DataOutputStream(file);
+		fileOut.writeInt(MAGIC);
+		fileOut.writeShort(VERSION);
+		fileOut.writeInt(data.length);
+		fileOut.writeInt((int) crc.getValue());
+		fileOut.write(data);
+		fileOut.flush();
+		return file.toByteArray();
+	}
+
+	/**
+	 * Read the structures as records as they would be in structures.yml, and
+	 * hand each one over with its saved blocks. The file's checksum is checked
+	 * before anything is handed over.
+	 */
+	public static void read(File file, StorageBackend.RecordHandler handler) throws IOException {
+		byte[] contents;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			contents = new byte[(int) raf.length()];
+			raf.readFully(contents);
+		} finally {
+			raf.close();
+		}
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(contents));
+		if (contents.length < 14 || in.readInt() != MAGIC) {
+			throw new IOException(file.getName() + " is not a structure file");
+		}
+
+		short version = in.readShort();
+		if (version != VERSION) {
+			throw new IOException(file.getName() + " has unknown version " + version);
+		}
+
+		int length = in.readInt();
+		long checksum = in.readInt() & 0xFFFFFFFFL;
+		if (length != contents.length - 14) {
+			throw new IOException(file.getName() + " is truncated");
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(contents, 14, length);
+		if (crc.getValue() != checksum) {
+			throw new IOException(file.getName() + " is damaged");
+		}
+
+		String[] strings = new String[in.readInt()];
+		for (int i = 0; i < strings.length; i++) {
+			strings[i] = in.readUTF();
+		}
+
+		int count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			Map<String, Object> record = new HashMap<String, Object>();
+			String world = strings[in.readInt()];
+			record.put("world", world);
+			record.put("type", strings[in.readInt()]);
+			int owner = in.readInt();
+			if (owner >= 0) {
+				record.put("owner", strings[owner]);
+			}
+			record.put("variant", in.readInt());
+			int x = in.readInt();
+			int y = in.readInt();
+			int z = in.readInt();
+			record.put("x", x);
+			record.put("y", y);
+			record.put("z", z);
+
+			long fingerprint = in.readLong();
+			long[] packed = new long[in.readInt()];
+			for (int j = 0; j < packed.length; j++) {
+				packed[j] = in.readLong();
+			}
+
+			int fields = in.readShort();
+			for (int j = 0; j < fields; j++) {
+				String field = strings[in.readInt()];
+				record.put(field, StructureJournal.readValue(in));
+			}
+
+			handler.record(StructureManager.recordKey(world, x, y, z), record, new Blocks(fingerprint, packed));
+		}
+	}
+
+	private static boolean isColumn(String field) {
+		return field.equals("world") || field.equals("type") || field.equals("owner") || field.equals("variant") || field.equals("x")
+				|| field.equals("y") || field.equals("z");
+	}
+
+	private static int intern(Map<String, Integer> strings, String string) {
+		if (string == null) {
+			return -1;
+		}
+
+		Integer index = strings.get(string);
+		if (index == null) {
+			index = strings.size();
+			strings.put(string, index);
+		}
+		return index;
+	}
+
+	private static int getInt(Map<String, Object> record, String field) {
+		Object value = record.get(field);
+		return value instanceof Number ? ((Number) value).intValue() : 0;
+	}
+}
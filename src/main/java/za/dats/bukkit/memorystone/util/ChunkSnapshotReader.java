@@ -0,0 +1,77 @@
+package za.dats.bukkit.memorystone.util;
+
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.World;
+
+import za.dats.bukkit.memorystone.util.structure.StructureMatcher;
+
+/**
+ * Reads block types from snapshots of a rectangle of chunks, so that
+ * structures can be verified off the main thread.
+ */
+public class ChunkSnapshotReader implements StructureMatcher.BlockReader {
+	private final ChunkSnapshot[] snapshots;
+	private final int minChunkX;
+	private final int minChunkZ;
+	private final int width;
+	private final int depth;
+	private final int maxHeight;
+
+	private ChunkSnapshotReader(ChunkSnapshot[] snapshots, int minChunkX, int minChunkZ, int width, int depth, int maxHeight) {
+		this.snapshots = snapshots;
+		this.minChunkX = minChunkX;
+		this.minChunkZ = minChunkZ;
+		this.width = width;
+		this.depth = depth;
+		this.maxHeight = maxHeight;
+	}
+
+	/**
+	 * Capture every chunk touching the given block range. This has to be called
+	 * on the main thread.
+	 * 
+	 * @return The reader, or null if any of the chunks isn't loaded.
+	 */
+	public static ChunkSnapshotReader capture(World world, int minX, int maxX, int minZ, int maxZ) {
+		int minChunkX = minX >> 4;
+		int maxChunkX = maxX >> 4;
+		int minChunkZ = minZ >> 4;
+		int maxChunkZ = maxZ >> 4;
+
+		for (int chunkX = minChunkX; chunkX <= maxChunkX; chunkX++) {
+			for (int chunkZ = minChunkZ; chunkZ <= maxChunkZ; chunkZ++) {
+				if (!world.isChunkLoaded(chunkX, chunkZ)) {
+					return null;
+				}
+			}
+		}
+
+		int width = maxChunkX - minChunkX + 1;
+		int depth = maxChunkZ - minChunkZ + 1;
+		ChunkSnapshot[] snapshots = new ChunkSnapshot[width * depth];
+		for (int chunkX = minChunkX; chunkX <= maxChunkX; chunkX++) {
+			for (int chunkZ = minChunkZ; chunkZ <= maxChunkZ; chunkZ++) {
+				// we only need block types, skip the height map and biomes
+				snapshots[(chunkX - minChunkX) * depth + (chunkZ - minChunkZ)] = world.getChunkAt(chunkX, chunkZ).getChunkSnapshot(
+						false, false, false);
+			}
+		}
+
+		return new ChunkSnapshotReader(snapshots, minChunkX, minChunkZ, width, depth, world.getMaxHeight());
+	}
+
+	public int getTypeId(int x, int y, int z) {
+		if (y < 0 || y >= maxHeight) {
+			// outside the world is air
+			return 0;
+		}
+
+		int chunkX = (x >> 4) - minChunkX;
+		int chunkZ = (z >> 4) - minChunkZ;
+		if (chunkX < 0 || chunkX >= width || chunkZ < 0 || chunkZ >= depth) {
+			return -1;
+		}
+
+		return snapshots[chunkX * depth + chunkZ].getBlockTypeId(x & 15, y, z & 15);
+	}
+}
@@ -0,0 +1,77 @@
+package za.dats.bukkit.memorystone.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * @author cmdrdats
+ */
+public class FileUtil {
+	private FileUtil() {
+	}
+
+	/**
+	 * Write the data to a temporary file next to the target and rename it over
+	 * the target, so a crash while writing never leaves a half written file
+	 * behind.
+	 */
+	public static void writeAtomically(File file, byte[] data) throws IOException {
+		File parent = file.getParentFile();
+		if (parent != null) {
+			parent.mkdirs();
+		}
+
+		File temp = new File(parent, file.getName() + ".tmp");
+		FileOutputStream out = new FileOutputStream(temp);
+		try {
+			out.write(data);
+			out.flush();
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+
+		replace(temp, file);
+	}
+
+	/**
+	 * Rename one file over another. Where renaming can't replace an existing
+	 * file (Windows), the target is deleted first.
+	 */
+	public static void replace(File source, File target) throws IOException {
+		if (source.renameTo(target)) {
+			return;
+		}
+
+		if (target.exists() && !target.delete()) {
+			throw new IOException("could not replace " + target.getName());
+		}
+
+		if (!source.renameTo(target)) {
+			throw new IOException("could not rename " + source.getName() + " to " + target.getName());
+		}
+	}
+
+	/**
+	 * Add the contents of one file to the end of another.
+	 */
+	public static void append(File source, File target) throws IOException {
+		FileInputStream in = new FileInputStream(source);
+		try {
+			FileOutputStream out = new FileOutputStream(target, true);
+			try {
+				byte[] buffer = new byte[8192];
+				int read;
+				while ((read = in.read(buffer)) != -1) {
+					out.write(buffer, 0, read);
+				}
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,161 @@
+package za.dats.bukkit.memorystone.util;
+
+/**
+ * An open addressing (linear probing) hash map from primitive longs to
+ * primitive ints, so that lookups never allocate.
+ *
+ * Zero is used to mark empty slots, so zero can't be stored as a value: get()
+ * returns 0 for missing keys.
+ */
+public class LongIntHashMap {
+	private static final int MIN_CAPACITY = 16;
+
+	private long[] keys;
+	private int[] values;
+	private int mask;
+	private int size;
+
+	public LongIntHashMap() {
+		this(MIN_CAPACITY);
+	}
+
+	public LongIntHashMap(int expectedSize) {
+		int capacity = MIN_CAPACITY;
+		while (capacity < expectedSize * 2) {
+			capacity <<= 1;
+		}
+		allocate(capacity);
+	}
+
+	private void allocate(int capacity) {
+		this.keys = new long[capacity];
+		this.values = new int[capacity];
+		this.mask = capacity - 1;
+	}
+
+	private static int hash(long key) {
+		// murmur3 finalizer, packed coordinates are far from random
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+
+	private int slot(long key) {
+		int slot = hash(key) & mask;
+		while (values[slot] != 0 && keys[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	/**
+	 * @return The value for the key, or 0 if there is none.
+	 */
+	public int get(long key) {
+		return values[slot(key)];
+	}
+
+	public boolean containsKey(long key) {
+		return values[slot(key)] != 0;
+	}
+
+	/**
+	 * @param value
+	 *            The value, which may not be 0.
+	 * @return The previous value for the key, or 0 if there was none.
+	 */
+	public int put(long key, int value) {
+		if (value == 0) {
+			throw new IllegalArgumentException("0 can't be stored in a LongIntHashMap");
+		}
+
+		int slot = slot(key);
+		int previous = values[slot];
+		keys[slot] = key;
+		values[slot] = value;
+
+		if (previous == 0) {
+			size++;
+			if (size * 4 > values.length * 3) {
+				rehash(values.length << 1);
+			}
+		}
+		return previous;
+	}
+
+	/**
+	 * @return The value that was removed, or 0 if there was none.
+	 */
+	public int remove(long key) {
+		int slot = slot(key);
+		int previous = values[slot];
+		if (previous == 0) {
+			return 0;
+		}
+
+		values[slot] = 0;
+		size--;
+
+		// Shift the rest of the cluster back so that lookups don't stop at the
+		// hole we just made.
+		int hole = slot;
+		int current = (slot + 1) & mask;
+		while (values[current] != 0) {
+			int home = hash(keys[current]) & mask;
+			boolean move = (hole <= current) ? (home <= hole || home > current) : (home <= hole && home > current);
+			if (move) {
+				keys[hole] = keys[current];
+				values[hole] = values[current];
+				values[current] = 0;
+				hole = current;
+			}
+			current = (current + 1) & mask;
+		}
+
+		return previous;
+	}
+
+	/**
+	 * Add to the value for a key, removing the key when it reaches 0.
+	 *
+	 * @return The new value.
+	 */
+	public int adjust(long key, int delta) {
+		int value = get(key) + delta;
+		if (value == 0) {
+			remove(key);
+		} else {
+			put(key, value);
+		}
+		return value;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public void clear() {
+		allocate(MIN_CAPACITY);
+		size = 0;
+	}
+
+	private void rehash(int capacity) {
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		allocate(capacity);
+		for (int i = 0; i < oldValues.length; i++) {
+			if (oldValues[i] != 0) {
+				int slot = slot(oldKeys[i]);
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+}
@@ -0,0 +1,251 @@
+package za.dats.bukkit.memorystone.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.bukkit.plugin.java.JavaPlugin;
+
+import za.dats.bukkit.memorystone.Config;
+
+/**
+ * Saves data behind the main thread's back. Stores are marked dirty as they
+ * change, and saved once per window no matter how often they changed in it: a
+ * consistent snapshot is taken on the main thread, and written out in the
+ * background.
+ *
+ * Each store has its own writer thread (which goes away while it is idle), so
+ * different stores are written in parallel and a store's writes happen in the
+ * order they were snapshotted.
+ *
+ * @author cmdrdats
+ */
+public class PersistenceService {
+	private static final Logger log = Logger.getLogger("Minecraft");
+
+	/**
+	 * Something that can be saved.
+	 */
+	public interface Store {
+		/**
+		 * Called on the main thread: copy everything that needs saving.
+		 *
+		 * @return What to write, or null if there is nothing to write.
+		 */
+		public Snapshot snapshot();
+	}
+
+	/**
+	 * A copy of a store's data, written out on the background thread.
+	 */
+	public interface Snapshot {
+		public void write() throws IOException;
+	}
+
+	private final JavaPlugin plugin;
+	private final String logPrefix;
+	private final Set<Store> dirty = new LinkedHashSet<Store>();
+	// Changed on the main thread only, but await() looks in it from others
+	private final Map<Store, ExecutorService> writers = new ConcurrentHashMap<Store, ExecutorService>();
+	// Released stores whose writers may still be finishing, for await()
+	private final Map<Store, ExecutorService> released = new ConcurrentHashMap<Store, ExecutorService>();
+	private int flushTask = -1;
+
+	public PersistenceService(JavaPlugin plugin, String logPrefix) {
+		this.plugin = plugin;
+		this.logPrefix = logPrefix;
+	}
+
+	/*
+	 * Main thread only, a store's writer is only created when it is first
+	 * written.
+	 */
+	private ExecutorService getWriter(Store store) {
+		ExecutorService writer = writers.get(store);
+		if (writer == null) {
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+					new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "MemoryStone persistence");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+			executor.allowCoreThreadTimeOut(true);
+			writer = executor;
+			writers.put(store, writer);
+		}
+		return writer;
+	}
+
+	/**
+	 * Save the store within the next save window. Main thread only.
+	 */
+	public void markDirty(Store store) {
+		dirty.add(store);
+		if (flushTask == -1 && plugin.isEnabled()) {
+			flushTask = plugin.getServer().getScheduler().scheduleSyncDelayedTask(plugin, new Runnable() {
+				public void run() {
+					flushTask = -1;
+					flush();
+				}
+			}, Config.getSaveDelayTicks());
+		}
+	}
+
+	/**
+	 * Snapshot every dirty store now and queue the writes. Main thread only.
+	 */
+	public void flush() {
+		if (dirty.isEmpty()) {
+			return;
+		}
+
+		List<Store> stores = new ArrayList<Store>(dirty);
+		dirty.clear();
+		for (final Store store : stores) {
+			Snapshot snapshot = store.snapshot();
+			if (snapshot != null) {
+				submit(store, snapshot);
+			}
+		}
+	}
+
+	/**
+	 * Run a write on the store's writer thread, in order with its snapshots.
+	 * Main thread only. Unlike snapshots, failed writes aren't retried.
+	 */
+	public void execute(Store store, Snapshot snapshot) {
+		submit(store, snapshot, false);
+	}
+
+	/**
+	 * Wait for the store's queued writes to finish, before reading back what
+	 * they wrote. This may be called from any thread (worlds are read off the
+	 * main thread while the plugin is being enabled), but only waits for the
+	 * writes that were queued when it was called.
+	 */
+	public void await(Store store) {
+		ExecutorService writer = writers.get(store);
+		if (writer == null) {
+			writer = released.remove(store);
+			if (writer != null) {
+				awaitTermination(writer);
+			}
+			return;
+		}
+
+		try {
+			writer.submit(new Runnable() {
+				public void run() {
+				}
+			}).get();
+		} catch (RejectedExecutionException e) {
+			// released (or shut down) in the meantime, its writes still finish
+			awaitTermination(writer);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			// nothing to see, it does nothing
+		}
+	}
+
+	private void awaitTermination(ExecutorService writer) {
+		try {
+			writer.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void submit(final Store store, final Snapshot snapshot) {
+		submit(store, snapshot, true);
+	}
+
+	private void submit(final Store store, final Snapshot snapshot, final boolean retry) {
+		getWriter(store).execute(new Runnable() {
+			public void run() {
+				try {
+					snapshot.write();
+				} catch (Exception e) {
+					log.warning(logPrefix + "could not save: " + e.getMessage());
+					if (retry) {
+						retry(store);
+					}
+				}
+			}
+		});
+	}
+
+	private void retry(final Store store) {
+		if (!plugin.isEnabled()) {
+			return;
+		}
+
+		plugin.getServer().getScheduler().runTask(plugin, new Runnable() {
+			public void run() {
+				markDirty(store);
+			}
+		});
+	}
+
+	/**
+	 * Write everything that is still dirty and wait for the writes to finish,
+	 * when the plugin is disabled.
+	 */
+	public void shutdown() {
+		if (flushTask != -1) {
+			plugin.getServer().getScheduler().cancelTask(flushTask);
+			flushTask = -1;
+		}
+		flush();
+
+		for (ExecutorService writer : writers.values()) {
+			writer.shutdown();
+		}
+
+		try {
+			for (ExecutorService writer : writers.values()) {
+				if (!writer.awaitTermination(30, TimeUnit.SECONDS)) {
+					log.warning(logPrefix + "gave up waiting for data to be saved");
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		writers.clear();
+	}
+
+	/**
+	 * Stop writing a store that won't be saved again, once its queued writes
+	 * are done. Main thread only. They can still be waited for with await().
+	 */
+	public void release(Store store) {
+		dirty.remove(store);
+		ExecutorService writer = writers.remove(store);
+		if (writer != null) {
+			writer.shutdown();
+			released.put(store, writer);
+		}
+
+		Iterator<ExecutorService> finished = released.values().iterator();
+		while (finished.hasNext()) {
+			if (finished.next().isTerminated()) {
+				finished.remove();
+			}
+		}
+	}
+}
@@ -0,0 +1,309 @@
+package za.dats.bukkit.memorystone.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Points (block coordinates) in one world, bucketed in a grid of square cells
+ * of 4x4 chunks, for "is there one within", "which are within" and "which are
+ * nearest" lookups that only look at the cells around the spot.
+ *
+ * Items are told apart by identity, and equal distances are ordered by the
+ * items' natural order.
+ *
+ * @author cmdrdats
+ */
+public class PointGrid<T extends Comparable<? super T>> {
+	private static final int CELL_SHIFT = 6; // 64 blocks
+	private static final int CELL_SIZE = 1 << CELL_SHIFT;
+
+	/**
+	 * Picks the items a lookup is interested in.
+	 */
+	public interface Filter<T> {
+		public boolean accept(T item);
+	}
+
+	private static class Point<T> {
+		final T item;
+		final int x;
+		final int y;
+		final int z;
+
+		Point(T item, int x, int y, int z) {
+			this.item = item;
+			this.x = x;
+			this.y = y;
+			this.z = z;
+		}
+
+		double distanceSquared(double fromX, double fromY, double fromZ) {
+			double dx = fromX - x;
+			double dy = fromY - y;
+			double dz = fromZ - z;
+			return dx * dx + dy * dy + dz * dz;
+		}
+	}
+
+	private static class Candidate<T> {
+		final T item;
+		final double distance;
+
+		Candidate(T item, double distance) {
+			this.item = item;
+			this.distance = distance;
+		}
+	}
+
+	private final Map<Long, List<Point<T>>> cells = new HashMap<Long, List<Point<T>>>();
+	private int size;
+	// The cells that have been used, lookups don't need to look further out
+	private int minCellX = Integer.MAX_VALUE;
+	private int maxCellX = Integer.MIN_VALUE;
+	private int minCellZ = Integer.MAX_VALUE;
+	private int maxCellZ = Integer.MIN_VALUE;
+
+	public void add(T item, int x, int y, int z) {
+		int cellX = x >> CELL_SHIFT;
+		int cellZ = z >> CELL_SHIFT;
+		Long key = cellKey(cellX, cellZ);
+		List<Point<T>> cell = cells.get(key);
+		if (cell == null) {
+			cell = new ArrayList<Point<T>>(2);
+			cells.put(key, cell);
+		}
+		cell.add(new Point<T>(item, x, y, z));
+		size++;
+
+		minCellX = Math.min(minCellX, cellX);
+		maxCellX = Math.max(maxCellX, cellX);
+		minCellZ = Math.min(minCellZ, cellZ);
+		maxCellZ = Math.max(maxCellZ, cellZ);
+	}
+
+	/**
+	 * Remove an item that was added at these coordinates.
+	 */
+	public void remove(T item, int x, int y, int z) {
+		Long key = cellKey(x >> CELL_SHIFT, z >> CELL_SHIFT);
+		List<Point<T>> cell = cells.get(key);
+		if (cell == null) {
+			return;
+		}
+
+		for (int i = 0; i < cell.size(); i++) {
+			Point<T> point = cell.get(i);
+			if (point.item == item && point.x == x && point.y == y && point.z == z) {
+				cell.remove(i);
+				size--;
+				break;
+			}
+		}
+		if (cell.isEmpty()) {
+			cells.remove(key);
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @return Whether there's an item closer than the radius.
+	 */
+	public boolean anyWithin(double x, double y, double z, double radius) {
+		if (size == 0) {
+			return false;
+		}
+
+		double radiusSquared = radius * radius;
+		int fromX = Math.max((int) Math.floor(x - radius) >> CELL_SHIFT, minCellX);
+		int toX = Math.min((int) Math.floor(x + radius) >> CELL_SHIFT, maxCellX);
+		int fromZ = Math.max((int) Math.floor(z - radius) >> CELL_SHIFT, minCellZ);
+		int toZ = Math.min((int) Math.floor(z + radius) >> CELL_SHIFT, maxCellZ);
+
+		if ((long) (toX - fromX + 1) * (toZ - fromZ + 1) > cells.size()) {
+			// Fewer cells in use than in the square, go through them instead
+			for (List<Point<T>> cell : cells.values()) {
+				if (anyWithin(cell, x, y, z, radiusSquared)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		for (int cellX = fromX; cellX <= toX; cellX++) {
+			for (int cellZ = fromZ; cellZ <= toZ; cellZ++) {
+				List<Point<T>> cell = cells.get(cellKey(cellX, cellZ));
+				if (cell != null && anyWithin(cell, x, y, z, radiusSquared)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private boolean anyWithin(List<Point<T>> cell, double x, double y, double z, double radiusSquared) {
+		for (Point<T> point : cell) {
+			if (point.distanceSquared(x, y, z) < radiusSquared) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return The items closer than the radius, in no particular order.
+	 */
+	public List<T> within(double x, double y, double z, double radius) {
+		List<T> result = new ArrayList<T>();
+		if (size == 0) {
+			return result;
+		}
+
+		double radiusSquared = radius * radius;
+		int fromX = Math.max((int) Math.floor(x - radius) >> CELL_SHIFT, minCellX);
+		int toX = Math.min((int) Math.floor(x + radius) >> CELL_SHIFT, maxCellX);
+		int fromZ = Math.max((int) Math.floor(z - radius) >> CELL_SHIFT, minCellZ);
+		int toZ = Math.min((int) Math.floor(z + radius) >> CELL_SHIFT, maxCellZ);
+
+		if ((long) (toX - fromX + 1) * (toZ - fromZ + 1) > cells.size()) {
+			for (List<Point<T>> cell : cells.values()) {
+				within(cell, x, y, z, radiusSquared, result);
+			}
+			return result;
+		}
+
+		for (int cellX = fromX; cellX <= toX; cellX++) {
+			for (int cellZ = fromZ; cellZ <= toZ; cellZ++) {
+				List<Point<T>> cell = cells.get(cellKey(cellX, cellZ));
+				if (cell != null) {
+					within(cell, x, y, z, radiusSquared, result);
+				}
+			}
+		}
+		return result;
+	}
+
+	private void within(List<Point<T>> cell, double x, double y, double z, double radiusSquared, List<T> result) {
+		for (Point<T> point : cell) {
+			if (point.distanceSquared(x, y, z) < radiusSquared) {
+				result.add(point.item);
+			}
+		}
+	}
+
+	/**
+	 * Find the nearest items that the filter accepts, looking at the cells
+	 * around the spot ring by ring until no closer ones can be left.
+	 *
+	 * @param count
+	 *            The most items to find.
+	 * @return The items, nearest first.
+	 */
+	public List<T> nearest(double x, double y, double z, int count, Filter<? super T> filter) {
+		if (size == 0 || count <= 0) {
+			return Collections.emptyList();
+		}
+
+		// The furthest of the ones found so far on top, to be replaced
+		PriorityQueue<Candidate<T>> found = new PriorityQueue<Candidate<T>>(count + 1, new Comparator<Candidate<T>>() {
+			public int compare(Candidate<T> o1, Candidate<T> o2) {
+				return -order(o1, o2);
+			}
+		});
+
+		int centreX = (int) Math.floor(x) >> CELL_SHIFT;
+		int centreZ = (int) Math.floor(z) >> CELL_SHIFT;
+		int rings = Math.max(Math.max(centreX - minCellX, maxCellX - centreX), Math.max(centreZ - minCellZ, maxCellZ - centreZ));
+		for (int ring = 0; ring <= rings; ring++) {
+			if (found.size() == count) {
+				// Everything from this ring out is at least this far away
+				double closest = (double) (ring - 1) * CELL_SIZE;
+				if (ring > 0 && closest * closest > found.peek().distance) {
+					break;
+				}
+			}
+
+			long ringCells = ring == 0 ? 1 : 8L * ring;
+			if (ringCells > cells.size()) {
+				// Fewer cells in use than in the ring, go through the ones that
+				// are left instead
+				for (Map.Entry<Long, List<Point<T>>> entry : cells.entrySet()) {
+					long key = entry.getKey();
+					int cellX = (int) (key >> 32);
+					int cellZ = (int) key;
+					if (Math.max(Math.abs(cellX - centreX), Math.abs(cellZ - centreZ)) >= ring) {
+						collect(entry.getValue(), x, y, z, count, filter, found);
+					}
+				}
+				break;
+			}
+
+			for (int cellX = centreX - ring; cellX <= centreX + ring; cellX++) {
+				boolean edge = cellX == centreX - ring || cellX == centreX + ring;
+				for (int cellZ = centreZ - ring; cellZ <= centreZ + ring; cellZ += edge ? 1 : 2 * ring) {
+					List<Point<T>> cell = cells.get(cellKey(cellX, cellZ));
+					if (cell != null) {
+						collect(cell, x, y, z, count, filter, found);
+					}
+					if (ring == 0) {
+						break;
+					}
+				}
+			}
+		}
+
+		List<Candidate<T>> sorted = new ArrayList<Candidate<T>>(found);
+		Collections.sort(sorted, new Comparator<Candidate<T>>() {
+			public int compare(Candidate<T> o1, Candidate<T> o2) {
+				return order(o1, o2);
+			}
+		});
+
+		List<T> result = new ArrayList<T>(sorted.size());
+		for (Candidate<T> candidate : sorted) {
+			result.add(candidate.item);
+		}
+		return result;
+	}
+
+	private void collect(List<Point<T>> cell, double x, double y, double z, int count, Filter<? super T> filter,
+			PriorityQueue<Candidate<T>> found) {
+		for (Point<T> point : cell) {
+			double distance = point.distanceSquared(x, y, z);
+			if (found.size() == count && distance > found.peek().distance) {
+				continue;
+			}
+			if (!filter.accept(point.item)) {
+				continue;
+			}
+
+			Candidate<T> candidate = new Candidate<T>(point.item, distance);
+			if (found.size() < count) {
+				found.add(candidate);
+			} else if (order(candidate, found.peek()) < 0) {
+				found.poll();
+				found.add(candidate);
+			}
+		}
+	}
+
+	private int order(Candidate<T> o1, Candidate<T> o2) {
+		int order = Double.compare(o1.distance, o2.distance);
+		return order != 0 ? order : o1.item.compareTo(o2.item);
+	}
+
+	private static long cellKey(int cellX, int cellZ) {
+		return ((long) cellX << 32) | (cellZ & 0xffffffffL);
+	}
+}
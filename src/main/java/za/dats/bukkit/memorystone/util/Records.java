@@ -0,0 +1,49 @@
+package za.dats.bukkit.memorystone.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the fields of records (and structure types) as they come out of the
+ * data files and the database: maps of strings, numbers, lists and maps.
+ *
+ * @author cmdrdats
+ */
+public class Records {
+	private Records() {
+	}
+
+	/**
+	 * @return The field as a string, or the default if it isn't set.
+	 */
+	public static String getString(Map<String, ?> record, String field, String def) {
+		Object value = record.get(field);
+		return value == null ? def : value.toString();
+	}
+
+	/**
+	 * @return The field as an int, or the default if it isn't a number.
+	 */
+	public static int getInt(Map<String, ?> record, String field, int def) {
+		Object value = record.get(field);
+		return value instanceof Number ? ((Number) value).intValue() : def;
+	}
+
+	/**
+	 * @return The maps in the field's list, or an empty list.
+	 */
+	@SuppressWarnings("unchecked")
+	public static List<Map<String, Object>> getMapList(Map<String, ?> record, String field) {
+		List<Map<String, Object>> result = new ArrayList<Map<String, Object>>();
+		Object value = record.get(field);
+		if (value instanceof List) {
+			for (Object item : (List<?>) value) {
+				if (item instanceof Map) {
+					result.add((Map<String, Object>) item);
+				}
+			}
+		}
+		return result;
+	}
+}
@@ -0,0 +1,125 @@
+package za.dats.bukkit.memorystone.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+/**
+ * Runs the steps of enabling the plugin as timed phases. Phases that only read
+ * and parse files are submitted to worker threads so they run side by side,
+ * the ones that touch worlds run on the main thread and pick up the workers'
+ * results as they need them.
+ *
+ * Every phase logs how long it took, and how many records it handled.
+ *
+ * @author cmdrdats
+ */
+public class StartupPipeline {
+	private static final Logger log = Logger.getLogger("Minecraft");
+
+	/**
+	 * A step of the startup.
+	 */
+	public static abstract class Phase<T> {
+		private final String name;
+
+		public Phase(String name) {
+			this.name = name;
+		}
+
+		public abstract T run() throws Exception;
+
+		/**
+		 * @return The number of records in the result, or -1 if it has none.
+		 */
+		public int count(T result) {
+			return -1;
+		}
+	}
+
+	private final String logPrefix;
+	private final ExecutorService workers;
+	private final long started = System.nanoTime();
+
+	public StartupPipeline(String logPrefix, int threads) {
+		this.logPrefix = logPrefix;
+		this.workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "MemoryStone startup");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Run a phase on a worker thread. It mustn't touch worlds, or anything the
+	 * main thread uses in the meantime.
+	 */
+	public <T> Future<T> submit(final Phase<T> phase) {
+		return workers.submit(new Callable<T>() {
+			public T call() {
+				return attempt(phase);
+			}
+		});
+	}
+
+	/**
+	 * Run a phase on this thread.
+	 *
+	 * @return The result, or null if the phase failed.
+	 */
+	public <T> T run(Phase<T> phase) {
+		return attempt(phase);
+	}
+
+	/**
+	 * Wait for a phase submitted to the workers.
+	 *
+	 * @return The result, or null if the phase failed.
+	 */
+	public <T> T join(Future<T> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			log.severe(logPrefix + "startup: interrupted waiting for a phase");
+		} catch (ExecutionException e) {
+			log.severe(logPrefix + "startup: a phase failed: " + e.getCause());
+		}
+		return null;
+	}
+
+	/**
+	 * Let the worker threads go, and log the total.
+	 */
+	public void finish() {
+		workers.shutdown();
+		log.info(logPrefix + "startup: enabled in " + millis(started) + " ms");
+	}
+
+	private <T> T attempt(Phase<T> phase) {
+		long start = System.nanoTime();
+		T result;
+		try {
+			result = phase.run();
+		} catch (Exception e) {
+			log.severe(logPrefix + "startup: " + phase.name + " failed: " + e);
+			return null;
+		}
+
+		int count = phase.count(result);
+		String records = count >= 0 ? ", " + count + " record(s)" : "";
+		log.info(logPrefix + "startup: " + phase.name + " took " + millis(start) + " ms" + records + " on "
+				+ Thread.currentThread().getName());
+		return result;
+	}
+
+	private static long millis(long start) {
+		return (System.nanoTime() - start) / 1000000L;
+	}
+}
@@ -1,27 +1,35 @@
 package za.dats.bukkit.memorystone.util;
 
 import java.io.IOException;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Set;
 
+import org.bukkit.Material;
+import org.bukkit.World;
 import org.bukkit.block.Block;
 import org.bukkit.entity.Player;
 import org.bukkit.event.Event;
 import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
 import org.bukkit.event.block.BlockBreakEvent;
 //import org.bukkit.event.block.BlockListener;
 import org.bukkit.event.block.BlockPlaceEvent;
 import org.bukkit.event.entity.EntityExplodeEvent;
+import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.event.world.WorldLoadEvent;
+import org.bukkit.event.world.WorldUnloadEvent;
 //import org.bukkit.event.entity.EntityListener;
 import org.bukkit.plugin.PluginManager;
 import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.scheduler.BukkitScheduler;
 
 import za.dats.bukkit.memorystone.Config;
 import za.dats.bukkit.memorystone.Config.MemoryEffect;
 import za.dats.bukkit.memorystone.MemoryStonePlugin;
 import za.dats.bukkit.memorystone.economy.EconomyManager;
 import za.dats.bukkit.memorystone.util.structure.Structure;
+import za.dats.bukkit.memorystone.util.structure.StructureMatcher;
 import za.dats.bukkit.memorystone.util.structure.StructureType;
 
 /**
@@ -32,6 +40,9 @@ import za.dats.bukkit.memorystone.util.structure.StructureType;
 // public class StructureBlockListener extends BlockListener {
 public class StructureBlockListener implements Listener {
 
+	private static final int CHUNK_OCCUPIED = 1;
+	private static final int CHUNK_EMPTY = 2;
+
 	private final JavaPlugin plugin;
 	private final StructureManager structureManager;
 
@@ -48,14 +59,6 @@ public class StructureBlockListener implements Listener {
 		// pm.registerEvent(Event.Type.BLOCK_BREAK, this, Event.Priority.High,
 		// this.plugin);
 
-		// !!!! NEED Too Look At This
-		// pm.registerEvent(Event.Type.ENTITY_EXPLODE, new EntityListener() {
-		// @Override
-		// public void onEntityExplode(EntityExplodeEvent event) {
-		// StructureBlockListener.this.onEntityExplode(event);
-		// }
-		// }, Event.Priority.High, plugin);
-
 	}
 
 	@EventHandler
@@ -64,18 +67,42 @@ public class StructureBlockListener implements Listener {
 			return;
 		}
 
+		if (Config.isAsyncStructureVerification()) {
+			checkPlacedBlockAsync(event);
+			return;
+		}
+
 		Structure block = checkPlacedBlock(event.getPlayer(), event.getBlock(), event);
 	}
 
+	@EventHandler
+	public void onChunkLoad(ChunkLoadEvent event) {
+		structureManager.chunkLoaded(event.getChunk());
+	}
+
+	@EventHandler
+	public void onWorldLoad(WorldLoadEvent event) {
+		structureManager.loadWorld(event.getWorld());
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+	public void onWorldUnload(WorldUnloadEvent event) {
+		structureManager.unloadWorld(event.getWorld());
+	}
+
 	@EventHandler
 	public void onBlockBreak(BlockBreakEvent event) throws IOException {
 		if (event.isCancelled())
 			return;
 
 		Block brokenblock = event.getBlock();
-		Set<Structure> totems = structureManager.getStructuresFromBlock(brokenblock);
+		if (!structureManager.isChunkOccupied(brokenblock)) {
+			return;
+		}
+
+		List<Structure> structures = structureManager.getStructuresAt(brokenblock);
 
-		if (totems == null)
+		if (structures.isEmpty())
 			return;
 
 		Player player = event.getPlayer();
@@ -92,26 +119,43 @@ public class StructureBlockListener implements Listener {
 			brokenblock.getWorld().strikeLightningEffect(brokenblock.getLocation());
 		}
 
-		for (Structure structure : totems) {
+		for (Structure structure : structures) {
 			// TODO add REPLACE code?
 			structureManager.removeStructure(event, structure);
-			structureManager.saveStructures();
 		}
 
 		// if (!this.plugin.getConfigManager().isQuiet()) {
 		// }
 	}
 
-	protected void onEntityExplode(EntityExplodeEvent event) {
-		if (event.isCancelled()) {
+	/**
+	 * Explosions leave structure blocks alone, the rest of the blast goes
+	 * ahead. Explosions only touch a few chunks, so each chunk is checked for
+	 * structures once and blocks in empty chunks aren't looked up at all.
+	 */
+	@EventHandler(priority = EventPriority.HIGH, ignoreCancelled = true)
+	public void onEntityExplode(EntityExplodeEvent event) {
+		List<Block> blocks = event.blockList();
+		if (blocks.isEmpty()) {
 			return;
 		}
 
-		for (Block brokenBlock : event.blockList()) {
-			Set<Structure> totems = structureManager.getStructuresFromBlock(brokenBlock);
-			if (totems != null) {
-				event.setCancelled(true);
-				return;
+		World world = blocks.get(0).getWorld();
+		LongIntHashMap chunks = new LongIntHashMap();
+		for (Iterator<Block> it = blocks.iterator(); it.hasNext();) {
+			Block block = it.next();
+			int x = block.getX();
+			int z = block.getZ();
+			long key = StructureManager.chunkKey(x >> 4, z >> 4);
+
+			int occupied = chunks.get(key);
+			if (occupied == 0) {
+				occupied = structureManager.isChunkOccupied(world, x >> 4, z >> 4) ? CHUNK_OCCUPIED : CHUNK_EMPTY;
+				chunks.put(key, occupied);
+			}
+
+			if (occupied == CHUNK_OCCUPIED && structureManager.isStructureBlock(world, x, block.getY(), z)) {
+				it.remove();
 			}
 		}
 	}
@@ -120,76 +164,131 @@ public class StructureBlockListener implements Listener {
 		String owner = player.getName();
 
 		Block placedblock = behind;
-		List<StructureType> structureTypes = structureManager.getStructureTypes();
 
-		TOTEMBUILD: for (StructureType structureType : structureTypes) {
+		// Structure types that the player may not build are skipped by the
+		// matcher.
+		Structure structure = structureManager.getMatcher().match(placedblock, player, owner);
+		if (structure == null) {
+			return null;
+		}
 
-			Structure structure = new Structure(structureType, placedblock, owner);
-			if (!structure.verifyStructure()) {
-				continue;
-			}
+		return acceptStructure(player, placedblock, structure, event);
+	}
 
-			// check permissions!
+	/**
+	 * Verify a placed block against chunk snapshots on a worker thread, and
+	 * accept the structure (if any) on the next tick. The block place event
+	 * can't be cancelled from there, so a refused structure is simply not
+	 * created.
+	 */
+	private void checkPlacedBlockAsync(BlockPlaceEvent event) throws IOException {
+		final Player player = event.getPlayer();
+		final Block placedblock = event.getBlock();
+		final StructureMatcher matcher = structureManager.getMatcher();
+		final Material material = placedblock.getType();
+
+		int[] reach = matcher.getReach(material);
+		if (reach == null) {
+			return;
+		}
 
-			if (!player.hasPermission("memorystone.build")) {
-				player.sendMessage(Config.getColorLang("nobuildpermission"));
-				if (event != null) {
-					event.setCancelled(true);
+		final int x = placedblock.getX();
+		final int y = placedblock.getY();
+		final int z = placedblock.getZ();
+		final World world = placedblock.getWorld();
+		final ChunkSnapshotReader reader = ChunkSnapshotReader.capture(world, x + reach[0], x + reach[1], z + reach[2], z + reach[3]);
+		if (reader == null) {
+			// Some of the chunks aren't loaded, reading them would load them
+			// on this thread anyway.
+			checkPlacedBlock(player, placedblock, event);
+			return;
+		}
+
+		final boolean[] allowed = matcher.getAllowedTypes(player);
+		final String owner = player.getName();
+		final BukkitScheduler scheduler = plugin.getServer().getScheduler();
+		scheduler.runTaskAsynchronously(plugin, new Runnable() {
+			public void run() {
+				final StructureMatcher.Match match = matcher.match(x, y, z, material, allowed, reader);
+				if (match == null || !plugin.isEnabled()) {
+					return;
 				}
-				return null;
-			}
 
-			if (structureType.getPermissionRequired() != null && structureType.getPermissionRequired().length() > 0) {
-				if (!player.hasPermission(structureType.getPermissionRequired())) {
-					player.sendMessage(Config.getColorLang("nobuildpermission"));
-					if (event != null) {
-						event.setCancelled(true);
+				scheduler.runTask(plugin, new Runnable() {
+					public void run() {
+						if (!player.isOnline() || matcher != structureManager.getMatcher()) {
+							return;
+						}
+
+						// The world has moved on since the snapshot, the placed
+						// block should at least still be there.
+						Block placedblock = world.getBlockAt(x, y, z);
+						if (placedblock.getType() != material) {
+							return;
+						}
+
+						try {
+							acceptStructure(player, placedblock, match.toStructure(world, owner), null);
+						} catch (IOException e) {
+							e.printStackTrace();
+						}
 					}
-					return null;
-				}
+				});
 			}
+		});
+	}
 
-			// check the number of totems
-			/*
-			 * Set<Structure> totemset =
-			 * structureManager.getStructuresFromPlayer(player); if (totemset !=
-			 * null && totemset.size() >=
-			 * this.plugin.getConfigManager().getStructuresPerPlayer() &&
-			 * !player.hasPermission("healingtotem.unlimitedbuild")) {
-			 * event.setCancelled(true); player.sendMessage(ChatColor.RED +
-			 * "You have reached the maximum number of totems you can build.");
-			 * return; }
-			 */
-
-			for (Block block : structure.getBlocks()) {
-				if (structureManager.getStructuresFromBlock(block) != null) {
-					break TOTEMBUILD;
-				}
+	private Structure acceptStructure(Player player, Block placedblock, Structure structure, BlockPlaceEvent event) throws IOException {
+		StructureType structureType = structure.getStructureType();
+
+		// check permissions!
+
+		if (!player.hasPermission("memorystone.build")) {
+			player.sendMessage(Config.getColorLang("nobuildpermission"));
+			if (event != null) {
+				event.setCancelled(true);
 			}
+			return null;
+		}
 
-			EconomyManager economyManager = MemoryStonePlugin.getInstance().getEconomyManager();
-			if (economyManager.isEconomyEnabled() && !player.hasPermission("memorystone.usefree")) {
-				if (!economyManager.payBuildCost(player, structureType)) {
-					player.sendMessage(Config.getColorLang("cantaffordbuild", "cost", economyManager.getBuildCostString(structureType)));
-					if (event != null) {
-						event.setCancelled(true);
-					}
-					return null;
-				}
+		// check the number of totems
+		/*
+		 * Set<Structure> totemset =
+		 * structureManager.getStructuresFromPlayer(player); if (totemset !=
+		 * null && totemset.size() >=
+		 * this.plugin.getConfigManager().getStructuresPerPlayer() &&
+		 * !player.hasPermission("healingtotem.unlimitedbuild")) {
+		 * event.setCancelled(true); player.sendMessage(ChatColor.RED +
+		 * "You have reached the maximum number of totems you can build.");
+		 * return; }
+		 */
+
+		World world = structure.getWorld();
+		for (int i = 0; i < structure.getBlockCount(); i++) {
+			if (structureManager.isStructureBlock(world, structure.getBlockX(i), structure.getBlockY(i), structure.getBlockZ(i))) {
+				return null;
 			}
+		}
 
-			// lightning strike!
-			if (Config.isEffectEnabled(MemoryEffect.LIGHTNING_ON_CREATE)) {
-				placedblock.getWorld().strikeLightningEffect(placedblock.getLocation());
+		EconomyManager economyManager = MemoryStonePlugin.getInstance().getEconomyManager();
+		if (economyManager.isEconomyEnabled() && !player.hasPermission("memorystone.usefree")) {
+			if (!economyManager.payBuildCost(player, structureType)) {
+				player.sendMessage(Config.getColorLang("cantaffordbuild", "cost", economyManager.getBuildCostString(structureType)));
+				if (event != null) {
+					event.setCancelled(true);
+				}
+				return null;
 			}
+		}
 
-			structure.setOwner(player.getName());
-			structureManager.addStructure(player, structure);
-			structureManager.saveStructures();
-			return structure;
+		// lightning strike!
+		if (Config.isEffectEnabled(MemoryEffect.LIGHTNING_ON_CREATE)) {
+			placedblock.getWorld().strikeLightningEffect(placedblock.getLocation());
 		}
 
-		return null;
+		structure.setOwner(player.getName());
+		structureManager.addStructure(player, structure);
+		return structure;
 	}
 
 }
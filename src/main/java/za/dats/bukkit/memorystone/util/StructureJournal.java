@@ -0,0 +1,337 @@
+package za.dats.bukkit.memorystone.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of the structure changes made since the last snapshot
+ * (structures.yml) was written.
+ *
+ * Each record is its length, a CRC32 of its contents, the operation, the
+ * structure's key and its typed fields. A record that was only partly written
+ * (or is damaged) ends the journal, everything after it is cut off when the
+ * journal is replayed.
+ *
+ * Appends are buffered: flush() hands them to the operating system and
+ * force() makes them durable. force() may be called from any thread.
+ *
+ * When a snapshot is taken, the journal is rotated: the records so far move to
+ * a side file that is discarded once the snapshot is on disk, and new records
+ * go to a fresh journal. Replaying the side file over a snapshot that already
+ * has its records is harmless.
+ *
+ * @author cmdrdats
+ */
+public class StructureJournal {
+	private static final Logger log = Logger.getLogger("Minecraft");
+
+	public static final byte ADD = 1;
+	public static final byte REMOVE = 2;
+	public static final byte UPDATE = 3;
+
+	private static final byte VALUE_NULL = 0;
+	private static final byte VALUE_STRING = 1;
+	private static final byte VALUE_INT = 2;
+	private static final byte VALUE_LONG = 3;
+	private static final byte VALUE_DOUBLE = 4;
+	private static final byte VALUE_BOOLEAN = 5;
+
+	private static final int MAX_RECORD_LENGTH = 1 << 20;
+
+	private final File file;
+	private final File rotated;
+	private final String logPrefix;
+	private FileOutputStream fileOut;
+	private DataOutputStream out;
+	private int recordCount;
+	private int rotations;
+
+	public StructureJournal(File file, String logPrefix) {
+		this.file = file;
+		this.rotated = new File(file.getParentFile(), file.getName() + ".old");
+		this.logPrefix = logPrefix;
+	}
+
+	/**
+	 * Apply the journal (including a rotated journal whose snapshot never
+	 * made it to disk) to the records of the snapshot.
+	 *
+	 * @param records
+	 *            The snapshot's records by key, changed in place.
+	 * @return The number of records that were replayed.
+	 */
+	public int replay(Map<String, Map<String, Object>> records) throws IOException {
+		close();
+		this.recordCount = 0;
+		return replay(rotated, records, false) + replay(file, records, false);
+	}
+
+	/**
+	 * Read the journal's changes (including a rotated journal whose snapshot
+	 * never made it to disk), to apply to a snapshot as it is read.
+	 *
+	 * @param changes
+	 *            Filled with the last record of each key that changed, by key,
+	 *            or null if it was removed.
+	 * @return The number of records that were replayed.
+	 */
+	public int readChanges(Map<String, Map<String, Object>> changes) throws IOException {
+		close();
+		this.recordCount = 0;
+		return replay(rotated, changes, true) + replay(file, changes, true);
+	}
+
+	private int replay(File journalFile, Map<String, Map<String, Object>> records, boolean keepRemoved) throws IOException {
+		if (!journalFile.isFile()) {
+			return 0;
+		}
+
+		int replayed = 0;
+		long good = 0;
+		boolean damaged = false;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+		try {
+			CRC32 crc = new CRC32();
+			while (true) {
+				int length;
+				try {
+					length = in.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+
+				if (length <= 0 || length > MAX_RECORD_LENGTH) {
+					damaged = true;
+					break;
+				}
+
+				byte[] payload = new byte[length];
+				try {
+					long checksum = in.readInt() & 0xFFFFFFFFL;
+					in.readFully(payload);
+					crc.reset();
+					crc.update(payload);
+					if (crc.getValue() != checksum) {
+						damaged = true;
+						break;
+					}
+				} catch (EOFException e) {
+					damaged = true;
+					break;
+				}
+
+				apply(payload, records, keepRemoved);
+				good += 8 + length;
+				replayed++;
+			}
+		} finally {
+			in.close();
+		}
+
+		if (damaged) {
+			log.warning(logPrefix + journalFile.getName() + " is damaged after " + replayed + " record(s), discarding the rest of it");
+			RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+			try {
+				raf.setLength(good);
+			} finally {
+				raf.close();
+			}
+		}
+
+		this.recordCount += replayed;
+		return replayed;
+	}
+
+	private void apply(byte[] payload, Map<String, Map<String, Object>> records, boolean keepRemoved) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		byte op = in.readByte();
+		String key = in.readUTF();
+		if (op == REMOVE) {
+			if (keepRemoved) {
+				records.put(key, null);
+			} else {
+				records.remove(key);
+			}
+			return;
+		}
+
+		int count = in.readShort();
+		Map<String, Object> fields = new LinkedHashMap<String, Object>();
+		for (int i = 0; i < count; i++) {
+			String name = in.readUTF();
+			fields.put(name, readValue(in));
+		}
+
+		// Updates carry the whole record too, so they simply replace it.
+		records.put(key, fields);
+	}
+
+	public static Object readValue(DataInputStream in) throws IOException {
+		byte type = in.readByte();
+		switch (type) {
+		case VALUE_NULL:
+			return null;
+		case VALUE_STRING:
+			return in.readUTF();
+		case VALUE_INT:
+			return in.readInt();
+		case VALUE_LONG:
+			return in.readLong();
+		case VALUE_DOUBLE:
+			return in.readDouble();
+		case VALUE_BOOLEAN:
+			return in.readBoolean();
+		default:
+			throw new IOException("unknown value type " + type);
+		}
+	}
+
+	public static void writeValue(DataOutputStream out, Object value) throws IOException {
+		if (value == null) {
+			out.writeByte(VALUE_NULL);
+		} else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+			out.writeByte(VALUE_INT);
+			out.writeInt(((Number) value).intValue());
+		} else if (value instanceof Long) {
+			out.writeByte(VALUE_LONG);
+			out.writeLong((Long) value);
+		} else if (value instanceof Number) {
+			out.writeByte(VALUE_DOUBLE);
+			out.writeDouble(((Number) value).doubleValue());
+		} else if (value instanceof Boolean) {
+			out.writeByte(VALUE_BOOLEAN);
+			out.writeBoolean((Boolean) value);
+		} else {
+			out.writeByte(VALUE_STRING);
+			out.writeUTF(value.toString());
+		}
+	}
+
+	/**
+	 * Append a record. It is only durable once it has been flushed and forced.
+	 *
+	 * @param fields
+	 *            The whole record, ignored for REMOVE.
+	 */
+	public void append(byte op, String key, Map<String, Object> fields) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+		DataOutputStream payload = new DataOutputStream(bytes);
+		payload.writeByte(op);
+		payload.writeUTF(key);
+		if (op != REMOVE) {
+			payload.writeShort(fields.size());
+			for (Map.Entry<String, Object> field : fields.entrySet()) {
+				payload.writeUTF(field.getKey());
+				writeValue(payload, field.getValue());
+			}
+		}
+		payload.flush();
+		byte[] data = bytes.toByteArray();
+
+		CRC32 crc = new CRC32();
+		crc.update(data);
+
+		open();
+		out.writeInt(data.length);
+		out.writeInt((int) crc.getValue());
+		out.write(data);
+		this.recordCount++;
+	}
+
+	/**
+	 * Hand the appended records to the operating system.
+	 */
+	public void flush() throws IOException {
+		if (out != null) {
+			out.flush();
+		}
+	}
+
+	/**
+	 * Make the flushed records durable. This may block for a while, so it
+	 * shouldn't be called on the main thread.
+	 */
+	public synchronized void force() throws IOException {
+		if (fileOut != null) {
+			fileOut.getFD().sync();
+		}
+	}
+
+	/**
+	 * Start a new journal, when a snapshot of everything so far has been
+	 * taken. If the previous rotation's snapshot hasn't been written yet, the
+	 * records are added to its side file.
+	 *
+	 * @return The rotation, to pass to discardRotated() once the snapshot is
+	 *         on disk.
+	 */
+	public synchronized int rotate() throws IOException {
+		close();
+		if (file.isFile()) {
+			if (!rotated.exists()) {
+				FileUtil.replace(file, rotated);
+			} else {
+				FileUtil.append(file, rotated);
+				if (!file.delete()) {
+					throw new IOException("could not delete " + file.getName());
+				}
+			}
+		}
+		this.recordCount = 0;
+		return ++rotations;
+	}
+
+	/**
+	 * Drop the rotated records, now that they are in a snapshot on disk. If the
+	 * journal has been rotated again since, the next snapshot does this.
+	 */
+	public synchronized void discardRotated(int rotation) {
+		if (rotation == rotations && rotated.exists() && !rotated.delete()) {
+			log.warning(logPrefix + "could not delete " + rotated.getName());
+		}
+	}
+
+	/**
+	 * @return The number of records since the journal was last rotated.
+	 */
+	public int getRecordCount() {
+		return recordCount;
+	}
+
+	private void open() throws IOException {
+		if (out == null) {
+			synchronized (this) {
+				file.getParentFile().mkdirs();
+				fileOut = new FileOutputStream(file, true);
+				out = new DataOutputStream(new BufferedOutputStream(fileOut));
+			}
+		}
+	}
+
+	public synchronized void close() throws IOException {
+		if (out == null) {
+			return;
+		}
+
+		try {
+			out.close();
+		} finally {
+			out = null;
+			fileOut = null;
+		}
+	}
+}
@@ -7,7 +7,6 @@ import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.entity.Player;
 //import org.bukkit.util.config.ConfigurationNode;
 
-import za.dats.bukkit.memorystone.BkOldConfigurationNode;
 import za.dats.bukkit.memorystone.util.structure.Structure;
 import za.dats.bukkit.memorystone.util.structure.StructureType;
 
@@ -33,13 +32,23 @@ public interface StructureListener {
 	public void structureDestroyed(Player player, Structure structure);
 
 	/**
-	 * A structure was loaded from disk. Use the configuration node to load the
-	 * rest of this structures properties as if placed
+	 * A structure's world was unloaded. It is still saved, and will be loaded
+	 * again with its world.
 	 * 
 	 * @param structure
 	 */
+	public void structureUnloaded(Structure structure);
+
+	/**
+	 * A structure was loaded from disk. Use its record to load the rest of
+	 * this structures properties as if placed
+	 * 
+	 * @param structure
+	 * @param record
+	 *            The record it was saved as, see Records to read it.
+	 */
 	// public void structureLoaded(Structure structure, ConfigurationNode node);
-	public void structureLoaded(Structure structure, BkOldConfigurationNode node);
+	public void structureLoaded(Structure structure, Map<String, Object> record);
 
 	/**
 	 * Structure is being saved to disk, add extra structure information to save
@@ -8,11 +8,14 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.logging.Logger;
 
+import org.bukkit.Chunk;
 import org.bukkit.Material;
 import org.bukkit.OfflinePlayer;
 import org.bukkit.World;
@@ -32,12 +35,11 @@ import org.bukkit.util.Vector;
 //import org.bukkit.util.config.Configuration;
 //import org.bukkit.util.config.ConfigurationNode;
 
-import za.dats.bukkit.memorystone.Config;
-import za.dats.bukkit.memorystone.util.structure.BlockOffset;
+import za.dats.bukkit.memorystone.storage.StorageBackend;
 import za.dats.bukkit.memorystone.util.structure.Rotator;
 import za.dats.bukkit.memorystone.util.structure.Structure;
+import za.dats.bukkit.memorystone.util.structure.StructureMatcher;
 import za.dats.bukkit.memorystone.util.structure.StructureType;
-import za.dats.bukkit.memorystone.BkOldConfigurationNode;
 
 /**
  * 
@@ -48,56 +50,133 @@ public class StructureManager {
 	private static final Logger log = Logger.getLogger("Minecraft");
 
 	private final JavaPlugin plugin;
+	private final StorageBackend storage;
 	private final StructureBlockListener blockListener;
 
 	private final String structureTypes_filename = "structuretypes.yml";
-	private final String structures_filename = "structures.yml";
 
 	private List<StructureType> structureTypes;
-	private List<Structure> structures;
+	private Map<String, StructureType> structureTypesByName;
+	private StructureMatcher matcher;
 	private List<StructureListener> listeners = new ArrayList<StructureListener>();
 
-	HashMap<BlockHashable, Set<Structure>> blockhash;
+	/*
+	 * Structures by id (0 is never used), and the ids that can be reused.
+	 */
+	private final List<Structure> structuresById;
+	private final List<Integer> freeIds;
+	private int structureCount;
+
+	/*
+	 * Every structure block, by world, from packed coordinates to structure
+	 * id. The few blocks that are part of more than one structure have the
+	 * ids of the others in sharedBlocks.
+	 */
+	private final Map<String, LongIntHashMap> blockIndex;
+	private final Map<String, Map<Long, List<Integer>>> sharedBlocks;
+
+	/*
+	 * How many structure blocks and bound signs are in each chunk, by world.
+	 */
+	private final Map<String, LongIntHashMap> chunkPresence;
 	HashMap<String, Set<Structure>> ownerhash;
 
+	/*
+	 * Structures loaded from disk that haven't been verified yet, by world and
+	 * by every chunk they are in.
+	 */
+	private final Set<Structure> pending;
+	private final Map<String, Map<Long, List<Structure>>> pendingChunks;
+
+	/*
+	 * The structures of each loaded world. Nothing is saved while loading.
+	 */
+	private final Map<String, Set<Structure>> worldStructures;
+	private boolean loading;
+
 	private final String logPrefix;
 
-	public StructureManager(JavaPlugin plugin, String logPrefix) {
+	public StructureManager(JavaPlugin plugin, StorageBackend storage, String logPrefix) {
 		this.plugin = plugin;
+		this.storage = storage;
 		this.logPrefix = logPrefix;
-		this.structureTypes = new ArrayList<StructureType>();
-		this.structures = new ArrayList<Structure>();
-		this.blockhash = new HashMap<BlockHashable, Set<Structure>>();
+		this.structureTypes = Collections.emptyList();
+		this.structureTypesByName = Collections.emptyMap();
+		this.matcher = new StructureMatcher(this.structureTypes);
+		this.structuresById = new ArrayList<Structure>();
+		this.structuresById.add(null);
+		this.freeIds = new ArrayList<Integer>();
+		this.blockIndex = new HashMap<String, LongIntHashMap>();
+		this.sharedBlocks = new HashMap<String, Map<Long, List<Integer>>>();
+		this.chunkPresence = new HashMap<String, LongIntHashMap>();
 		this.ownerhash = new HashMap<String, Set<Structure>>();
+		this.pending = new HashSet<Structure>();
+		this.pendingChunks = new HashMap<String, Map<Long, List<Structure>>>();
+		this.worldStructures = new HashMap<String, Set<Structure>>();
 		blockListener = new StructureBlockListener(plugin, this);
 	}
 
 	public void registerEvents() {
 		blockListener.registerEvents();
-		loadStructureTypesOrDefault();
-		loadStructures();
 	}
 
 	public List<Structure> getStructures() {
-		return new ArrayList<Structure>(this.structures);
+		List<Structure> result = new ArrayList<Structure>(this.structureCount);
+		for (Structure structure : this.structuresById) {
+			if (structure != null) {
+				result.add(structure);
+			}
+		}
+		return result;
 	}
 
+	public int getStructureCount() {
+		return this.structureCount;
+	}
+
+	/**
+	 * @return The loaded structure types, largest first. The list is read-only.
+	 */
 	public List<StructureType> getStructureTypes() {
-		return new ArrayList<StructureType>(this.structureTypes);
+		return this.structureTypes;
+	}
+
+	/**
+	 * @return The matcher compiled from the currently loaded structure types.
+	 */
+	public StructureMatcher getMatcher() {
+		return matcher;
 	}
 
 	public void addStructure(Player player, Structure structure) {
-		this.structures.add(structure);
-
-		// add to block hash
-		for (Block block : structure.getBlocks()) {
-			BlockHashable bh = new BlockHashable(block);
-			Set<Structure> existing = this.blockhash.get(bh);
-			if (existing == null) {
-				this.blockhash.put(bh, new HashSet<Structure>(Arrays.asList(structure)));
+		int id;
+		if (this.freeIds.isEmpty()) {
+			id = this.structuresById.size();
+			this.structuresById.add(structure);
+		} else {
+			id = this.freeIds.remove(this.freeIds.size() - 1);
+			this.structuresById.set(id, structure);
+		}
+		structure.setId(id);
+		this.structureCount++;
+
+		// add to block index, a block that is already part of another
+		// structure is shared with it
+		String worldName = structure.getWorld().getName();
+		getWorldStructures(structure.getWorld()).add(structure);
+		LongIntHashMap worldIndex = this.blockIndex.get(worldName);
+		if (worldIndex == null) {
+			worldIndex = new LongIntHashMap(structure.getBlockCount());
+			this.blockIndex.put(worldName, worldIndex);
+		}
+		for (int i = 0; i < structure.getBlockCount(); i++) {
+			long key = packBlock(structure.getBlockX(i), structure.getBlockY(i), structure.getBlockZ(i));
+			if (worldIndex.get(key) == 0) {
+				worldIndex.put(key, id);
 			} else {
-				existing.add(structure);
+				addShared(worldName, key, id);
 			}
+			addPresence(worldName, structure.getBlockX(i), structure.getBlockZ(i));
 		}
 
 		// add to owner hash
@@ -109,24 +188,77 @@ public class StructureManager {
 			existing.add(structure);
 		}
 
+		if (!structure.isVerified()) {
+			addPending(structure);
+		}
+
 		if (player != null) {
 			for (StructureListener listener : listeners) {
 				listener.structurePlaced(player, structure);
 			}
 		}
+
+		save(structure);
 	}
 
 	public void removeStructure(BlockBreakEvent event, Structure structure) {
-		this.structures.remove(structure);
-
-		// remove from block hash
-		for (Block block : structure.getBlocks()) {
-			BlockHashable bh = new BlockHashable(block);
-			Set<Structure> existing = this.blockhash.get(bh);
-			existing.remove(structure);
-			if (existing.isEmpty()) {
-				this.blockhash.remove(bh);
+		removeStructure(event.getPlayer(), structure);
+	}
+
+	/**
+	 * @param player
+	 *            The player that destroyed the structure, or null if it wasn't
+	 *            a player (or it just wasn't there anymore).
+	 */
+	public void removeStructure(Player player, Structure structure) {
+		if (!forgetStructure(structure)) {
+			return;
+		}
+
+		for (StructureListener listener : listeners) {
+			listener.structureDestroyed(player, structure);
+		}
+
+		if (!this.loading) {
+			String worldName = structure.getWorld().getName();
+			storage.deleteStructure(worldName, recordKey(worldName, structure.getRootX(), structure.getRootY(), structure.getRootZ()));
+		}
+	}
+
+	/*
+	 * Take the structure out of all the indexes.
+	 * 
+	 * @return Whether it was there.
+	 */
+	private boolean forgetStructure(Structure structure) {
+		int id = structure.getId();
+		if (id == 0 || this.structuresById.get(id) != structure) {
+			// already removed
+			return false;
+		}
+		this.structuresById.set(id, null);
+		this.freeIds.add(id);
+		this.structureCount--;
+		structure.setId(0);
+		removePending(structure);
+
+		// remove from block index
+		String worldName = structure.getWorld().getName();
+		LongIntHashMap worldIndex = this.blockIndex.get(worldName);
+		for (int i = 0; i < structure.getBlockCount(); i++) {
+			long key = packBlock(structure.getBlockX(i), structure.getBlockY(i), structure.getBlockZ(i));
+			if (worldIndex.get(key) == id) {
+				// the block stays indexed if another structure shares it
+				int other = takeShared(worldName, key);
+				if (other != 0) {
+					worldIndex.put(key, other);
+				} else {
+					worldIndex.remove(key);
+				}
+			} else {
+				removeShared(worldName, key, id);
 			}
+			removePresence(worldName, structure.getBlockX(i), structure.getBlockZ(i));
 		}
 
 		// remove from owner hash
@@ -137,18 +269,334 @@ public class StructureManager {
 			this.ownerhash.remove(owner);
 		}
 
-		for (StructureListener listener : listeners) {
-			listener.structureDestroyed(event.getPlayer(), structure);
+		Set<Structure> structures = this.worldStructures.get(worldName);
+		if (structures != null) {
+			structures.remove(structure);
 		}
+		return true;
+	}
 
+	/**
+	 * Record that a structure's saved information (anything a listener adds
+	 * in structureSaving) has changed.
+	 */
+	public void structureUpdated(Structure structure) {
+		if (structure.getId() != 0) {
+			save(structure);
+		}
 	}
 
-	public Set<Structure> getStructuresFromBlock(Block block) {
-		BlockHashable bh = new BlockHashable(block);
-		Set<Structure> structureSet = this.blockhash.get(bh);
-		if (structureSet == null)
-			return null;
-		return new HashSet<Structure>(structureSet);
+	// ---------- Saving -----------------------------------------
+	/**
+	 * @return The key a structure's record is saved under.
+	 */
+	public static String recordKey(String world, int x, int y, int z) {
+		return world + ":" + x + ":" + y + ":" + z;
+	}
+
+	/**
+	 * @return The key a record is saved under, from its world and root.
+	 */
+	public static String recordKey(Map<String, ?> record) {
+		return recordKey(Records.getString(record, "world", ""), Records.getInt(record, "x", 0), Records.getInt(record, "y", 0),
+				Records.getInt(record, "z", 0));
+	}
+
+	private void save(Structure structure) {
+		if (this.loading) {
+			return;
+		}
+
+		String worldName = structure.getWorld().getName();
+		String key = recordKey(worldName, structure.getRootX(), structure.getRootY(), structure.getRootZ());
+		storage.saveStructure(worldName, key, toRecord(structure), getBlocks(structure));
+	}
+
+	private BinaryStructureFile.Blocks getBlocks(Structure structure) {
+		long[] packed = new long[structure.getBlockCount()];
+		for (int i = 0; i < packed.length; i++) {
+			packed[i] = packBlock(structure.getBlockX(i), structure.getBlockY(i), structure.getBlockZ(i));
+		}
+		long fingerprint = matcher.getFingerprint(structure.getStructureType(), structure.getVariant());
+		return new BinaryStructureFile.Blocks(fingerprint, packed);
+	}
+
+	// ---------- Lazy verification ------------------------------
+	static long chunkKey(int chunkX, int chunkZ) {
+		return ((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+	}
+
+	private static Set<Long> getChunkKeys(Structure structure) {
+		Set<Long> keys = new HashSet<Long>();
+		for (int i = 0; i < structure.getBlockCount(); i++) {
+			keys.add(chunkKey(structure.getBlockX(i) >> 4, structure.getBlockZ(i) >> 4));
+		}
+		return keys;
+	}
+
+	private void addPending(Structure structure) {
+		if (!this.pending.add(structure)) {
+			return;
+		}
+
+		String worldName = structure.getWorld().getName();
+		Map<Long, List<Structure>> worldPending = this.pendingChunks.get(worldName);
+		if (worldPending == null) {
+			worldPending = new HashMap<Long, List<Structure>>();
+			this.pendingChunks.put(worldName, worldPending);
+		}
+
+		for (Long key : getChunkKeys(structure)) {
+			List<Structure> waiting = worldPending.get(key);
+			if (waiting == null) {
+				waiting = new ArrayList<Structure>(1);
+				worldPending.put(key, waiting);
+			}
+			waiting.add(structure);
+		}
+	}
+
+	private void removePending(Structure structure) {
+		if (!this.pending.remove(structure)) {
+			return;
+		}
+
+		Map<Long, List<Structure>> worldPending = this.pendingChunks.get(structure.getWorld().getName());
+		for (Long key : getChunkKeys(structure)) {
+			List<Structure> waiting = worldPending.get(key);
+			waiting.remove(structure);
+			if (waiting.isEmpty()) {
+				worldPending.remove(key);
+			}
+		}
+	}
+
+	private boolean isLoaded(Structure structure, long loadingChunk) {
+		World world = structure.getWorld();
+		for (Long key : getChunkKeys(structure)) {
+			if (key.longValue() == loadingChunk) {
+				continue;
+			}
+
+			if (!world.isChunkLoaded((int) (key.longValue() >> 32), (int) key.longValue())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * Check a pending structure against the world, dropping it if it isn't
+	 * there anymore.
+	 */
+	private boolean verifyPending(Structure structure) {
+		removePending(structure);
+		if (this.matcher.verify(structure)) {
+			structure.setVerified(true);
+			return true;
+		}
+
+		log.warning(logPrefix + structure + ": structure was bad");
+		removeStructure((Player) null, structure);
+		return false;
+	}
+
+	/**
+	 * Verify the waiting structures that are now completely loaded.
+	 */
+	public void chunkLoaded(Chunk chunk) {
+		Map<Long, List<Structure>> worldPending = this.pendingChunks.get(chunk.getWorld().getName());
+		if (worldPending == null) {
+			return;
+		}
+
+		long key = chunkKey(chunk.getX(), chunk.getZ());
+		List<Structure> waiting = worldPending.get(key);
+		if (waiting == null) {
+			return;
+		}
+
+		for (Structure structure : new ArrayList<Structure>(waiting)) {
+			if (isLoaded(structure, key)) {
+				verifyPending(structure);
+			}
+		}
+	}
+
+	/**
+	 * Make sure a structure has been verified, loading its chunks if needed.
+	 * 
+	 * @return Whether the structure is (still) valid.
+	 */
+	public boolean ensureVerified(Structure structure) {
+		if (structure.isVerified()) {
+			return true;
+		}
+
+		if (!this.pending.contains(structure)) {
+			// already found to be bad
+			return false;
+		}
+
+		// Loading the chunks fires the chunk load events that verify it
+		for (Long key : getChunkKeys(structure)) {
+			structure.getWorld().getChunkAt((int) (key.longValue() >> 32), (int) key.longValue());
+		}
+
+		if (this.pending.contains(structure)) {
+			return verifyPending(structure);
+		}
+
+		return structure.isVerified();
+	}
+
+	// ---------- Chunk presence ---------------------------------
+	/**
+	 * Count a block the plugin cares about (besides the structure blocks,
+	 * which are counted already) in the chunk at the block coordinates.
+	 */
+	public void addPresence(String worldName, int x, int z) {
+		LongIntHashMap worldPresence = this.chunkPresence.get(worldName);
+		if (worldPresence == null) {
+			worldPresence = new LongIntHashMap();
+			this.chunkPresence.put(worldName, worldPresence);
+		}
+		worldPresence.adjust(chunkKey(x >> 4, z >> 4), 1);
+	}
+
+	public void removePresence(String worldName, int x, int z) {
+		LongIntHashMap worldPresence = this.chunkPresence.get(worldName);
+		if (worldPresence != null) {
+			worldPresence.adjust(chunkKey(x >> 4, z >> 4), -1);
+		}
+	}
+
+	/**
+	 * A cheap check for block events: if the chunk has no structure blocks or
+	 * bound signs, nothing in it can concern us.
+	 */
+	public boolean isChunkOccupied(Block block) {
+		return isChunkOccupied(block.getWorld(), block.getX() >> 4, block.getZ() >> 4);
+	}
+
+	public boolean isChunkOccupied(World world, int chunkX, int chunkZ) {
+		LongIntHashMap worldPresence = this.chunkPresence.get(world.getName());
+		return worldPresence != null && worldPresence.containsKey(chunkKey(chunkX, chunkZ));
+	}
+
+	// ---------- Block index ------------------------------------
+	/**
+	 * Pack block coordinates into a single long: 26 bits for x and z (enough
+	 * for the whole world border) and 12 bits for y.
+	 */
+	public static long packBlock(int x, int y, int z) {
+		return ((long) (x & 0x3FFFFFF) << 38) | ((long) (z & 0x3FFFFFF) << 12) | (y & 0xFFF);
+	}
+
+	public static int unpackX(long packed) {
+		return (int) (packed >> 38);
+	}
+
+	public static int unpackY(long packed) {
+		return (int) (packed & 0xFFF);
+	}
+
+	public static int unpackZ(long packed) {
+		return (int) (packed << 26 >> 38);
+	}
+
+	private void addShared(String worldName, long key, int id) {
+		Map<Long, List<Integer>> worldShared = this.sharedBlocks.get(worldName);
+		if (worldShared == null) {
+			worldShared = new HashMap<Long, List<Integer>>();
+			this.sharedBlocks.put(worldName, worldShared);
+		}
+		List<Integer> ids = worldShared.get(key);
+		if (ids == null) {
+			ids = new ArrayList<Integer>(1);
+			worldShared.put(key, ids);
+		}
+		ids.add(id);
+	}
+
+	/*
+	 * @return Another structure's id for the block, taken out of the shared
+	 * ones, or 0 if there is none.
+	 */
+	private int takeShared(String worldName, long key) {
+		Map<Long, List<Integer>> worldShared = this.sharedBlocks.get(worldName);
+		List<Integer> ids = worldShared == null ? null : worldShared.get(key);
+		if (ids == null) {
+			return 0;
+		}
+		int id = ids.remove(ids.size() - 1);
+		if (ids.isEmpty()) {
+			worldShared.remove(key);
+		}
+		return id;
+	}
+
+	private void removeShared(String worldName, long key, int id) {
+		Map<Long, List<Integer>> worldShared = this.sharedBlocks.get(worldName);
+		List<Integer> ids = worldShared == null ? null : worldShared.get(key);
+		if (ids == null) {
+			return;
+		}
+		ids.remove(Integer.valueOf(id));
+		if (ids.isEmpty()) {
+			worldShared.remove(key);
+		}
+	}
+
+	private int getStructureId(World world, int x, int y, int z) {
+		LongIntHashMap worldIndex = this.blockIndex.get(world.getName());
+		if (worldIndex == null) {
+			return 0;
+		}
+		return worldIndex.get(packBlock(x, y, z));
+	}
+
+	/**
+	 * @return The structure the block is part of, or null.
+	 */
+	public Structure getStructureAt(Block block) {
+		return getStructureAt(block.getWorld(), block.getX(), block.getY(), block.getZ());
+	}
+
+	public Structure getStructureAt(World world, int x, int y, int z) {
+		int id = getStructureId(world, x, y, z);
+		return id == 0 ? null : this.structuresById.get(id);
+	}
+
+	/**
+	 * @return Every structure the block is part of, usually one, or an empty
+	 *         list.
+	 */
+	public List<Structure> getStructuresAt(Block block) {
+		World world = block.getWorld();
+		int id = getStructureId(world, block.getX(), block.getY(), block.getZ());
+		if (id == 0) {
+			return Collections.emptyList();
+		}
+
+		List<Structure> result = new ArrayList<Structure>(1);
+		result.add(this.structuresById.get(id));
+		Map<Long, List<Integer>> worldShared = this.sharedBlocks.get(world.getName());
+		List<Integer> ids = worldShared == null ? null : worldShared.get(packBlock(block.getX(), block.getY(), block.getZ()));
+		if (ids != null) {
+			for (int other : ids) {
+				result.add(this.structuresById.get(other));
+			}
+		}
+		return result;
+	}
+
+	public boolean isStructureBlock(Block block) {
+		return getStructureId(block.getWorld(), block.getX(), block.getY(), block.getZ()) != 0;
+	}
+
+	public boolean isStructureBlock(World world, int x, int y, int z) {
+		return getStructureId(world, x, y, z) != 0;
 	}
 
 	public Set<Structure> getStructuresFromPlayer(Player player) {
@@ -160,16 +608,21 @@ public class StructureManager {
 	}
 
 	public StructureType getStructureType(String name) {
-		for (StructureType type : this.structureTypes) {
-			if (type.getName().equals(name)) {
-				return type;
-			}
-		}
-		return null;
+		return this.structureTypesByName.get(name);
 	}
 
 	// ---------- Structure type loading/saving ------------------
 	public void loadStructureTypesOrDefault() {
+		setStructureTypes(readStructureTypesOrDefault());
+	}
+
+	/**
+	 * Read the structure types, writing the defaults first if there are none.
+	 * This doesn't touch any worlds, so it can be done off the main thread.
+	 *
+	 * @return The structure types, largest first.
+	 */
+	public List<StructureType> readStructureTypesOrDefault() {
 
 		File structureTypesFile = new File(this.plugin.getDataFolder(), this.structureTypes_filename);
 		if (!structureTypesFile.isFile()) {
@@ -182,7 +635,7 @@ public class StructureManager {
 			}
 		}
 
-		this.loadStructureTypes();
+		return this.readStructureTypes();
 	}
 
 	public List<ConfigurationSection> getNodeListAA(ConfigurationSection section, String path, List<ConfigurationSection> def) {
@@ -205,48 +658,62 @@ public class StructureManager {
 		return list;
 	}
 
-	private void loadStructureTypes() {
+	private List<StructureType> readStructureTypes() {
 
 		File structureTypesFile = new File(this.plugin.getDataFolder(), this.structureTypes_filename);
 		// Configuration conf = new Configuration(structureTypesFile);
 		// conf.load();
 
-		YamlConfiguration conf = YamlConfiguration.loadConfiguration(structureTypesFile);
-
-		// List<ConfigurationSection> nodelist = getNodeList(conf,
-		// "structuretypes", new ArrayList<ConfigurationSection>());
-
-		// List<ConfigurationNode> nodelist = conf.getNodeList("structuretypes",
-		// new ArrayList<ConfigurationNode>());
-		BkOldConfigurationNode OldNode = new BkOldConfigurationNode((Map<String, Object>) conf.getValues(true));
-
-		List<BkOldConfigurationNode> nodelist = OldNode.getNodeList("structuretypes", new ArrayList<BkOldConfigurationNode>());
-
-		// log.info("##" + nodelist.size());
-
-		// for (ConfigurationNode node : nodelist) {
-		// for (String nodeKey : nodelist.getKeys(true)) {
-		for (BkOldConfigurationNode node : nodelist) {
-			// ConfigurationSection node =
-			// nodelist.getConfigurationSection(nodeKey);
-			StructureType structureType = this.yaml2StructureType(node);
-			if (structureType == null) {
-				log.warning(logPrefix + "a structure type couldn't be loaded");
-			} else {
-				this.structureTypes.add(structureType);
-			}
+		final List<StructureType> types = new ArrayList<StructureType>();
+		try {
+			YamlStreamReader.read(structureTypesFile, "structuretypes", new YamlStreamReader.Handler() {
+				@SuppressWarnings("unchecked")
+				public void entry(String key, Object value) {
+					StructureType structureType = null;
+					if (value instanceof Map) {
+						structureType = yaml2StructureType((Map<String, Object>) value);
+					}
+
+					if (structureType == null) {
+						log.warning(logPrefix + "a structure type couldn't be loaded");
+					} else {
+						types.add(structureType);
+					}
+				}
+			});
+		} catch (IOException e) {
+			log.severe(logPrefix + "could not read " + structureTypesFile.getName() + ": " + e.getMessage());
 		}
 
 		/*
 		 * Sort the StructureTypes by structure size. This way, larger totems
 		 * will be found before smaller totems (and possibly subtotems).
 		 */
-		Collections.sort(this.structureTypes, new Comparator<StructureType>() {
+		Collections.sort(types, new Comparator<StructureType>() {
 			public int compare(StructureType o1, StructureType o2) {
 				return o1.getBlockCount() - o2.getBlockCount();
 			}
 		});
-		Collections.reverse(this.structureTypes);
+		Collections.reverse(types);
+		return types;
+	}
+
+	/**
+	 * Start using the structure types read by readStructureTypesOrDefault().
+	 */
+	public void setStructureTypes(List<StructureType> types) {
+		// The first type of a name wins, as it did when types were looked up
+		// by walking the list.
+		Map<String, StructureType> byName = new HashMap<String, StructureType>();
+		for (StructureType type : types) {
+			if (!byName.containsKey(type.getName())) {
+				byName.put(type.getName(), type);
+			}
+		}
+
+		this.structureTypes = Collections.unmodifiableList(types);
+		this.structureTypesByName = byName;
+		this.matcher = new StructureMatcher(this.structureTypes);
 
 		log.info(logPrefix + "loaded " + this.structureTypes.size() + " structure types");
 	}
@@ -286,29 +753,29 @@ public class StructureManager {
 
 	private List<Object> structureTypePattern2yaml(StructureType structuretype) {
 		List<Object> yamllist = new ArrayList<Object>();
-		for (BlockOffset offset : structuretype.getPattern().keySet()) {
-			Material material = structuretype.getPattern().get(offset);
+		for (int i = 0; i < structuretype.getBlockCount(); i++) {
 			HashMap<String, Object> part = new HashMap<String, Object>();
-			part.put("x", offset.getX());
-			part.put("y", offset.getY());
-			part.put("z", offset.getZ());
-			part.put("material", material.toString());
+			part.put("x", structuretype.getBlockX(i));
+			part.put("y", structuretype.getBlockY(i));
+			part.put("z", structuretype.getBlockZ(i));
+			part.put("material", structuretype.getBlockMaterial(i).toString());
 			yamllist.add(part);
 		}
 		return yamllist;
 	}
 
 	// private StructureType yaml2StructureType(ConfigurationNode node) {
-	private StructureType yaml2StructureType(BkOldConfigurationNode node) {
+	@SuppressWarnings("unchecked")
+	private StructureType yaml2StructureType(Map<String, Object> node) {
 		StructureType.Prototype prototype = new StructureType.Prototype();
-		String name = node.getString("name", null);
+		String name = Records.getString(node, "name", null);
 		if (name == null) {
 			log.info(logPrefix + "Structure type's name is not set");
 			return null;
 		}
 		prototype.setName(name);
 
-		String rotatorstr = node.getString("rotator", null);
+		String rotatorstr = Records.getString(node, "rotator", null);
 		if (rotatorstr == null) {
 			log.warning(logPrefix + "Structure type's rotator is not set");
 			rotatorstr = ":(";
@@ -326,7 +793,7 @@ public class StructureManager {
 		// List<ConfigurationSection> structuretypenodes = getNodeList(node,
 		// "structure", new ArrayList<ConfigurationSection>());
 
-		List<BkOldConfigurationNode> structuretypenodes = node.getNodeList("structure", new ArrayList<BkOldConfigurationNode>());
+		List<Map<String, Object>> structuretypenodes = Records.getMapList(node, "structure");
 
 		// log.info("structuretypenodes" + structuretypenodes.size());
 
@@ -336,15 +803,15 @@ public class StructureManager {
 		}
 
 		// for (ConfigurationNode structureNode : structuretypenodes) {
-		for (BkOldConfigurationNode structureNode : structuretypenodes) {
-			int x = structureNode.getInt("x", Integer.MIN_VALUE);
-			int y = structureNode.getInt("y", Integer.MIN_VALUE);
-			int z = structureNode.getInt("z", Integer.MIN_VALUE);
+		for (Map<String, Object> structureNode : structuretypenodes) {
+			int x = Records.getInt(structureNode, "x", Integer.MIN_VALUE);
+			int y = Records.getInt(structureNode, "y", Integer.MIN_VALUE);
+			int z = Records.getInt(structureNode, "z", Integer.MIN_VALUE);
 			if (x == Integer.MIN_VALUE || y == Integer.MIN_VALUE || z == Integer.MIN_VALUE) {
 				log.warning(logPrefix + "Structure's x, y, or z is not set");
 			}
 
-			String materialstr = structureNode.getString("material", null);
+			String materialstr = Records.getString(structureNode, "material", null);
 			if (materialstr == null) {
 				log.warning(logPrefix + "Structure's material is not set");
 			}
@@ -370,7 +837,7 @@ public class StructureManager {
 		// prototype.setMetadata((Map<String, String>)
 		// node.getConfigurationSection("metadata"));
 
-		prototype.setMetadata((Map<String, String>) node.getProperty("metadata"));
+		prototype.setMetadata((Map<String, String>) node.get("metadata"));
 
 		if (prototype.getBlockCount() < 3) {
 			log.warning(logPrefix + "For technical reasons, the structure's block count must be at least 3");
@@ -381,72 +848,190 @@ public class StructureManager {
 	}
 
 	// ---------- Structure loading/saving -----------------------
+	/**
+	 * Load the structures of every world that is already loaded, the rest are
+	 * loaded with their worlds.
+	 */
 	public void loadStructures() {
+		for (World world : this.plugin.getServer().getWorlds()) {
+			loadWorld(world);
+		}
+	}
 
-		File structuresFile = new File(this.plugin.getDataFolder(), this.structures_filename);
-		// Configuration conf = new Configuration(structuresFile);
-		// conf.load();
+	private Set<Structure> getWorldStructures(World world) {
+		Set<Structure> structures = this.worldStructures.get(world.getName());
+		if (structures == null) {
+			loadWorld(world);
+			structures = this.worldStructures.get(world.getName());
+		}
+		return structures;
+	}
 
-		YamlConfiguration conf = YamlConfiguration.loadConfiguration(structuresFile);
+	/**
+	 * The saved structures of a world, built as their records were read but
+	 * not added yet, with the records the listeners load the rest from.
+	 */
+	public static class WorldRecords {
+		final List<Structure> structures = new ArrayList<Structure>();
+		final List<Map<String, Object>> records = new ArrayList<Map<String, Object>>();
 
-		// List<ConfigurationNode> nodelist = conf.getNodeList("structures", new
-		// ArrayList<ConfigurationNode>());
-		// List<ConfigurationSection> nodelist = getNodeList(conf, "structures",
-		// new ArrayList<ConfigurationSection>());
-		BkOldConfigurationNode OldNode = new BkOldConfigurationNode((Map<String, Object>) conf.getValues(true));
-		List<BkOldConfigurationNode> nodelist = OldNode.getNodeList("structures", new ArrayList<BkOldConfigurationNode>());
+		public int size() {
+			return structures.size();
+		}
+	}
 
-		// for (ConfigurationNode node : nodelist) {
-		for (BkOldConfigurationNode node : nodelist) {
-			Structure structure = this.yaml2Structure(node);
+	/**
+	 * Read a world's saved structures from storage, building each one as its
+	 * record is read. This doesn't touch the world, so it can be done off the
+	 * main thread once the structure types are set, as long as nothing else
+	 * uses the storage in the meantime.
+	 */
+	public WorldRecords readWorld(final World world) {
+		final WorldRecords saved = new WorldRecords();
+		try {
+			storage.loadStructures(world.getName(), new StorageBackend.RecordHandler() {
+				public void record(String key, Map<String, Object> record, BinaryStructureFile.Blocks blocks) {
+					Structure structure = yaml2Structure(record, world, blocks);
+					if (structure == null) {
+						log.warning(logPrefix + "A structure couldn't be loaded");
+					} else {
+						saved.structures.add(structure);
+						saved.records.add(record);
+					}
+				}
+			});
+		} catch (IOException e) {
+			log.severe(logPrefix + "could not load the structures in " + world.getName() + ": " + e.getMessage());
+		}
+		return saved;
+	}
 
-			if (structure == null) {
-				log.warning(logPrefix + "A structure couldn't be loaded");
-			} else {
+	/**
+	 * Load a world's structures, when it is loaded.
+	 */
+	public void loadWorld(World world) {
+		if (!this.worldStructures.containsKey(world.getName())) {
+			loadWorld(world, readWorld(world));
+		}
+	}
+
+	/**
+	 * Add a world's structures built by readWorld().
+	 */
+	public void loadWorld(World world, WorldRecords saved) {
+		String worldName = world.getName();
+		if (this.worldStructures.containsKey(worldName)) {
+			return;
+		}
+		Set<Structure> structures = new LinkedHashSet<Structure>();
+		this.worldStructures.put(worldName, structures);
+
+		int loaded = 0;
+		this.loading = true;
+		try {
+			for (int i = 0; i < saved.structures.size(); i++) {
+				Structure structure = saved.structures.get(i);
 				for (StructureListener listener : listeners) {
-					listener.structureLoaded(structure, node);
+					listener.structureLoaded(structure, saved.records.get(i));
 				}
 
 				this.addStructure(null, structure);
+				loaded++;
 			}
+		} finally {
+			this.loading = false;
 		}
 
-		log.info(logPrefix + "Loaded " + this.structures.size() + " structure(s)");
-	}
-
-	public void saveStructures() throws IOException {
+		log.info(logPrefix + "Loaded " + loaded + " structure(s) in " + worldName);
+
+		// The structures are verified as their chunks load, catch up on the
+		// chunks that are loaded already.
+		int waiting = 0;
+		for (Structure structure : new ArrayList<Structure>(structures)) {
+			if (this.pending.contains(structure)) {
+				if (isLoaded(structure, Long.MIN_VALUE)) {
+					verifyPending(structure);
+				} else {
+					waiting++;
+				}
+			}
+		}
 
-		File structuresfile = new File(this.plugin.getDataFolder(), this.structures_filename);
-		// Configuration conf = new Configuration(structuresfile);
-		YamlConfiguration conf = YamlConfiguration.loadConfiguration(structuresfile);
+		if (waiting > 0) {
+			log.info(logPrefix + waiting + " structure(s) in " + worldName + " will be verified when their chunks load");
+		}
+	}
 
-		List<Object> yamllist = new ArrayList<Object>();
+	/**
+	 * Save a world's structures and let go of them, when it is unloaded.
+	 */
+	public void unloadWorld(World world) {
+		String worldName = world.getName();
+		Set<Structure> structures = this.worldStructures.get(worldName);
+		if (structures == null) {
+			return;
+		}
 
-		for (Structure structure : this.structures) {
-			Map<String, Object> structure2yaml = this.structure2yaml(structure);
+		storage.unloadWorld(worldName);
+		this.worldStructures.remove(worldName);
 
+		for (Structure structure : new ArrayList<Structure>(structures)) {
+			forgetStructure(structure);
 			for (StructureListener listener : listeners) {
-				listener.structureSaving(structure, structure2yaml);
+				listener.structureUnloaded(structure);
 			}
+		}
+
+		this.blockIndex.remove(worldName);
+		this.sharedBlocks.remove(worldName);
+		this.chunkPresence.remove(worldName);
+		this.pendingChunks.remove(worldName);
+		log.info(logPrefix + "Unloaded the structures in " + worldName);
+	}
+
+	/**
+	 * Save every loaded world's structures, if the storage backend saves them
+	 * all at once.
+	 */
+	public void saveStructures() {
+		storage.saveStructures();
+	}
 
-			yamllist.add(structure2yaml);
+	/**
+	 * Copy the records of a world's structures, with their blocks in the same
+	 * order, for storage backends that save them all at once.
+	 */
+	public void getStructureRecords(String worldName, List<Map<String, Object>> records, List<BinaryStructureFile.Blocks> blocks) {
+		Set<Structure> structures = this.worldStructures.get(worldName);
+		if (structures == null) {
+			return;
 		}
 
-		log.info(logPrefix + "Saved " + this.structures.size() + " structures");
+		for (Structure structure : structures) {
+			records.add(toRecord(structure));
+			blocks.add(getBlocks(structure));
+		}
+	}
 
-		// conf.setProperty("structures", yamllist);
-		conf.set("structures", yamllist);
-		// conf.save();
-		conf.save(structuresfile);
+	private Map<String, Object> toRecord(Structure structure) {
+		Map<String, Object> structure2yaml = this.structure2yaml(structure);
+
+		for (StructureListener listener : listeners) {
+			listener.structureSaving(structure, structure2yaml);
+		}
+
+		return structure2yaml;
 	}
 
 	private Map<String, Object> structure2yaml(Structure structure) {
 		HashMap<String, Object> yamlmap = new HashMap<String, Object>();
-		yamlmap.put("world", structure.getRootBlock().getWorld().getName());
-		yamlmap.put("x", structure.getRootBlock().getX());
-		yamlmap.put("y", structure.getRootBlock().getY());
-		yamlmap.put("z", structure.getRootBlock().getZ());
+		yamlmap.put("world", structure.getWorld().getName());
+		yamlmap.put("x", structure.getRootX());
+		yamlmap.put("y", structure.getRootY());
+		yamlmap.put("z", structure.getRootZ());
 		yamlmap.put("type", structure.getStructureType().getName());
+		yamlmap.put("variant", structure.getVariant());
+		yamlmap.put("rotation", matcher.getRotation(structure.getStructureType(), structure.getVariant()));
 
 		String owner = structure.getOwner();
 		if (structure.getOwner() != null) {
@@ -457,37 +1042,36 @@ public class StructureManager {
 	}
 
 	// private Structure yaml2Structure(ConfigurationNode node) {
-	private Structure yaml2Structure(BkOldConfigurationNode node) {
-		String name = node.getString("name", "structure");
-		String worldstr = node.getString("world", null);
+	private Structure yaml2Structure(Map<String, Object> node, World world, BinaryStructureFile.Blocks blocks) {
+		String name = Records.getString(node, "name", "structure");
+		String worldstr = Records.getString(node, "world", null);
 		if (worldstr == null) {
 			log.warning(logPrefix + name + ": world is not set");
 			return null;
 		}
 
-		int x = node.getInt("x", Integer.MIN_VALUE);
-		int y = node.getInt("y", Integer.MIN_VALUE);
-		int z = node.getInt("z", Integer.MIN_VALUE);
+		int x = Records.getInt(node, "x", Integer.MIN_VALUE);
+		int y = Records.getInt(node, "y", Integer.MIN_VALUE);
+		int z = Records.getInt(node, "z", Integer.MIN_VALUE);
 		if (x == Integer.MIN_VALUE || y == Integer.MIN_VALUE || z == Integer.MIN_VALUE) {
 			log.warning(logPrefix + name + ": x, y, or z is not set");
 			return null;
 		}
 
-		String structureTypeStr = node.getString("type", null);
+		String structureTypeStr = Records.getString(node, "type", null);
 		if (structureTypeStr == null) {
 			log.warning(logPrefix + name + ": type is not set");
 			return null;
 		}
 
-		String owner = node.getString("owner", null);
+		String owner = Records.getString(node, "owner", null);
 		if (owner == null) {
 			// log.warning("totem's owner is not set");
 			// do nothing
 		}
 
-		World world = this.plugin.getServer().getWorld(worldstr);
-		if (world == null) {
-			log.warning(logPrefix + name + ": world is not recognized");
+		if (!worldstr.equals(world.getName())) {
+			log.warning(logPrefix + name + ": is saved with the structures of " + world.getName() + ", not " + worldstr);
 			return null;
 		}
 
@@ -497,10 +1081,52 @@ public class StructureManager {
 			return null;
 		}
 
-		Block block = world.getBlockAt(x, y, z);
-		Structure structure = new Structure(structureType, block, owner);
-		if (!structure.verifyStructure()) {
-			log.warning(logPrefix + name + ": structure was bad");
+		// The orientation's index changes whenever the type's pattern or
+		// rotator does, so it is found again from the saved rotation.
+		// Structures saved without one only have the index, which is trusted
+		// only while their saved blocks don't say otherwise. Structures from
+		// before rotation support are all in the type's own orientation.
+		int variant;
+		String rotation = Records.getString(node, "rotation", null);
+		if (rotation != null) {
+			variant = matcher.getVariant(structureType, rotation);
+			if (variant == -1) {
+				log.warning(logPrefix + name + ": type of " + structureTypeStr + " can't be rotated by " + rotation + " anymore");
+				return null;
+			}
+		} else {
+			variant = Records.getInt(node, "variant", 0);
+			if (blocks != null && blocks.getFingerprint() != matcher.getFingerprint(structureType, variant)) {
+				int matched = matcher.getVariant(structureType, blocks.getFingerprint());
+				if (matched != -1) {
+					variant = matched;
+				}
+			}
+		}
+
+		// Don't touch the world here, the structure is verified once its
+		// chunks are loaded.
+		Structure structure = null;
+		if (blocks != null && blocks.getFingerprint() == matcher.getFingerprint(structureType, variant)) {
+			long[] packed = blocks.getPacked();
+			int[] blockX = new int[packed.length];
+			int[] blockY = new int[packed.length];
+			int[] blockZ = new int[packed.length];
+			for (int i = 0; i < packed.length; i++) {
+				blockX[i] = unpackX(packed[i]);
+				blockY[i] = unpackY(packed[i]);
+				blockZ[i] = unpackZ(packed[i]);
+			}
+			structure = matcher.getUnverified(structureType, variant, world, x, y, z, blockX, blockY, blockZ, owner);
+		}
+
+		if (structure == null) {
+			// The pattern has changed (or there were no saved blocks)
+			structure = matcher.getUnverified(structureType, variant, world, x, y, z, owner);
+		}
+
+		if (structure == null) {
+			log.warning(logPrefix + name + ": type of " + structureTypeStr + " has no orientation " + variant);
 			return null;
 		}
 
@@ -0,0 +1,156 @@
+package za.dats.bukkit.memorystone.util;
+
+/**
+ * A hierarchical timing wheel of timers, counted in ticks, for a single
+ * repeating task to drive with advance().
+ *
+ * Three wheels of 64 slots each, with slots 1, 64 and 4096 ticks wide, reach
+ * 262144 ticks ahead. A timer goes in the finest wheel that reaches it, and
+ * moves down as its time comes closer. Scheduling and cancelling are O(1), and
+ * a tick only looks at the one slot that is due.
+ *
+ * Not thread safe, use it from the main thread.
+ *
+ * @author cmdrdats
+ */
+public class TimingWheel {
+	private static final int BITS = 6;
+	private static final int SLOTS = 1 << BITS;
+	private static final int MASK = SLOTS - 1;
+	private static final int LEVELS = 3;
+
+	/**
+	 * Something to run when its tick comes. A timer can be scheduled again
+	 * once it has run or been cancelled.
+	 */
+	public static abstract class Timer {
+		private Timer previous;
+		private Timer next;
+		private long due;
+		private int level = -1;
+		private int slot;
+
+		public abstract void expire();
+
+		public boolean isScheduled() {
+			return level != -1;
+		}
+	}
+
+	private final Timer[][] wheels = new Timer[LEVELS][SLOTS];
+	private long tick;
+	private int size;
+
+	/**
+	 * @param delay
+	 *            In ticks, at least 1.
+	 */
+	public void schedule(Timer timer, long delay) {
+		if (timer.isScheduled()) {
+			unlink(timer);
+		}
+		timer.due = tick + Math.max(1, delay);
+		place(timer);
+		size++;
+	}
+
+	/**
+	 * @return Whether the timer was scheduled.
+	 */
+	public boolean cancel(Timer timer) {
+		if (!timer.isScheduled()) {
+			return false;
+		}
+		unlink(timer);
+		size--;
+		return true;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Move on a tick, and run the timers that are due.
+	 */
+	public void advance() {
+		tick++;
+		int slot = (int) (tick & MASK);
+		if (slot == 0) {
+			cascade(1);
+		}
+
+		// One at a time, a timer may cancel others that are due as well
+		Timer timer;
+		while ((timer = wheels[0][slot]) != null) {
+			unlink(timer);
+			size--;
+			timer.expire();
+		}
+	}
+
+	/*
+	 * Bring the timers of the slot of the level that just came round down to
+	 * the finer wheels.
+	 */
+	private void cascade(int level) {
+		if (level >= LEVELS) {
+			return;
+		}
+
+		int slot = (int) ((tick >>> (BITS * level)) & MASK);
+		if (slot == 0) {
+			cascade(level + 1);
+		}
+
+		Timer timer;
+		while ((timer = wheels[level][slot]) != null) {
+			unlink(timer);
+			place(timer);
+		}
+	}
+
+	private void place(Timer timer) {
+		long delta = timer.due - tick;
+		int level;
+		long slot;
+		if (delta < SLOTS) {
+			level = 0;
+			slot = timer.due;
+		} else if (delta < SLOTS * SLOTS) {
+			level = 1;
+			slot = timer.due >>> BITS;
+		} else if (delta < (long) SLOTS * SLOTS * SLOTS) {
+			level = 2;
+			slot = timer.due >>> (2 * BITS);
+		} else {
+			// Further than the wheels reach: as far as they go, it's placed
+			// again when that slot comes round
+			level = 2;
+			slot = (tick >>> (2 * BITS)) + MASK;
+		}
+
+		timer.level = level;
+		timer.slot = (int) (slot & MASK);
+		timer.previous = null;
+		timer.next = wheels[level][timer.slot];
+		if (timer.next != null) {
+			timer.next.previous = timer;
+		}
+		wheels[level][timer.slot] = timer;
+	}
+
+	private void unlink(Timer timer) {
+		if (timer.previous != null) {
+			timer.previous.next = timer.next;
+		} else {
+			wheels[timer.level][timer.slot] = timer.next;
+		}
+		if (timer.next != null) {
+			timer.next.previous = timer.previous;
+		}
+		timer.previous = null;
+		timer.next = null;
+		timer.level = -1;
+	}
+}
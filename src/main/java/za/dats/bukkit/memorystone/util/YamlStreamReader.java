@@ -0,0 +1,232 @@
+package za.dats.bukkit.memorystone.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.events.AliasEvent;
+import org.yaml.snakeyaml.events.CollectionStartEvent;
+import org.yaml.snakeyaml.events.Event;
+import org.yaml.snakeyaml.events.MappingEndEvent;
+import org.yaml.snakeyaml.events.MappingStartEvent;
+import org.yaml.snakeyaml.events.NodeEvent;
+import org.yaml.snakeyaml.events.ScalarEvent;
+import org.yaml.snakeyaml.events.SequenceEndEvent;
+import org.yaml.snakeyaml.events.SequenceStartEvent;
+import org.yaml.snakeyaml.nodes.NodeId;
+import org.yaml.snakeyaml.nodes.Tag;
+import org.yaml.snakeyaml.resolver.Resolver;
+
+/**
+ * Reads our data files (structures, structure types and locations) from
+ * SnakeYAML's parse events, one entry at a time, instead of loading the whole
+ * document into a YamlConfiguration first.
+ *
+ * Only the top level keys that are asked for are read, the rest is skipped
+ * without building anything. The entries of those keys (the items of a list,
+ * the key/value pairs of a map, or a plain value) are built one at a time and
+ * handed over, as maps (with string keys), lists, sets, strings, numbers,
+ * booleans and nulls. Only the scalars our files use are turned into numbers,
+ * booleans and nulls, anything else stays a string.
+ *
+ * @author cmdrdats
+ */
+public class YamlStreamReader {
+	/**
+	 * Gets the entries of a top level key.
+	 */
+	public interface Handler {
+		/**
+		 * @param key
+		 *            The entry's key, or null for the items of a list (and a
+		 *            plain value).
+		 * @param value
+		 *            The entry's value.
+		 */
+		public void entry(String key, Object value);
+	}
+
+	private final Iterator<Event> events;
+	private final Resolver resolver = new Resolver();
+	private final Map<String, Object> anchors = new HashMap<String, Object>();
+
+	private YamlStreamReader(Reader reader) {
+		this.events = new Yaml().parse(reader).iterator();
+	}
+
+	public static void read(File file, String key, Handler handler) throws IOException {
+		read(file, Collections.singletonMap(key, handler));
+	}
+
+	/**
+	 * Read the file, if it exists.
+	 *
+	 * @param handlers
+	 *            A handler for each top level key that is wanted.
+	 * @throws IOException
+	 *             If the file can't be read or isn't valid YAML. The entries
+	 *             before the error have been handed over already.
+	 */
+	public static void read(File file, Map<String, Handler> handlers) throws IOException {
+		if (!file.isFile()) {
+			return;
+		}
+
+		Reader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			new YamlStreamReader(reader).readDocuments(handlers);
+		} catch (RuntimeException e) {
+			// SnakeYAML's errors aren't checked
+			throw new IOException(file.getName() + " is not valid: " + e.getMessage());
+		} finally {
+			reader.close();
+		}
+	}
+
+	private void readDocuments(Map<String, Handler> handlers) {
+		while (events.hasNext()) {
+			Event event = events.next();
+			if (event instanceof MappingStartEvent) {
+				for (Event keyEvent = events.next(); !(keyEvent instanceof MappingEndEvent); keyEvent = events.next()) {
+					Handler handler = handlers.get(String.valueOf(build(keyEvent)));
+					Event valueEvent = events.next();
+					if (handler == null) {
+						skip(valueEvent);
+					} else {
+						stream(valueEvent, handler);
+					}
+				}
+			} else if (event instanceof NodeEvent) {
+				// a document that isn't a map has nothing for us
+				skip(event);
+			}
+		}
+	}
+
+	private void stream(Event start, Handler handler) {
+		if (start instanceof SequenceStartEvent) {
+			for (Event event = events.next(); !(event instanceof SequenceEndEvent); event = events.next()) {
+				handler.entry(null, build(event));
+			}
+		} else if (start instanceof MappingStartEvent && !isSet(start)) {
+			for (Event event = events.next(); !(event instanceof MappingEndEvent); event = events.next()) {
+				String key = String.valueOf(build(event));
+				handler.entry(key, build(events.next()));
+			}
+		} else if (start instanceof ScalarEvent || start instanceof AliasEvent) {
+			handler.entry(null, build(start));
+		} else {
+			skip(start);
+		}
+	}
+
+	private void skip(Event start) {
+		if (!(start instanceof CollectionStartEvent)) {
+			return;
+		}
+
+		int depth = 1;
+		while (depth > 0) {
+			Event event = events.next();
+			if (event instanceof CollectionStartEvent) {
+				depth++;
+			} else if (event instanceof MappingEndEvent || event instanceof SequenceEndEvent) {
+				depth--;
+			}
+		}
+	}
+
+	private Object build(Event start) {
+		Object result;
+		if (start instanceof AliasEvent) {
+			return anchors.get(((AliasEvent) start).getAnchor());
+		} else if (start instanceof ScalarEvent) {
+			result = construct((ScalarEvent) start);
+		} else if (start instanceof SequenceStartEvent) {
+			List<Object> list = new ArrayList<Object>();
+			for (Event event = events.next(); !(event instanceof SequenceEndEvent); event = events.next()) {
+				list.add(build(event));
+			}
+			result = list;
+		} else if (start instanceof MappingStartEvent && isSet(start)) {
+			Set<Object> set = new LinkedHashSet<Object>();
+			for (Event event = events.next(); !(event instanceof MappingEndEvent); event = events.next()) {
+				set.add(build(event));
+				build(events.next());
+			}
+			result = set;
+		} else if (start instanceof MappingStartEvent) {
+			Map<String, Object> map = new LinkedHashMap<String, Object>();
+			for (Event event = events.next(); !(event instanceof MappingEndEvent); event = events.next()) {
+				String key = String.valueOf(build(event));
+				map.put(key, build(events.next()));
+			}
+			result = map;
+		} else {
+			return null;
+		}
+
+		String anchor = ((NodeEvent) start).getAnchor();
+		if (anchor != null) {
+			anchors.put(anchor, result);
+		}
+		return result;
+	}
+
+	private boolean isSet(Event start) {
+		String tag = ((CollectionStartEvent) start).getTag();
+		return tag != null && tag.equals(Tag.SET.getValue());
+	}
+
+	// ---------- Scalars -----------------------------------------
+	/*
+	 * Only the scalars our files hold are built: nulls, true and false, and
+	 * plain decimal integers and floats. Anything else is kept as it is
+	 * written, instead of copying the rest of SnakeYAML's constructor.
+	 */
+	private Object construct(ScalarEvent event) {
+		String value = event.getValue();
+		Tag tag;
+		if (event.getTag() == null || event.getTag().equals("!")) {
+			tag = resolver.resolve(NodeId.scalar, value, event.getImplicit().canOmitTagInPlainScalar());
+		} else {
+			tag = new Tag(event.getTag());
+		}
+
+		try {
+			if (tag.equals(Tag.NULL)) {
+				return null;
+			} else if (tag.equals(Tag.BOOL)) {
+				if (value.equalsIgnoreCase("true")) {
+					return Boolean.TRUE;
+				} else if (value.equalsIgnoreCase("false")) {
+					return Boolean.FALSE;
+				}
+			} else if (tag.equals(Tag.INT)) {
+				long number = Long.parseLong(value.startsWith("+") ? value.substring(1) : value);
+				if (number >= Integer.MIN_VALUE && number <= Integer.MAX_VALUE) {
+					return (int) number;
+				}
+				return number;
+			} else if (tag.equals(Tag.FLOAT)) {
+				return Double.valueOf(value);
+			}
+		} catch (NumberFormatException e) {
+			// leave it as it is written
+		}
+		return value;
+	}
+}
@@ -0,0 +1,111 @@
+package za.dats.bukkit.memorystone.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Circular zones (a centre and a radius, on x and z) in one world, kept in a
+ * uniform grid of square cells. A zone is added to every cell its bounding
+ * square overlaps, so the zones that might contain a point are the ones in the
+ * point's cell.
+ *
+ * Zones so large they would cover more than MAX_CELLS cells are kept aside in
+ * a list of their own instead, which every lookup has to check as well.
+ *
+ * @author cmdrdats
+ */
+public class ZoneGrid<T> {
+	private static final int CELL_SHIFT = 5; // 32 blocks
+	private static final int MAX_CELLS = 1024;
+
+	private final Map<Long, List<T>> cells = new HashMap<Long, List<T>>();
+	private final List<T> large = new ArrayList<T>();
+	private int size;
+
+	/**
+	 * Add a zone. Remove it again with the same centre and radius.
+	 */
+	public void add(T zone, int x, int z, double radius) {
+		size++;
+		int minX = (int) Math.floor(x - radius) >> CELL_SHIFT;
+		int maxX = (int) Math.floor(x + radius) >> CELL_SHIFT;
+		int minZ = (int) Math.floor(z - radius) >> CELL_SHIFT;
+		int maxZ = (int) Math.floor(z + radius) >> CELL_SHIFT;
+		if ((long) (maxX - minX + 1) * (maxZ - minZ + 1) > MAX_CELLS) {
+			large.add(zone);
+			return;
+		}
+
+		for (int cellX = minX; cellX <= maxX; cellX++) {
+			for (int cellZ = minZ; cellZ <= maxZ; cellZ++) {
+				Long key = cellKey(cellX, cellZ);
+				List<T> cell = cells.get(key);
+				if (cell == null) {
+					cell = new ArrayList<T>(2);
+					cells.put(key, cell);
+				}
+				cell.add(zone);
+			}
+		}
+	}
+
+	public void remove(T zone, int x, int z, double radius) {
+		int minX = (int) Math.floor(x - radius) >> CELL_SHIFT;
+		int maxX = (int) Math.floor(x + radius) >> CELL_SHIFT;
+		int minZ = (int) Math.floor(z - radius) >> CELL_SHIFT;
+		int maxZ = (int) Math.floor(z + radius) >> CELL_SHIFT;
+		if ((long) (maxX - minX + 1) * (maxZ - minZ + 1) > MAX_CELLS) {
+			if (large.remove(zone)) {
+				size--;
+			}
+			return;
+		}
+
+		boolean removed = false;
+		for (int cellX = minX; cellX <= maxX; cellX++) {
+			for (int cellZ = minZ; cellZ <= maxZ; cellZ++) {
+				Long key = cellKey(cellX, cellZ);
+				List<T> cell = cells.get(key);
+				if (cell != null && cell.remove(zone)) {
+					removed = true;
+					if (cell.isEmpty()) {
+						cells.remove(key);
+					}
+				}
+			}
+		}
+		if (removed) {
+			size--;
+		}
+	}
+
+	/**
+	 * @return The zones whose bounding square might contain the point. Check
+	 *         the zones from getLarge() as well.
+	 */
+	public List<T> getCell(double x, double z) {
+		List<T> cell = cells.get(cellKey((int) Math.floor(x) >> CELL_SHIFT, (int) Math.floor(z) >> CELL_SHIFT));
+		if (cell == null) {
+			return Collections.emptyList();
+		}
+		return cell;
+	}
+
+	/**
+	 * @return The zones too large to keep in the grid.
+	 */
+	public List<T> getLarge() {
+		return large;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	private static long cellKey(int cellX, int cellZ) {
+		return ((long) cellX << 32) | (cellZ & 0xffffffffL);
+	}
+}
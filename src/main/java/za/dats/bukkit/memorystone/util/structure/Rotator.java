@@ -104,6 +104,18 @@ public enum Rotator {
 		return this.rotlist.size();
 	}
 
+	/**
+	 * Get the number of pi/2 rotations about the X, Y and Z axes of one of the
+	 * rotations, in the same order as getRotated().
+	 *
+	 * @param rotation
+	 *            The index of the rotation.
+	 * @return The rotation counts, as an int trio.
+	 */
+	public BlockOffset getRotation(int rotation) {
+		return this.rotlist.get(rotation);
+	}
+
 	/**
 	 * This function is a little different. It rotates (in pi/2 increments) the
 	 * BlockVector about the X, Y, and Z axes. This method should be pretty
@@ -1,127 +1,159 @@
 package za.dats.bukkit.memorystone.util.structure;
 
-import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashSet;
-import java.util.List;
-import java.util.Map;
 import java.util.Set;
-import org.bukkit.Material;
+
+import org.bukkit.Location;
 import org.bukkit.World;
 import org.bukkit.block.Block;
 
 /**
- * 
+ * A structure in the world. The structure only knows the coordinates of its
+ * blocks, so it can exist before the chunks it is in have been loaded (and
+ * verified).
+ *
+ * Structures are made by the StructureMatcher.
+ *
  * @author tim
  * @author CmdrDats
  */
 public class Structure {
 
 	protected final StructureType structuretype;
-	protected final Block rootblock;
-	protected final Set<Block> blocks;
+	protected final int variant;
+	protected final World world;
+	protected final int rootX;
+	protected final int rootY;
+	protected final int rootZ;
+	protected final int[] blockX;
+	protected final int[] blockY;
+	protected final int[] blockZ;
 	protected String owner;
+	protected boolean verified;
+	protected int id;
+
+	Structure(StructureType structuretype, int variant, World world, int rootX, int rootY, int rootZ, int[] blockX, int[] blockY,
+			int[] blockZ, String owner, boolean verified) {
+		this.structuretype = structuretype;
+		this.variant = variant;
+		this.world = world;
+		this.rootX = rootX;
+		this.rootY = rootY;
+		this.rootZ = rootZ;
+		this.blockX = blockX;
+		this.blockY = blockY;
+		this.blockZ = blockZ;
+		this.owner = owner;
+		this.verified = verified;
+	}
 
-	public Structure(StructureType possiblestructuretype, Block block, String owner) {
-		this(new ArrayList<StructureType>(Arrays.asList(possiblestructuretype)), block, owner);
+	public StructureType getStructureType() {
+		return this.structuretype;
 	}
 
-	public Structure(List<StructureType> structuretypes, Block block, String owner) {
+	/**
+	 * @return Which orientation of the structure type this is.
+	 */
+	public int getVariant() {
+		return this.variant;
+	}
 
-		for (StructureType possiblestructuretype : structuretypes) {
-			Map<BlockOffset, Material> pattern = possiblestructuretype.getPattern();
+	/**
+	 * Note that this loads the chunk the root block is in, use the root
+	 * coordinates if you don't need the block itself.
+	 */
+	public Block getRootBlock() {
+		return this.world.getBlockAt(this.rootX, this.rootY, this.rootZ);
+	}
 
-			if (pattern.containsValue(block.getType())) {
-				Map<Material, List<BlockOffset>> reversepattern = possiblestructuretype.getReversePattern();
-				List<BlockOffset> offsets = reversepattern.get(block.getType());
+	public Location getRootLocation() {
+		return new Location(this.world, this.rootX, this.rootY, this.rootZ);
+	}
 
-				for (BlockOffset offset : offsets) {
-					Block possiblerootblock = block.getRelative(-offset.x, -offset.y, -offset.z);
-					Set<Block> possibleblocks = this.verifyStructure(possiblestructuretype, possiblerootblock);
+	public int getRootX() {
+		return this.rootX;
+	}
 
-					if (possibleblocks != null) {
-						this.structuretype = possiblestructuretype;
-						this.rootblock = possiblerootblock;
-						this.blocks = possibleblocks;
-						return;
-					}
-				}
-			}
-		}
+	public int getRootY() {
+		return this.rootY;
+	}
 
-		this.structuretype = null;
-		this.rootblock = null;
-		this.blocks = null;
-		this.owner = owner;
+	public int getRootZ() {
+		return this.rootZ;
 	}
 
-	public StructureType getStructureType() {
-		return this.structuretype;
+	public int getBlockCount() {
+		return this.blockX.length;
 	}
 
-	public Block getRootBlock() {
-		return this.rootblock;
+	public int getBlockX(int index) {
+		return this.blockX[index];
+	}
+
+	public int getBlockY(int index) {
+		return this.blockY[index];
+	}
+
+	public int getBlockZ(int index) {
+		return this.blockZ[index];
 	}
 
+	/**
+	 * Note that this loads every chunk the structure is in.
+	 */
 	public Set<Block> getBlocks() {
-		// defend against outisde adding/removing
-		return new HashSet<Block>(this.blocks);
+		Set<Block> blocks = new HashSet<Block>();
+		for (int i = 0; i < this.blockX.length; i++) {
+			blocks.add(this.world.getBlockAt(this.blockX[i], this.blockY[i], this.blockZ[i]));
+		}
+		return blocks;
 	}
 
 	public World getWorld() {
-		return this.rootblock.getWorld();
+		return this.world;
 	}
 
 	public boolean containsBlock(Block block) {
-		return this.blocks.contains(block);
-	}
+		if (!block.getWorld().equals(this.world)) {
+			return false;
+		}
 
-	public boolean verifyStructure() {
-		return (this.structuretype != null && this.rootblock != null && this.blocks != null);
+		int x = block.getX();
+		int y = block.getY();
+		int z = block.getZ();
+		for (int i = 0; i < this.blockX.length; i++) {
+			if (this.blockX[i] == x && this.blockY[i] == y && this.blockZ[i] == z) {
+				return true;
+			}
+		}
+
+		return false;
 	}
 
-	/*
-	 * private void durp(){ // figure out rotations things
-	 * 
-	 * Map<BlockOffset, Material> pattern = this.structuretype.getPattern();
-	 * Map<BlockOffset, Material> rotpattern = new HashMap<BlockOffset,
-	 * Material>();
-	 * 
-	 * for(BlockOffset offset) }
+	/**
+	 * @return Whether the blocks in the world have been checked against the
+	 *         pattern. Structures loaded from disk are only verified once their
+	 *         chunks load.
 	 */
+	public boolean isVerified() {
+		return this.verified;
+	}
+
+	public void setVerified(boolean verified) {
+		this.verified = verified;
+	}
 
 	/**
-	 * Search around the given block for the block pattern. For the search to be
-	 * successful v must point to a block which is part of the pattern. If the
-	 * block is not part of the pattern, or the pattern is incomplete, then this
-	 * function will return null. If the pattern is found, a Block corresponding
-	 * to the pattern origin will be returned.
-	 * 
-	 * @param block
-	 *            The Block to search around.
-	 * @return If the search is successful, then a Block corresponding to the
-	 *         pattern origin (offset <0, 0, 0>). If the search fails, then
-	 *         null.
-	 */
-	/*
-	 * private Block searchAtBlock(Block block){
-	 * 
-	 * Map<BlockOffset, Material> pattern = this.structuretype.getPattern();
-	 * 
-	 * if(!pattern.containsValue(block.getType())){ return null; }
-	 * 
-	 * Map<Material, List<BlockOffset>> reversepattern =
-	 * this.structuretype.getReversePattern(); List<BlockOffset> offsets =
-	 * reversepattern.get(block.getType());
-	 * 
-	 * for(BlockOffset offset : offsets){ Block possiblerootblock =
-	 * block.getRelative( -offset.x(), -offset.y, -offset.z);
-	 * 
-	 * if(this.verifyStructure(possiblerootblock) != null){ return
-	 * possiblerootblock; } }
-	 * 
-	 * return null; }
+	 * @return The id the StructureManager indexes this structure's blocks by,
+	 *         or 0 if it isn't managed.
 	 */
+	public int getId() {
+		return this.id;
+	}
+
+	public void setId(int id) {
+		this.id = id;
+	}
 
 	public String getOwner() {
 		return owner;
@@ -131,35 +163,9 @@ public class Structure {
 		this.owner = owner;
 	}
 
-	/**
-	 * TODO THIS SHOULD GET MOVED INTO THE CONSTRUCTOR.
-	 * 
-	 * Verify that a structure exists at this root block.
-	 * 
-	 * @param rootblock
-	 *            The origin of the structure.
-	 * @return If the structure is valid return the list of blocks, or if the
-	 *         structure was not valid return null.
-	 */
-	private Set<Block> verifyStructure(StructureType structuretype, Block rootblock) {
-
-		if (rootblock == null)
-			return null;
-
-		Map<BlockOffset, Material> pattern = structuretype.getPattern();
-		Set<Block> possibleblocks = new HashSet<Block>();
-
-		for (BlockOffset offset : pattern.keySet()) {
-			Block block = rootblock.getRelative(offset.x, offset.y, offset.z);
-
-			Material material = pattern.get(offset);
-			if (block.getType() != material) {
-				return null;
-			} else {
-				possibleblocks.add(block);
-			}
-		}
-
-		return possibleblocks;
+	@Override
+	public String toString() {
+		return this.structuretype.getName() + " (" + this.world.getName() + ") <" + this.rootX + ", " + this.rootY + ", " + this.rootZ
+				+ ">";
 	}
 }
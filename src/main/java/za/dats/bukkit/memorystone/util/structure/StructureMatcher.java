@@ -0,0 +1,573 @@
+package za.dats.bukkit.memorystone.util.structure;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.permissions.Permissible;
+
+/**
+ * A compiled form of the loaded structure types, built once when the types are
+ * loaded and used to detect structures around a placed block.
+ *
+ * Each type is expanded into all the distinct orientations its Rotator allows,
+ * so rotation costs nothing extra at placement time. Every (material, offset)
+ * pair of every orientation is indexed by material, so a block whose material
+ * isn't part of any pattern is rejected with a single array lookup. Each
+ * candidate root is probed in order of material rarity (over all the loaded
+ * patterns), so that most mismatches fail on the first read.
+ *
+ * The matcher is immutable once built, so the BlockReader based methods are
+ * safe to call from other threads (against chunk snapshots, for example).
+ */
+public class StructureMatcher {
+
+	/**
+	 * Something that can report block type ids at world coordinates, without
+	 * touching the live world.
+	 */
+	public interface BlockReader {
+		/**
+		 * @return The block type id at the coordinates, or -1 if it isn't
+		 *         known.
+		 */
+		public int getTypeId(int x, int y, int z);
+	}
+
+	/**
+	 * A structure found by a BlockReader, which can be turned into a real
+	 * Structure on the main thread.
+	 */
+	public static final class Match {
+		private final Variant variant;
+		private final int x;
+		private final int y;
+		private final int z;
+
+		private Match(Variant variant, int x, int y, int z) {
+			this.variant = variant;
+			this.x = x;
+			this.y = y;
+			this.z = z;
+		}
+
+		public StructureType getStructureType() {
+			return variant.type;
+		}
+
+		/**
+		 * Build the structure in the given world. This doesn't read any block
+		 * types.
+		 */
+		public Structure toStructure(World world, String owner) {
+			return makeStructure(variant, world, x, y, z, owner, true);
+		}
+	}
+
+	/*
+	 * One orientation of a structure type, flattened into parallel arrays. The
+	 * entries are sorted so that the rarest materials come first.
+	 */
+	private static final class Variant {
+		final StructureType type;
+		final int typeIndex;
+		final int index;
+		// Each rotation of the rotator that comes out as this orientation
+		final List<String> rotations = new ArrayList<String>();
+		final String permission;
+		final int[] x;
+		final int[] y;
+		final int[] z;
+		final Material[] materials;
+		final int[] ids;
+
+		Variant(StructureType type, int typeIndex, int index, List<BlockOffset> offsets, List<Material> materials,
+				final int[] frequency) {
+			this.type = type;
+			this.typeIndex = typeIndex;
+			this.index = index;
+
+			String permissionRequired = type.getPermissionRequired();
+			this.permission = (permissionRequired != null && permissionRequired.length() > 0) ? permissionRequired : null;
+
+			Integer[] order = new Integer[offsets.size()];
+			for (int i = 0; i < order.length; i++) {
+				order[i] = i;
+			}
+			final List<Material> unsorted = materials;
+			Arrays.sort(order, new Comparator<Integer>() {
+				public int compare(Integer o1, Integer o2) {
+					return frequency[unsorted.get(o1).ordinal()] - frequency[unsorted.get(o2).ordinal()];
+				}
+			});
+
+			int size = order.length;
+			this.x = new int[size];
+			this.y = new int[size];
+			this.z = new int[size];
+			this.materials = new Material[size];
+			this.ids = new int[size];
+			for (int i = 0; i < size; i++) {
+				BlockOffset offset = offsets.get(order[i]);
+				this.x[i] = offset.x;
+				this.y[i] = offset.y;
+				this.z[i] = offset.z;
+				this.materials[i] = materials.get(order[i]);
+				this.ids[i] = this.materials[i].getId();
+			}
+		}
+	}
+
+	/*
+	 * "A block of this material could be entry <index> of this variant".
+	 */
+	private static final class Trigger {
+		final Variant variant;
+		final int index;
+
+		Trigger(Variant variant, int index) {
+			this.variant = variant;
+			this.index = index;
+		}
+	}
+
+	/*
+	 * Indexed by Material.ordinal(), null where no pattern uses the material.
+	 * Triggers are kept in structure type order (so larger structures are still
+	 * found first), and triggers of the same type are adjacent.
+	 */
+	private final Trigger[][] triggers;
+	private final Map<StructureType, Variant[]> variants;
+	private final int typeCount;
+
+	/*
+	 * Also indexed by Material.ordinal(): how far (minX, maxX, minZ, maxZ) a
+	 * structure triggered by a block of that material can reach from it.
+	 */
+	private final int[][] reach;
+
+	public StructureMatcher(List<StructureType> structureTypes) {
+		int materialCount = Material.values().length;
+
+		int[] frequency = new int[materialCount];
+		for (StructureType type : structureTypes) {
+			for (int i = 0; i < type.getBlockCount(); i++) {
+				frequency[type.getBlockMaterial(i).ordinal()]++;
+			}
+		}
+
+		List<List<Trigger>> triggerLists = new ArrayList<List<Trigger>>(materialCount);
+		for (int i = 0; i < materialCount; i++) {
+			triggerLists.add(null);
+		}
+
+		this.reach = new int[materialCount][];
+		this.variants = new HashMap<StructureType, Variant[]>();
+		this.typeCount = structureTypes.size();
+		for (int typeIndex = 0; typeIndex < structureTypes.size(); typeIndex++) {
+			StructureType type = structureTypes.get(typeIndex);
+			Variant[] typeVariants = makeVariants(type, typeIndex, frequency);
+			this.variants.put(type, typeVariants);
+
+			for (Variant variant : typeVariants) {
+				for (int i = 0; i < variant.materials.length; i++) {
+					int ordinal = variant.materials[i].ordinal();
+					List<Trigger> list = triggerLists.get(ordinal);
+					if (list == null) {
+						list = new ArrayList<Trigger>();
+						triggerLists.set(ordinal, list);
+						this.reach[ordinal] = new int[] { 0, 0, 0, 0 };
+					}
+					list.add(new Trigger(variant, i));
+
+					int[] materialReach = this.reach[ordinal];
+					for (int j = 0; j < variant.materials.length; j++) {
+						materialReach[0] = Math.min(materialReach[0], variant.x[j] - variant.x[i]);
+						materialReach[1] = Math.max(materialReach[1], variant.x[j] - variant.x[i]);
+						materialReach[2] = Math.min(materialReach[2], variant.z[j] - variant.z[i]);
+						materialReach[3] = Math.max(materialReach[3], variant.z[j] - variant.z[i]);
+					}
+				}
+			}
+		}
+
+		this.triggers = new Trigger[materialCount][];
+		for (int i = 0; i < materialCount; i++) {
+			List<Trigger> list = triggerLists.get(i);
+			if (list != null) {
+				this.triggers[i] = list.toArray(new Trigger[list.size()]);
+			}
+		}
+	}
+
+	/*
+	 * Rotate the whole pattern once for every rotation of the type's rotator,
+	 * dropping orientations that come out identical (symmetric patterns).
+	 */
+	private static Variant[] makeVariants(StructureType type, int typeIndex, int[] frequency) {
+		Rotator rotator = type.getRotator();
+		int rotations = rotator.getNumberOfRotations();
+
+		List<List<BlockOffset>> rotatedOffsets = new ArrayList<List<BlockOffset>>(rotations);
+		for (int i = 0; i < rotations; i++) {
+			rotatedOffsets.add(new ArrayList<BlockOffset>());
+		}
+
+		List<Material> materials = new ArrayList<Material>();
+		for (int j = 0; j < type.getBlockCount(); j++) {
+			materials.add(type.getBlockMaterial(j));
+			List<BlockOffset> rotated = rotator.getRotated(new BlockOffset(type.getBlockX(j), type.getBlockY(j), type.getBlockZ(j)));
+			for (int i = 0; i < rotations; i++) {
+				rotatedOffsets.get(i).add(rotated.get(i));
+			}
+		}
+
+		List<Variant> result = new ArrayList<Variant>();
+		Map<String, Variant> seen = new HashMap<String, Variant>();
+		for (int rotation = 0; rotation < rotations; rotation++) {
+			List<BlockOffset> offsets = rotatedOffsets.get(rotation);
+			List<String> parts = new ArrayList<String>(offsets.size());
+			for (int i = 0; i < offsets.size(); i++) {
+				parts.add(offsets.get(i) + materials.get(i).name());
+			}
+			Collections.sort(parts);
+
+			Variant variant = seen.get(parts.toString());
+			if (variant == null) {
+				variant = new Variant(type, typeIndex, result.size(), offsets, materials, frequency);
+				seen.put(parts.toString(), variant);
+				result.add(variant);
+			}
+
+			BlockOffset turns = rotator.getRotation(rotation);
+			variant.rotations.add(turns.x + "," + turns.y + "," + turns.z);
+		}
+
+		return result.toArray(new Variant[result.size()]);
+	}
+
+	/**
+	 * Look for a complete structure that the given block is part of.
+	 *
+	 * @param block
+	 *            The block that was placed (or otherwise touched).
+	 * @param permissible
+	 *            If not null, structure types that require a permission this
+	 *            permissible doesn't have are skipped before any blocks are
+	 *            read.
+	 * @param owner
+	 *            The owner to give the found structure.
+	 * @return The structure found, or null if the block completes no
+	 *         structure.
+	 */
+	public Structure match(Block block, Permissible permissible, String owner) {
+		Trigger[] candidates = this.triggers[block.getType().ordinal()];
+		if (candidates == null) {
+			return null;
+		}
+
+		StructureType lastType = null;
+		boolean allowed = true;
+		for (Trigger trigger : candidates) {
+			Variant variant = trigger.variant;
+			if (variant.type != lastType) {
+				lastType = variant.type;
+				allowed = permissible == null || variant.permission == null || permissible.hasPermission(variant.permission);
+			}
+
+			if (!allowed) {
+				continue;
+			}
+
+			int index = trigger.index;
+			Block root = block.getRelative(-variant.x[index], -variant.y[index], -variant.z[index]);
+			if (matchesAt(variant, root, index)) {
+				return makeStructure(variant, root.getWorld(), root.getX(), root.getY(), root.getZ(), owner, true);
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * @return How far (minX, maxX, minZ, maxZ) any structure containing a block
+	 *         of this material could reach from that block, or null if the
+	 *         material isn't part of any structure.
+	 */
+	public int[] getReach(Material material) {
+		int[] materialReach = this.reach[material.ordinal()];
+		return materialReach == null ? null : materialReach.clone();
+	}
+
+	/**
+	 * Work out which structure types the permissible may build, so that it can
+	 * be passed to another thread along with a BlockReader.
+	 */
+	public boolean[] getAllowedTypes(Permissible permissible) {
+		boolean[] allowed = new boolean[this.typeCount];
+		for (Variant[] typeVariants : this.variants.values()) {
+			Variant variant = typeVariants[0];
+			allowed[variant.typeIndex] = variant.permission == null || permissible.hasPermission(variant.permission);
+		}
+		return allowed;
+	}
+
+	/**
+	 * The same as match(Block, Permissible, String), but reads blocks from a
+	 * BlockReader instead of the world so it can run on any thread.
+	 *
+	 * @param x
+	 *            The placed block's x.
+	 * @param y
+	 *            The placed block's y.
+	 * @param z
+	 *            The placed block's z.
+	 * @param material
+	 *            The placed block's material.
+	 * @param allowed
+	 *            From getAllowedTypes, or null to allow every type.
+	 * @param reader
+	 *            Where to read the rest of the blocks from.
+	 * @return The match, or null if the block completes no structure.
+	 */
+	public Match match(int x, int y, int z, Material material, boolean[] allowed, BlockReader reader) {
+		Trigger[] candidates = this.triggers[material.ordinal()];
+		if (candidates == null) {
+			return null;
+		}
+
+		for (Trigger trigger : candidates) {
+			Variant variant = trigger.variant;
+			if (allowed != null && !allowed[variant.typeIndex]) {
+				continue;
+			}
+
+			int index = trigger.index;
+			int rootX = x - variant.x[index];
+			int rootY = y - variant.y[index];
+			int rootZ = z - variant.z[index];
+			if (matchesAt(variant, reader, rootX, rootY, rootZ, index)) {
+				return new Match(variant, rootX, rootY, rootZ);
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Verify that a structure of the given type exists at this root block, in
+	 * any of the type's orientations.
+	 *
+	 * @param type
+	 *            The structure type to look for.
+	 * @param root
+	 *            The origin of the structure.
+	 * @param owner
+	 *            The owner to give the found structure.
+	 * @return The structure, or null if the structure was not valid.
+	 */
+	public Structure verify(StructureType type, Block root, String owner) {
+		Variant[] typeVariants = this.variants.get(type);
+		if (typeVariants == null || root == null) {
+			return null;
+		}
+
+		for (Variant variant : typeVariants) {
+			if (matchesAt(variant, root, -1)) {
+				return makeStructure(variant, root.getWorld(), root.getX(), root.getY(), root.getZ(), owner, true);
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Make a structure record without looking at the world at all, for
+	 * structures loaded from disk. It has to be verified before it can be
+	 * trusted.
+	 *
+	 * @param type
+	 *            The structure type.
+	 * @param variant
+	 *            The orientation the structure was built in.
+	 * @return The unverified structure, or null if the type doesn't have that
+	 *         orientation (anymore).
+	 */
+	public Structure getUnverified(StructureType type, int variant, World world, int x, int y, int z, String owner) {
+		Variant[] typeVariants = this.variants.get(type);
+		if (typeVariants == null || variant < 0 || variant >= typeVariants.length) {
+			return null;
+		}
+
+		return makeStructure(typeVariants[variant], world, x, y, z, owner, false);
+	}
+
+	/**
+	 * Make a structure from block coordinates that were saved with it, instead
+	 * of from the pattern. Only do this if the fingerprint saved with them
+	 * matches getFingerprint().
+	 *
+	 * @return The unverified structure, or null if the type doesn't have that
+	 *         orientation (anymore) or the blocks don't fit it.
+	 */
+	public Structure getUnverified(StructureType type, int variant, World world, int x, int y, int z, int[] blockX, int[] blockY,
+			int[] blockZ, String owner) {
+		Variant[] typeVariants = this.variants.get(type);
+		if (typeVariants == null || variant < 0 || variant >= typeVariants.length
+				|| typeVariants[variant].materials.length != blockX.length) {
+			return null;
+		}
+
+		return new Structure(type, variant, world, x, y, z, blockX, blockY, blockZ, owner, false);
+	}
+
+	/**
+	 * The rotation an orientation of a structure type was made with, as the
+	 * number of pi/2 rotations about the X, Y and Z axes ("0,1,0"). Unlike the
+	 * orientation's index, it still means the same thing after the type's
+	 * pattern or rotator has been changed, so it is what gets saved.
+	 *
+	 * @return The rotation, or null if the type doesn't have that orientation.
+	 */
+	public String getRotation(StructureType type, int variant) {
+		Variant[] typeVariants = this.variants.get(type);
+		if (typeVariants == null || variant < 0 || variant >= typeVariants.length) {
+			return null;
+		}
+
+		return typeVariants[variant].rotations.get(0);
+	}
+
+	/**
+	 * Find the orientation of a structure type that a saved rotation (from
+	 * getRotation()) comes out as now.
+	 *
+	 * @return The orientation, or -1 if the type's rotator doesn't allow that
+	 *         rotation (anymore).
+	 */
+	public int getVariant(StructureType type, String rotation) {
+		Variant[] typeVariants = this.variants.get(type);
+		if (typeVariants == null) {
+			return -1;
+		}
+
+		for (Variant variant : typeVariants) {
+			if (variant.rotations.contains(rotation)) {
+				return variant.index;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Find the orientation of a structure type that saved blocks were made
+	 * from, by their fingerprint (from getFingerprint()).
+	 *
+	 * @return The orientation, or -1 if none of them has that fingerprint.
+	 */
+	public int getVariant(StructureType type, long fingerprint) {
+		Variant[] typeVariants = this.variants.get(type);
+		if (typeVariants == null) {
+			return -1;
+		}
+
+		for (Variant variant : typeVariants) {
+			if (getFingerprint(type, variant.index) == fingerprint) {
+				return variant.index;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * A fingerprint of the blocks (offsets and materials) of an orientation of
+	 * a structure type, independent of their order. Block coordinates saved
+	 * with a structure can be trusted while the fingerprint hasn't changed.
+	 *
+	 * @return The fingerprint, or 0 if the type doesn't have that orientation.
+	 */
+	public long getFingerprint(StructureType type, int variant) {
+		Variant[] typeVariants = this.variants.get(type);
+		if (typeVariants == null || variant < 0 || variant >= typeVariants.length) {
+			return 0;
+		}
+
+		Variant v = typeVariants[variant];
+		long fingerprint = v.materials.length;
+		for (int i = 0; i < v.materials.length; i++) {
+			long entry = ((long) v.x[i] * 31 + v.y[i]) * 31 + v.z[i];
+			entry = entry * 1031 + v.ids[i];
+			entry ^= entry >>> 33;
+			entry *= 0xff51afd7ed558ccdL;
+			entry ^= entry >>> 33;
+			fingerprint += entry;
+		}
+		return fingerprint == 0 ? 1 : fingerprint;
+	}
+
+	/**
+	 * Check a structure against the blocks in the world. This reads (and so
+	 * loads) every chunk the structure is in.
+	 *
+	 * @return Whether the structure is still there, as it was built.
+	 */
+	public boolean verify(Structure structure) {
+		Variant[] typeVariants = this.variants.get(structure.getStructureType());
+		if (typeVariants == null || structure.getVariant() >= typeVariants.length) {
+			return false;
+		}
+
+		return matchesAt(typeVariants[structure.getVariant()], structure.getRootBlock(), -1);
+	}
+
+	private boolean matchesAt(Variant variant, Block root, int skip) {
+		for (int i = 0; i < variant.materials.length; i++) {
+			if (i == skip) {
+				// this is the block we started from, we already know it matches
+				continue;
+			}
+
+			if (root.getRelative(variant.x[i], variant.y[i], variant.z[i]).getType() != variant.materials[i]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private boolean matchesAt(Variant variant, BlockReader reader, int rootX, int rootY, int rootZ, int skip) {
+		for (int i = 0; i < variant.ids.length; i++) {
+			if (i == skip) {
+				continue;
+			}
+
+			if (reader.getTypeId(rootX + variant.x[i], rootY + variant.y[i], rootZ + variant.z[i]) != variant.ids[i]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private static Structure makeStructure(Variant variant, World world, int rootX, int rootY, int rootZ, String owner,
+			boolean verified) {
+		int size = variant.materials.length;
+		int[] blockX = new int[size];
+		int[] blockY = new int[size];
+		int[] blockZ = new int[size];
+		for (int i = 0; i < size; i++) {
+			blockX[i] = rootX + variant.x[i];
+			blockY[i] = rootY + variant.y[i];
+			blockZ[i] = rootZ + variant.z[i];
+		}
+
+		return new Structure(variant.type, variant.index, world, rootX, rootY, rootZ, blockX, blockY, blockZ, owner, verified);
+	}
+}
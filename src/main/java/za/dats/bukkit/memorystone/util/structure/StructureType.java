@@ -2,8 +2,10 @@ package za.dats.bukkit.memorystone.util.structure;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -25,7 +27,7 @@ public class StructureType {
 		private Rotator rotator = Rotator.NONE;
 
 		public Prototype() {
-			this.protopattern = new HashMap<BlockOffset, Material>();
+			this.protopattern = new LinkedHashMap<BlockOffset, Material>();
 			this.protoreversepattern = new EnumMap<Material, List<BlockOffset>>(Material.class);
 		}
 
@@ -77,48 +79,100 @@ public class StructureType {
 	}
 
 	/*
-	 * This object is supposed to be immutable. These maps should never be
-	 * modified by any method. Also, methods should never return a reference to
-	 * these maps from a method.
+	 * This object is supposed to be immutable. The pattern is compiled into
+	 * parallel arrays (entry i is materials[i] at offset x[i], y[i], z[i]).
+	 * None of these arrays are ever handed out, and the map views are
+	 * read-only.
 	 */
+	private final int[] x;
+	private final int[] y;
+	private final int[] z;
+	private final Material[] materials;
 	private final Map<BlockOffset, Material> pattern;
 	private final Map<Material, List<BlockOffset>> reversepattern;
 	private final Map<String, String> metadata;
 	private final Rotator rotator;
 	private final String name;
 	private final String permissionRequired;
+	private final double buildCost;
 
 	public StructureType(Prototype proto) {
-		this.pattern = new HashMap<BlockOffset, Material>(proto.protopattern);
-		// we don't need to make new lists, because the are never public up to
-		// now
-		this.reversepattern = new EnumMap<Material, List<BlockOffset>>(proto.protoreversepattern);
+		int size = proto.protopattern.size();
+		this.x = new int[size];
+		this.y = new int[size];
+		this.z = new int[size];
+		this.materials = new Material[size];
+
+		int i = 0;
+		Map<BlockOffset, Material> patternView = new LinkedHashMap<BlockOffset, Material>();
+		for (Map.Entry<BlockOffset, Material> entry : proto.protopattern.entrySet()) {
+			BlockOffset offset = entry.getKey();
+			this.x[i] = offset.x;
+			this.y[i] = offset.y;
+			this.z[i] = offset.z;
+			this.materials[i] = entry.getValue();
+			patternView.put(offset, entry.getValue());
+			i++;
+		}
+		this.pattern = Collections.unmodifiableMap(patternView);
+
+		Map<Material, List<BlockOffset>> reverseView = new EnumMap<Material, List<BlockOffset>>(Material.class);
+		for (Map.Entry<Material, List<BlockOffset>> entry : proto.protoreversepattern.entrySet()) {
+			reverseView.put(entry.getKey(), Collections.unmodifiableList(new ArrayList<BlockOffset>(entry.getValue())));
+		}
+		this.reversepattern = Collections.unmodifiableMap(reverseView);
+
 		this.name = proto.name;
-		this.metadata = proto.metadata;
+		this.metadata = Collections.unmodifiableMap(new HashMap<String, String>(proto.metadata));
 		this.rotator = proto.rotator;
 		this.permissionRequired = proto.metadata.get("permissionRequired");
+
+		double cost = 0;
+		if (proto.metadata.containsKey("buildcost")) {
+			try {
+				cost = Double.parseDouble(proto.metadata.get("buildcost"));
+			} catch (NumberFormatException e) {
+			}
+		}
+		this.buildCost = cost;
 	}
 
 	public int getBlockCount() {
-		return this.pattern.size();
+		return this.materials.length;
+	}
+
+	public int getBlockX(int index) {
+		return this.x[index];
+	}
+
+	public int getBlockY(int index) {
+		return this.y[index];
+	}
+
+	public int getBlockZ(int index) {
+		return this.z[index];
+	}
+
+	public Material getBlockMaterial(int index) {
+		return this.materials[index];
 	}
 
 	public Set<Material> getMaterials() {
 		return this.reversepattern.keySet();
 	}
 
+	/**
+	 * @return A read-only view of the pattern.
+	 */
 	public Map<BlockOffset, Material> getPattern() {
-		// members of the hash are immutable, so this should be ok
-		return new HashMap<BlockOffset, Material>(this.pattern);
+		return this.pattern;
 	}
 
+	/**
+	 * @return A read-only view of the offsets of each material.
+	 */
 	public Map<Material, List<BlockOffset>> getReversePattern() {
-		// we need to make a new hash and new lists to protect the data
-		Map<Material, List<BlockOffset>> rp = new EnumMap<Material, List<BlockOffset>>(Material.class);
-		for (Material mat : this.reversepattern.keySet()) {
-			rp.put(mat, new ArrayList<BlockOffset>(this.reversepattern.get(mat)));
-		}
-		return rp;
+		return this.reversepattern;
 	}
 
 	public List<StructureType> makeRotatedStructureTypes(Rotator rotator) {
@@ -129,9 +183,9 @@ public class StructureType {
 			prototypes.add(new Prototype());
 		}
 
-		for (BlockOffset offset : this.pattern.keySet()) {
-			Material material = this.pattern.get(offset);
-			List<BlockOffset> rotatedoffsets = rotator.getRotated(offset);
+		for (int j = 0; j < this.materials.length; j++) {
+			Material material = this.materials[j];
+			List<BlockOffset> rotatedoffsets = rotator.getRotated(new BlockOffset(this.x[j], this.y[j], this.z[j]));
 
 			for (int i = 0; i < rotator.getNumberOfRotations(); i++) {
 				Prototype rotatedproto = prototypes.get(i);
@@ -149,10 +203,10 @@ public class StructureType {
 
 	@Override
 	public String toString() {
-		String s = "";
-		for (BlockOffset b : this.pattern.keySet()) {
-			Material m = this.pattern.get(b);
-			s = s + "{x: " + b.x + ", y: " + b.y + ", z: " + b.z + ", type: " + m + "}, ";
+		StringBuilder s = new StringBuilder();
+		for (int i = 0; i < this.materials.length; i++) {
+			s.append("{x: ").append(this.x[i]).append(", y: ").append(this.y[i]).append(", z: ").append(this.z[i]);
+			s.append(", type: ").append(this.materials[i]).append("}, ");
 		}
 		return "[" + name + ": " + s + "]";
 	}
@@ -173,4 +227,11 @@ public class StructureType {
 		return permissionRequired;
 	}
 
+	/**
+	 * @return The buildcost metadata, or 0 if there is none.
+	 */
+	public double getBuildCost() {
+		return buildCost;
+	}
+
 }